@@ -0,0 +1,78 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.google.common.base.Function;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a metric name into a {@link DemuxedKey} and expanding it into datums, by the number of permuted tokens.
+ * Each permuted token doubles the datums.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DemuxedKeyBenchmark {
+
+    private static final Function<MetricDatum, MetricDatum> VALUE = new Function<MetricDatum, MetricDatum>() {
+        @Override
+        public MetricDatum apply(MetricDatum datum) {
+            return datum.withValue(1.0);
+        }
+    };
+
+    @Param({"0", "1", "2", "4", "8"})
+    public int permutationDepth;
+
+    private String name;
+    private DemuxedKey key;
+
+    @Setup
+    public void setUp() {
+        StringBuilder name = new StringBuilder("ServiceX Requests");
+        for (int i = 0; i < permutationDepth; i++) {
+            name.append(i % 2 == 0 ? " tag" + i + "*" : " dim" + i + "=value" + i + "*");
+        }
+        this.name = name.toString();
+        this.key = new DemuxedKey(this.name);
+    }
+
+    @Benchmark
+    public DemuxedKey construct() {
+        return new DemuxedKey(name);
+    }
+
+    @Benchmark
+    public Iterable<MetricDatum> newDatums() {
+        return key.newDatums(VALUE);
+    }
+}
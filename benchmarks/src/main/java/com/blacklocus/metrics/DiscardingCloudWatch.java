@@ -0,0 +1,55 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.cloudwatch.AbstractAmazonCloudWatchAsync;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataResult;
+import com.google.common.util.concurrent.Futures;
+
+import java.util.concurrent.Future;
+
+/**
+ * Accepts and discards every PutMetricData request, completing immediately on the calling thread, so benchmarks
+ * measure this library and not the network.
+ */
+class DiscardingCloudWatch extends AbstractAmazonCloudWatchAsync {
+
+    private static final PutMetricDataResult RESULT = new PutMetricDataResult();
+    private static final Future<PutMetricDataResult> DONE = Futures.immediateFuture(RESULT);
+
+    @Override
+    public Future<PutMetricDataResult> putMetricDataAsync(PutMetricDataRequest request) {
+        return putMetricDataAsync(request, null);
+    }
+
+    @Override
+    public Future<PutMetricDataResult> putMetricDataAsync(PutMetricDataRequest request,
+                                                          AsyncHandler<PutMetricDataRequest, PutMetricDataResult> handler) {
+        if (handler != null) {
+            handler.onSuccess(request, RESULT);
+        }
+        return DONE;
+    }
+
+    /**
+     * @return a submitter over a discarding client, without the JVM-wide rate limit
+     */
+    static CloudWatchSubmitter submitter() {
+        return new CloudWatchSubmitter(new DiscardingCloudWatch()).withRateLimiter(null);
+    }
+}
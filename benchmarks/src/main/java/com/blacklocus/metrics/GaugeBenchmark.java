@@ -0,0 +1,100 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading one gauge into datums, by the kind of value the gauge gives.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GaugeBenchmark {
+
+    private CloudWatchReporter reporter;
+    private Map.Entry<String, Gauge> longGauge;
+    private Map.Entry<String, Gauge> boxedGauge;
+    private Map.Entry<String, Gauge> stringGauge;
+    private final List<MetricDatum> data = new ArrayList<MetricDatum>();
+
+    @Setup
+    public void setUp() {
+        reporter = new CloudWatchReporterBuilder()
+                .withNamespace("benchmark")
+                .withRegistry(new MetricRegistry())
+                .build();
+        longGauge = entry(new LongGauge(1234));
+        boxedGauge = entry(new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return 1234L;
+            }
+        });
+        stringGauge = entry(new Gauge<String>() {
+            @Override
+            public String getValue() {
+                return "1234";
+            }
+        });
+    }
+
+    private static Map.Entry<String, Gauge> entry(Gauge gauge) {
+        return new AbstractMap.SimpleImmutableEntry<String, Gauge>("Depth queue=orders", gauge);
+    }
+
+    @Benchmark
+    public List<MetricDatum> primitive() {
+        data.clear();
+        reporter.reportGauge(longGauge, data);
+        return data;
+    }
+
+    @Benchmark
+    public List<MetricDatum> number() {
+        data.clear();
+        reporter.reportGauge(boxedGauge, data);
+        return data;
+    }
+
+    @Benchmark
+    public List<MetricDatum> parsed() {
+        data.clear();
+        reporter.reportGauge(stringGauge, data);
+        return data;
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building a metric name the way an application does on every request, e.g. to count per path and status.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricNameBuilderBenchmark {
+
+    public String path = "/api/v1/orders";
+    public int status = 200;
+
+    @Benchmark
+    public String add() {
+        return new MetricNameBuilder("ServiceX Requests")
+                .add("path=" + path)
+                .add("status=" + status)
+                .build();
+    }
+
+    @Benchmark
+    public String addDimension() {
+        return new MetricNameBuilder("ServiceX Requests")
+                .addDimension("path", path, true)
+                .addDimension("status", String.valueOf(status))
+                .build();
+    }
+}
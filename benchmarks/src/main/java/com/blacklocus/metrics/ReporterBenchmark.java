@@ -0,0 +1,92 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Timer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One whole {@link CloudWatchReporter#report()}: translation, filtering, batching and submission to a discarding
+ * client. Series are untimestamped, so the {@link GenerationalMetricRegistry} keeps them across reports like a
+ * long-lived application would. Every counter moves between reports, so none are skipped as unchanged.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReporterBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int series;
+
+    /**
+     * Whether counters are named with a permuted dimension, doubling their datums
+     */
+    @Param({"false", "true"})
+    public boolean permuted;
+
+    private CloudWatchReporter reporter;
+    private Counter[] counters;
+
+    @Setup
+    public void setUp() {
+        GenerationalMetricRegistry registry = new GenerationalMetricRegistry();
+        reporter = new CloudWatchReporterBuilder()
+                .withNamespace("benchmark")
+                .withRegistry(registry)
+                .withTemplateCacheSize(2 * series)
+                .build()
+                .withSubmitter(DiscardingCloudWatch.submitter());
+
+        // Half counters, a quarter gauges and a quarter timers.
+        counters = new Counter[series / 2];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = registry.counter("Requests path=/p" + i + (permuted ? " machine=i-0123456789*" : ""));
+        }
+        for (int i = 0; i < series / 4; i++) {
+            registry.register("Depth queue=q" + i, new LongGauge(i));
+        }
+        for (int i = 0; i < series / 4; i++) {
+            Timer timer = registry.timer("Latency path=/p" + i);
+            for (int j = 0; j < 10; j++) {
+                timer.update(i + j, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    @Benchmark
+    public void report() {
+        for (Counter counter : counters) {
+            counter.inc();
+        }
+        reporter.report();
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.codahale.metrics.Snapshot;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Many threads updating one shared reservoir, the way a busy timer is hit, with {@link IntervalStatsReservoir} for
+ * comparison. The grouped benchmarks add a thread taking snapshots as fast as it can, far more often than any reporter
+ * would, to show what interval swaps cost the writers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReservoirBenchmark {
+
+    private LogBucketReservoir logBuckets;
+    private IntervalStatsReservoir intervalStats;
+
+    @Setup
+    public void setUp() {
+        logBuckets = new LogBucketReservoir();
+        intervalStats = new IntervalStatsReservoir();
+    }
+
+    /**
+     * Latencies in nanos, a few microseconds to a few seconds, different for each thread
+     */
+    @State(Scope.Thread)
+    public static class Values {
+
+        private final long[] values = new long[1024];
+        private int next;
+
+        @Setup
+        public void setUp() {
+            Random random = new Random(Thread.currentThread().getId());
+            for (int i = 0; i < values.length; i++) {
+                values[i] = (long) Math.exp(9 + 3 * random.nextGaussian());
+            }
+        }
+
+        long next() {
+            return values[next++ & (values.length - 1)];
+        }
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void logBuckets(Values values) {
+        logBuckets.update(values.next());
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void intervalStats(Values values) {
+        intervalStats.update(values.next());
+    }
+
+    @Benchmark
+    @Group("logBucketsSnapshotted")
+    @GroupThreads(7)
+    public void logBucketsUpdate(Values values) {
+        logBuckets.update(values.next());
+    }
+
+    @Benchmark
+    @Group("logBucketsSnapshotted")
+    @GroupThreads(1)
+    public Snapshot logBucketsSnapshot() {
+        return logBuckets.getSnapshot();
+    }
+
+    @Benchmark
+    @Group("intervalStatsSnapshotted")
+    @GroupThreads(7)
+    public void intervalStatsUpdate(Values values) {
+        intervalStats.update(values.next());
+    }
+
+    @Benchmark
+    @Group("intervalStatsSnapshotted")
+    @GroupThreads(1)
+    public Snapshot intervalStatsSnapshot() {
+        return intervalStats.getSnapshot();
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
+import com.google.common.base.Function;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splitting a report's datums into PutMetricData requests and handing them to the submitter, the loop which used
+ * to partition by 20 datums and now batches by datum count and estimated request size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SubmitBenchmark {
+
+    @Param({"20", "1000", "10000"})
+    public int datums;
+
+    /**
+     * Datums per request, 20 being the old fixed partition and 1000 the CloudWatch limit
+     */
+    @Param({"20", "1000"})
+    public int maxDatumsPerRequest;
+
+    private List<MetricDatum> data;
+    private MetricDatumBatcher batcher;
+    private CloudWatchSubmitter submitter;
+
+    @Setup
+    public void setUp() {
+        data = new ArrayList<MetricDatum>(datums);
+        Date now = new Date();
+        for (int i = 0; i < datums; i++) {
+            data.add(new DemuxedKey("Requests path=/p" + i + " machine=i-0123456789").newDatums(
+                    new Function<MetricDatum, MetricDatum>() {
+                        @Override
+                        public MetricDatum apply(MetricDatum datum) {
+                            return datum.withValue(1.0).withUnit("Count");
+                        }
+                    }).iterator().next().withTimestamp(now));
+        }
+        batcher = new MetricDatumBatcher(maxDatumsPerRequest, MetricDatumBatcher.DEFAULT_MAX_REQUEST_BYTES);
+        submitter = DiscardingCloudWatch.submitter();
+    }
+
+    @Benchmark
+    public int batchAndSubmit() {
+        int requests = 0;
+        for (List<MetricDatum> batch : batcher.batch("benchmark", data)) {
+            submitter.submit(new PutMetricDataRequest().withNamespace("benchmark").withMetricData(batch));
+            requests++;
+        }
+        return requests;
+    }
+}
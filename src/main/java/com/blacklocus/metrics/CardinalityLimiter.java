@@ -0,0 +1,290 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps the number of distinct series, metric name plus dimension set, which a {@link CloudWatchReporter} sends, in
+ * total and per metric name. A dimension value such as a request ID would otherwise create a series per value, each
+ * billed by CloudWatch.
+ * <ul>
+ * <li>The budget is of series admitted at once, not per report. A series once admitted stays admitted, and passes in
+ * every report, for as long as it is sent at least once every max idle time. Only then is its place freed for
+ * another. Idleness is measured in time, so the cadence of reports makes no difference, including the high resolution
+ * ticks of {@link CloudWatchReporter#startAligned(int)}.</li>
+ * <li>New series are admitted into the free places in the order the reporter translates them, which is sorted by
+ * registry name. Series admitted earlier are never pushed out by new ones.</li>
+ * <li>Datums of series beyond the budget have their dimension values replaced with {@link #OVERFLOW}, folding them
+ * into one series per metric name and dimension names, or with {@link Policy#DROP} are dropped.</li>
+ * <li>Admitted series are tracked exactly by 64 bit hash, in tables sized for the budget, and all series offered are
+ * counted with a {@link HyperLogLog}. Memory is fixed at construction, whatever the input cardinality.</li>
+ * </ul>
+ * The reporter reports the number of series limited as {@code CardinalityLimited}, and also records it and the
+ * estimated number of distinct series in its {@link CloudWatchReporterMetrics}.
+ * <p>
+ * The limit applies to the translated data, so it bounds what is sent to CloudWatch, but neither the registry nor the
+ * state the reporter keeps per metric, such as last polled counts. Bound those where the names are made, e.g. with
+ * the max bindings of a {@link MetricNameTemplate}.
+ */
+public class CardinalityLimiter {
+
+    public enum Policy {
+        /**
+         * Replace the dimension values of series beyond the budget with {@link #OVERFLOW}
+         */
+        OVERFLOW,
+        /**
+         * Drop the datums of series beyond the budget
+         */
+        DROP
+    }
+
+    public static final String OVERFLOW = "overflow";
+
+    public static final int DEFAULT_MAX_SERIES = 10000;
+    public static final int DEFAULT_MAX_SERIES_PER_METRIC = 1000;
+    public static final Policy DEFAULT_POLICY = Policy.OVERFLOW;
+
+    /**
+     * Default time after which a series not sent is no longer admitted, freeing its place in the budget
+     */
+    public static final long DEFAULT_MAX_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final int maxSeries;
+    private final int maxSeriesPerMetric;
+    private final Policy policy;
+    private final long maxIdleMillis;
+
+    /**
+     * Open addressed hash sets of admitted series, with their metric name and when they were last sent, and of metric
+     * names with their admitted series counts. Every metric name has at least one admitted series, so neither holds
+     * more than maxSeries keys. 0 marks an empty slot.
+     */
+    private final long[] series;
+    private final long[] seriesMetric;
+    private final long[] seriesSeen;
+    private final long[] metrics;
+    private final int[] metricSeries;
+    private int admitted;
+
+    private final HyperLogLog distinct = new HyperLogLog();
+
+    private long lastDistinctSeries;
+    private int lastLimitedSeries;
+
+    public CardinalityLimiter() {
+        this(DEFAULT_MAX_SERIES, DEFAULT_MAX_SERIES_PER_METRIC, DEFAULT_POLICY);
+    }
+
+    /**
+     * @param maxSeries          most distinct series admitted at once
+     * @param maxSeriesPerMetric most distinct series of any one metric name admitted at once
+     * @param policy             for series beyond either budget
+     */
+    public CardinalityLimiter(int maxSeries, int maxSeriesPerMetric, Policy policy) {
+        this(maxSeries, maxSeriesPerMetric, policy, DEFAULT_MAX_IDLE_MILLIS);
+    }
+
+    /**
+     * @param maxSeries          most distinct series admitted at once
+     * @param maxSeriesPerMetric most distinct series of any one metric name admitted at once
+     * @param policy             for series beyond either budget
+     * @param maxIdleMillis      time after which a series not sent is no longer admitted
+     */
+    public CardinalityLimiter(int maxSeries, int maxSeriesPerMetric, Policy policy, long maxIdleMillis) {
+        Preconditions.checkArgument(maxSeries > 0, "maxSeries must be positive");
+        Preconditions.checkArgument(maxSeriesPerMetric > 0, "maxSeriesPerMetric must be positive");
+        Preconditions.checkNotNull(policy, "policy");
+        Preconditions.checkArgument(maxIdleMillis > 0, "maxIdleMillis must be positive");
+        this.maxSeries = maxSeries;
+        this.maxSeriesPerMetric = maxSeriesPerMetric;
+        this.policy = policy;
+        this.maxIdleMillis = maxIdleMillis;
+
+        // At most half full
+        int capacity = Integer.highestOneBit(maxSeries) << 2;
+        this.series = new long[capacity];
+        this.seriesMetric = new long[capacity];
+        this.seriesSeen = new long[capacity];
+        this.metrics = new long[capacity];
+        this.metricSeries = new int[capacity];
+    }
+
+    /**
+     * Frees the places of idle series, then admits, folds or drops each datum.
+     *
+     * @param data of one report
+     * @return the data to send, in the same order
+     */
+    List<MetricDatum> limit(List<MetricDatum> data) {
+        return limit(data, System.currentTimeMillis());
+    }
+
+    /**
+     * @param nowMillis the time of the report
+     */
+    synchronized List<MetricDatum> limit(List<MetricDatum> data, long nowMillis) {
+        expire(nowMillis - maxIdleMillis);
+        distinct.clear();
+
+        // Hashes of folded series, to count each once. No bigger than the data.
+        HyperLogLog limited = null;
+
+        List<MetricDatum> kept = new ArrayList<MetricDatum>(data.size());
+        for (MetricDatum datum : data) {
+            long metricHash = nonZero(HASH.hashString(datum.getMetricName(), Charsets.UTF_8).asLong());
+            long seriesHash = nonZero(seriesHash(metricHash, datum.getDimensions()));
+            distinct.add(seriesHash);
+
+            if (admit(metricHash, seriesHash, nowMillis)) {
+                kept.add(datum);
+            } else {
+                if (limited == null) {
+                    limited = new HyperLogLog();
+                }
+                limited.add(seriesHash);
+                if (policy == Policy.OVERFLOW) {
+                    kept.add(fold(datum));
+                }
+            }
+        }
+
+        lastDistinctSeries = distinct.estimate();
+        lastLimitedSeries = limited == null ? 0 : (int) limited.estimate();
+        return kept;
+    }
+
+    /**
+     * @return estimated number of distinct series offered in the last report
+     */
+    public synchronized long getLastDistinctSeries() {
+        return lastDistinctSeries;
+    }
+
+    /**
+     * @return estimated number of distinct series folded or dropped in the last report
+     */
+    public synchronized int getLastLimitedSeries() {
+        return lastLimitedSeries;
+    }
+
+    private boolean admit(long metricHash, long seriesHash, long nowMillis) {
+        int seriesSlot = slot(series, seriesHash);
+        if (series[seriesSlot] == seriesHash) {
+            seriesSeen[seriesSlot] = nowMillis;
+            return true;
+        }
+        int metricSlot = slot(metrics, metricHash);
+        if (admitted >= maxSeries || metricSeries[metricSlot] >= maxSeriesPerMetric) {
+            return false;
+        }
+        insert(seriesHash, metricHash, nowMillis);
+        return true;
+    }
+
+    private void insert(long seriesHash, long metricHash, long seenMillis) {
+        int seriesSlot = slot(series, seriesHash);
+        series[seriesSlot] = seriesHash;
+        seriesMetric[seriesSlot] = metricHash;
+        seriesSeen[seriesSlot] = seenMillis;
+        int metricSlot = slot(metrics, metricHash);
+        metrics[metricSlot] = metricHash;
+        metricSeries[metricSlot]++;
+        admitted++;
+    }
+
+    /**
+     * Removes the series last sent before the given time, and recounts the series of each metric name. Every other
+     * series is taken out and put back, which closes the gaps left in the probe runs, in place.
+     */
+    private void expire(long oldestLiveMillis) {
+        Arrays.fill(metrics, 0);
+        Arrays.fill(metricSeries, 0);
+        admitted = 0;
+
+        // Start after an empty slot, so that no probe run is split. The table is at most half full.
+        int mask = series.length - 1;
+        int start = 0;
+        while (series[start] != 0) {
+            start++;
+        }
+        for (int n = 1; n <= series.length; n++) {
+            int i = (start + n) & mask;
+            long seriesHash = series[i];
+            if (seriesHash == 0) {
+                continue;
+            }
+            series[i] = 0;
+            if (seriesSeen[i] >= oldestLiveMillis) {
+                insert(seriesHash, seriesMetric[i], seriesSeen[i]);
+            }
+        }
+    }
+
+    /**
+     * @return the slot holding the key, or else the empty slot where it would go
+     */
+    private static int slot(long[] table, long key) {
+        int mask = table.length - 1;
+        int i = (int) (key ^ (key >>> 32)) & mask;
+        while (table[i] != 0 && table[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * The same whatever the order of the dimensions.
+     */
+    private static long seriesHash(long metricHash, List<Dimension> dimensions) {
+        long dimensionsHash = 0;
+        if (dimensions != null) {
+            for (Dimension dimension : dimensions) {
+                dimensionsHash += HASH.newHasher()
+                        .putString(dimension.getName(), Charsets.UTF_8)
+                        .putByte((byte) 0)
+                        .putString(dimension.getValue(), Charsets.UTF_8)
+                        .hash().asLong();
+            }
+        }
+        return HASH.newHasher().putLong(metricHash).putLong(dimensionsHash).hash().asLong();
+    }
+
+    private static long nonZero(long hash) {
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static MetricDatum fold(MetricDatum datum) {
+        List<Dimension> folded = new ArrayList<Dimension>(datum.getDimensions().size());
+        for (Dimension dimension : datum.getDimensions()) {
+            folded.add(new Dimension().withName(dimension.getName()).withValue(OVERFLOW));
+        }
+        return datum.clone().withDimensions(folded);
+    }
+}
@@ -32,28 +32,43 @@ import com.codahale.metrics.Sampling;
 import com.codahale.metrics.ScheduledReporter;
 import com.codahale.metrics.Snapshot;
 import com.codahale.metrics.Timer;
-import com.google.common.base.Function;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
 import com.google.common.collect.Collections2;
-import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
-import org.apache.commons.lang3.StringUtils;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.apache.commons.lang3.math.NumberUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-
-import static com.blacklocus.metrics.Constants.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * New users should obtain a reporter via a {@link CloudWatchReporterBuilder}! The reporter constructors remain
@@ -109,8 +124,94 @@ public class CloudWatchReporter extends ScheduledReporter {
     @Deprecated
     static final MetricFilter ALL = MetricFilter.ALL;
 
+    /**
+     * Default number of series, i.e. registry names less any timestamp, to cache {@link DatumTemplates} for.
+     */
+    public static final int DEFAULT_TEMPLATE_CACHE_SIZE = 10000;
+
+    /**
+     * Default limit of datums per PutMetricData request, which is the CloudWatch limit.
+     */
+    public static final int DEFAULT_MAX_DATUMS_PER_REQUEST = MetricDatumBatcher.DEFAULT_MAX_DATUMS_PER_REQUEST;
+
+    /**
+     * Default limit on the estimated size of a PutMetricData request, which is the CloudWatch limit.
+     */
+    public static final int DEFAULT_MAX_REQUEST_BYTES = MetricDatumBatcher.DEFAULT_MAX_REQUEST_BYTES;
+
+    /**
+     * Default number of metrics per chunk when translating in parallel.
+     */
+    public static final int DEFAULT_TRANSLATION_CHUNK_SIZE = 1000;
+
+    /**
+     * Metric name of the number of series which exceeded the {@link CardinalityLimiter} in a report.
+     */
+    public static final String CARDINALITY_LIMITED = "CardinalityLimited";
+
+    /**
+     * Default budget of name and dimension permutations of any one metric. Each permutable token doubles them.
+     */
+    public static final int DEFAULT_MAX_PERMUTATIONS_PER_METRIC = 128;
+
+    /**
+     * Default budget of datums per report from metrics with permutations, which is no budget.
+     */
+    public static final int DEFAULT_MAX_PERMUTED_DATUMS_PER_REPORT = Integer.MAX_VALUE;
+
+    public static final PermutationPolicy DEFAULT_PERMUTATION_POLICY = PermutationPolicy.TRUNCATE;
+
+    /**
+     * Default bound on the per-host offset of aligned ticks. See {@link #startAligned(int)}.
+     */
+    public static final long DEFAULT_MAX_TICK_JITTER_MILLIS = 1000;
+
+    /**
+     * Default deadline for the final flush of the shutdown hook. See {@link #stop(long, TimeUnit)}.
+     */
+    public static final long DEFAULT_STOP_TIMEOUT_MILLIS = 10000;
+
+    private static final MetricFilter HIGH_RESOLUTION = new MetricFilter() {
+        @Override
+        public boolean matches(String name, Metric metric) {
+            return MetricKey.isHighResolution(name);
+        }
+    };
+
+    private static final MetricFilter STANDARD_RESOLUTION = new MetricFilter() {
+        @Override
+        public boolean matches(String name, Metric metric) {
+            return !MetricKey.isHighResolution(name);
+        }
+    };
+
+    /**
+     * What to do with the permutations of a metric which exceed a budget.
+     */
+    public enum PermutationPolicy {
+        /**
+         * Report only the most aggregated permutation and the full set of tokens.
+         */
+        TRUNCATE,
+        /**
+         * Do not report the metric.
+         */
+        REJECT
+    }
+
     private final MetricRegistry currentRegistry;
 
+    /**
+     * Non-null when {@link #currentRegistry} is a {@link GenerationalMetricRegistry}, which puts this reporter into
+     * drain mode. See {@link #report()}.
+     */
+    private final GenerationalMetricRegistry generationalRegistry;
+
+    /**
+     * Same filter given to {@link ScheduledReporter}, which keeps its own private.
+     */
+    private final MetricFilter metricFilter;
+
 
     /**
      * Submit metrics to CloudWatch under this metric namespace
@@ -119,17 +220,29 @@ public class CloudWatchReporter extends ScheduledReporter {
 
     private final AmazonCloudWatchAsync cloudWatch;
 
+    /**
+     * Sends the PutMetricData requests of each report so that the reporter thread never waits on CloudWatch.
+     */
+    private CloudWatchSubmitter submitter;
+
     /**
      * We only submit the difference in counters since the last submission. This way we don't have to reset the counters
-     * within this application.
+     * within this application. Entries of metrics no longer reported expire after a few reports of all metrics, so not
+     * counting the high resolution ticks of {@link #startAligned(int)}.
      */
-    private final Map<Counting, Long> lastPolledCounts = new HashMap<Counting, Long>();
+    private final SeriesCountStore lastPolledCounts = new SeriesCountStore();
 
 
     /**
-     * Optional, global reporter-wide dimensions automatically appended to all metrics.
+     * Optional, global reporter-wide dimensions automatically appended to all metrics. Parsed once from the string
+     * given to {@link #withDimensions(String)}.
      */
-    private String dimensions;
+    private MetricKey globalDimensions;
+
+    /**
+     * Parsed and demuxed names by registry name less any timestamp, so each report only has to fill in values.
+     */
+    Cache<String, DatumTemplates> templateCache = DatumTemplates.newCache(DEFAULT_TEMPLATE_CACHE_SIZE);
 
     /**
      * Whether or not to explicitly timestamp metric data to local now (true), or leave it null so that
@@ -137,6 +250,61 @@ public class CloudWatchReporter extends ScheduledReporter {
      */
     private boolean timestampLocal = false;
 
+    /**
+     * Whether or not to pack datums of the same series into Values/Counts arrays and merged StatisticSets before
+     * submission. See {@link MetricDatumPacker}. Defaults to false.
+     */
+    private boolean datumPacking = false;
+
+    private int maxDatumsPerRequest = DEFAULT_MAX_DATUMS_PER_REQUEST;
+    private int maxRequestBytes = DEFAULT_MAX_REQUEST_BYTES;
+    private MetricDatumBatcher batcher = new MetricDatumBatcher(maxDatumsPerRequest, maxRequestBytes);
+
+    /**
+     * When set, large registries are translated in chunks on this executor. Defaults to null, translating on the
+     * reporting thread.
+     */
+    private ExecutorService translationExecutor;
+    private int translationChunkSize = DEFAULT_TRANSLATION_CHUNK_SIZE;
+
+    /**
+     * What this reporter itself is doing: translation and submission times, data volumes, errors.
+     */
+    private CloudWatchReporterMetrics metrics = new CloudWatchReporterMetrics();
+
+    /**
+     * Optional. Reports {@link #metrics} after every {@link #report()}.
+     */
+    private CloudWatchReporter reporterMetricsReporter;
+
+    /**
+     * Optional. Caps the distinct series sent per report.
+     */
+    private CardinalityLimiter cardinalityLimiter;
+
+    private int maxPermutationsPerMetric = DEFAULT_MAX_PERMUTATIONS_PER_METRIC;
+    private int maxPermutedDatumsPerReport = DEFAULT_MAX_PERMUTED_DATUMS_PER_REPORT;
+    private PermutationPolicy permutationPolicy = DEFAULT_PERMUTATION_POLICY;
+
+    private volatile long firstTickNanos;
+    private volatile long tickPeriodNanos;
+
+    private long maxTickJitterMillis = DEFAULT_MAX_TICK_JITTER_MILLIS;
+
+    /**
+     * Set by {@link #startAligned(int)}
+     */
+    private ScheduledExecutorService alignedScheduler;
+
+    private final AtomicBoolean stopped = new AtomicBoolean();
+
+    private final AtomicBoolean warnedCumulativeSampling = new AtomicBoolean();
+
+    /**
+     * Set by {@link #addShutdownHook(long)}, until stopped
+     */
+    private Thread shutdownHook;
+
     /**
      * This filter is applied right before submission to CloudWatch. This filter can access decoded metric name elements
      * such as {@link MetricDatum#getDimensions()}.
@@ -194,8 +362,12 @@ public class CloudWatchReporter extends ScheduledReporter {
 
         super(registry, "CloudWatchReporter:" + metricNamespace, metricFilter, TimeUnit.MINUTES, TimeUnit.MINUTES);
         this.currentRegistry = registry;
+        this.generationalRegistry = registry instanceof GenerationalMetricRegistry ?
+                (GenerationalMetricRegistry) registry : null;
+        this.metricFilter = metricFilter;
         this.metricNamespace = metricNamespace;
         this.cloudWatch = cloudWatch;
+        this.submitter = cloudWatch == null ? null : new CloudWatchSubmitter(cloudWatch);
     }
 
     /**
@@ -205,7 +377,182 @@ public class CloudWatchReporter extends ScheduledReporter {
      * @return this (for chaining)
      */
     public CloudWatchReporter withDimensions(String dimensions) {
-        this.dimensions = dimensions;
+        this.globalDimensions = dimensions == null ? null : MetricKey.parseDimensions(dimensions);
+        // Cached templates have the previous global dimensions merged in.
+        this.templateCache.invalidateAll();
+        return this;
+    }
+
+    /**
+     * @param datumPacking Whether or not to pack datums which share name, dimensions, unit, storage resolution and
+     *                     timestamp bucket into Values/Counts arrays (single values) or one StatisticSet (samplings)
+     *                     before submission. CloudWatch statistics come out the same with fewer datums and requests.
+     *                     Defaults to false.
+     * @return this (for chaining)
+     */
+    public CloudWatchReporter withDatumPacking(boolean datumPacking) {
+        this.datumPacking = datumPacking;
+        return this;
+    }
+
+    /**
+     * @param submitter to hand PutMetricData requests to, in place of the default one over the client given to the
+     *                  constructor. See {@link CloudWatchSubmitter} for its concurrency limit, queue bound and overflow
+     *                  policy.
+     * @return this (for chaining)
+     */
+    public CloudWatchReporter withSubmitter(CloudWatchSubmitter submitter) {
+        this.submitter = submitter;
+        return this;
+    }
+
+    /**
+     * @return the submitter which sends this reporter's requests
+     */
+    public CloudWatchSubmitter getSubmitter() {
+        return submitter;
+    }
+
+    /**
+     * @param maxDatumsPerRequest most datums to put in one PutMetricData request. Defaults to
+     *                            {@link #DEFAULT_MAX_DATUMS_PER_REQUEST}.
+     * @return this (for chaining)
+     */
+    public CloudWatchReporter withMaxDatumsPerRequest(int maxDatumsPerRequest) {
+        this.batcher = new MetricDatumBatcher(maxDatumsPerRequest, maxRequestBytes);
+        this.maxDatumsPerRequest = maxDatumsPerRequest;
+        return this;
+    }
+
+    /**
+     * @param maxRequestBytes most bytes a PutMetricData request should take, as estimated from its datums. Defaults to
+     *                        {@link #DEFAULT_MAX_REQUEST_BYTES}.
+     * @return this (for chaining)
+     */
+    public CloudWatchReporter withMaxRequestBytes(int maxRequestBytes) {
+        this.batcher = new MetricDatumBatcher(maxDatumsPerRequest, maxRequestBytes);
+        this.maxRequestBytes = maxRequestBytes;
+        return this;
+    }
+
+    /**
+     * @param translationExecutor on which to translate registries of more than one chunk of metrics into datums, a
+     *                            chunk per task, e.g. a ForkJoinPool or a fixed thread pool shared with other
+     *                            reporters. The data come out exactly as if translated on the reporting thread, which
+     *                            waits for the chunks and translates any the executor rejects itself. Defaults to
+     *                            null, translating on the reporting thread.
+     * @return this (for chaining)
+     */
+    public CloudWatchReporter withTranslationExecutor(ExecutorService translationExecutor) {
+        this.translationExecutor = translationExecutor;
+        return this;
+    }
+
+    /**
+     * @param translationChunkSize number of metrics to translate per task on the translation executor. Defaults to
+     *                             {@link #DEFAULT_TRANSLATION_CHUNK_SIZE}.
+     * @return this (for chaining)
+     */
+    public CloudWatchReporter withTranslationChunkSize(int translationChunkSize) {
+        Preconditions.checkArgument(translationChunkSize > 0, "translationChunkSize must be positive");
+        this.translationChunkSize = translationChunkSize;
+        return this;
+    }
+
+    /**
+     * @param cardinalityLimiter (optional) to cap the distinct series sent at once with. Each report which exceeds
+     *                           it also sends the number of series limited as {@value #CARDINALITY_LIMITED}.
+     * @return this (for chaining)
+     */
+    public CloudWatchReporter withCardinalityLimiter(CardinalityLimiter cardinalityLimiter) {
+        this.cardinalityLimiter = cardinalityLimiter;
+        return this;
+    }
+
+    /**
+     * @param maxPermutationsPerMetric most name and dimension permutations of any one metric. Beyond that the
+     *                                 permutation policy applies. Defaults to
+     *                                 {@value #DEFAULT_MAX_PERMUTATIONS_PER_METRIC}.
+     * @return this (for chaining)
+     */
+    public CloudWatchReporter withMaxPermutationsPerMetric(int maxPermutationsPerMetric) {
+        Preconditions.checkArgument(maxPermutationsPerMetric > 0, "maxPermutationsPerMetric must be positive");
+        this.maxPermutationsPerMetric = maxPermutationsPerMetric;
+        // Cached templates were permuted within the previous budget.
+        this.templateCache.invalidateAll();
+        return this;
+    }
+
+    /**
+     * @param maxPermutedDatumsPerReport most datums per report from metrics with more than one permutation. Once a
+     *                                   report has used them up, the permutation policy applies to the rest. Metrics
+     *                                   without permutations are not limited. No limit by default.
+     * @return this (for chaining)
+     */
+    public CloudWatchReporter withMaxPermutedDatumsPerReport(int maxPermutedDatumsPerReport) {
+        Preconditions.checkArgument(maxPermutedDatumsPerReport > 0, "maxPermutedDatumsPerReport must be positive");
+        this.maxPermutedDatumsPerReport = maxPermutedDatumsPerReport;
+        return this;
+    }
+
+    /**
+     * @param permutationPolicy for metrics beyond a permutation budget. Defaults to
+     *                          {@link PermutationPolicy#TRUNCATE}.
+     * @return this (for chaining)
+     */
+    public CloudWatchReporter withPermutationPolicy(PermutationPolicy permutationPolicy) {
+        this.permutationPolicy = Preconditions.checkNotNull(permutationPolicy, "permutationPolicy");
+        this.templateCache.invalidateAll();
+        return this;
+    }
+
+    /**
+     * @param maxTickJitterMillis bound on the offset of every aligned tick, which is the same for the same host and
+     *                            namespace. Kept below the high resolution period. Defaults to
+     *                            {@value #DEFAULT_MAX_TICK_JITTER_MILLIS}. See {@link #startAligned(int)}.
+     * @return this (for chaining)
+     */
+    public CloudWatchReporter withMaxTickJitterMillis(long maxTickJitterMillis) {
+        Preconditions.checkArgument(maxTickJitterMillis >= 0, "maxTickJitterMillis must not be negative");
+        this.maxTickJitterMillis = maxTickJitterMillis;
+        return this;
+    }
+
+    /**
+     * @param metrics to record what this reporter is doing in, in place of its own
+     * @return this (for chaining)
+     */
+    public CloudWatchReporter withMetrics(CloudWatchReporterMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * @return what this reporter is doing: translation and submission times, data volumes, errors
+     */
+    public CloudWatchReporterMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param reporterMetricsReporter to report after each {@link #report()} of this reporter, typically of
+     *                                {@link #getMetrics()} to another namespace. See
+     *                                {@link CloudWatchReporterBuilder#withReporterMetricsNamespace(String)}.
+     * @return this (for chaining)
+     */
+    CloudWatchReporter withReporterMetricsReporter(CloudWatchReporter reporterMetricsReporter) {
+        this.reporterMetricsReporter = reporterMetricsReporter;
+        return this;
+    }
+
+    /**
+     * @param templateCacheSize number of series, i.e. registry names less any timestamp, for which to keep parsed
+     *                          names, dimensions and their permutations from one report to the next. Defaults to
+     *                          {@link #DEFAULT_TEMPLATE_CACHE_SIZE}.
+     * @return this (for chaining)
+     */
+    public CloudWatchReporter withTemplateCacheSize(int templateCacheSize) {
+        this.templateCache = DatumTemplates.newCache(templateCacheSize);
         return this;
     }
 
@@ -240,38 +587,425 @@ public class CloudWatchReporter extends ScheduledReporter {
         return this;
     }
 
+    /**
+     * If the registry is a {@link GenerationalMetricRegistry}, reports in drain mode: the live generation is swapped
+     * out and the retired one is reported together with the stable tier, without removing anything writers may
+     * still be using. Otherwise this is the usual {@link ScheduledReporter#report()}.
+     */
     @Override
-    public void report(SortedMap<String, Gauge> gauges,
-                       SortedMap<String, Counter> counters,
-                       SortedMap<String, Histogram> histograms,
-                       SortedMap<String, Meter> meters,
-                       SortedMap<String, Timer> timers) {
+    public void report() {
+        recordTickDrift();
+        if (generationalRegistry == null) {
+            super.report();
+        } else {
+            submit(collect());
+        }
+        if (reporterMetricsReporter != null) {
+            reporterMetricsReporter.report();
+        }
+    }
+
+    @Override
+    public void start(long period, TimeUnit unit) {
+        tickPeriodNanos = unit.toNanos(period);
+        firstTickNanos = System.nanoTime() + tickPeriodNanos;
+        super.start(period, unit);
+    }
 
+    /**
+     * Starts reporting on ticks aligned to the wall clock, in place of {@link #start(long, TimeUnit)}:
+     * <ul>
+     * <li>metrics with a storage resolution below a minute every highResolutionPeriodSeconds, counted from the top of
+     * the minute,</li>
+     * <li>all other metrics at the top of every minute, so that each report covers exactly one CloudWatch period.</li>
+     * </ul>
+     * Every tick is offset by the same jitter, up to the max tick jitter and below the high resolution period,
+     * derived from the host name and namespace. Each host thus reports at the same offset every time, but a fleet
+     * spreads its requests out. Ticks are re-aligned one by one, so a slow report skips ticks rather than drifting.
+     * <p>
+     * In drain mode, timestamped metrics carry their own time, and are drained every minute.
+     *
+     * @param highResolutionPeriodSeconds between reports of high resolution metrics. Must divide 60.
+     */
+    public synchronized void startAligned(int highResolutionPeriodSeconds) {
+        Preconditions.checkArgument(highResolutionPeriodSeconds > 0 && 60 % highResolutionPeriodSeconds == 0,
+                "highResolutionPeriodSeconds must divide 60");
+        Preconditions.checkState(alignedScheduler == null, "Already started");
+        long periodMillis = TimeUnit.SECONDS.toMillis(highResolutionPeriodSeconds);
+        long offsetMillis = tickOffsetMillis(Math.min(maxTickJitterMillis, periodMillis - 1));
+        alignedScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("CloudWatchReporter-" + metricNamespace).setDaemon(true).build());
+        scheduleAlignedTick(alignedScheduler, System.currentTimeMillis(), periodMillis, offsetMillis);
+    }
+
+    /**
+     * Stops ticking without a final report, and removes any shutdown hook. A later {@link #stop(long, TimeUnit)} does
+     * nothing.
+     */
+    @Override
+    public void stop() {
+        stopped.set(true);
+        removeShutdownHook();
+        stopTicking();
+    }
+
+    private void stopTicking() {
+        super.stop();
+        synchronized (this) {
+            if (alignedScheduler != null) {
+                alignedScheduler.shutdown();
+                alignedScheduler = null;
+            }
+        }
+        metrics.stopJmx();
+    }
+
+    /**
+     * Stops gracefully: stops ticking, translates and submits one last time, and waits for everything queued and in
+     * flight in the submitter to be sent, in parallel, for at most the timeout. Removes any shutdown hook. Only the
+     * first call to this or {@link #stop()} stops the reporter, and only this one flushes.
+     *
+     * @param timeout for the final report and the flush together
+     * @param unit    of the timeout
+     * @return how many datums were sent meanwhile, and how many were abandoned or still unsent at the deadline
+     */
+    public FlushResult stop(long timeout, TimeUnit unit) {
+        if (!stopped.compareAndSet(false, true)) {
+            return new FlushResult(0, 0, true);
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        removeShutdownHook();
+        stopTicking();
+
+        CloudWatchSubmitter submitter = this.submitter;
+        if (submitter == null) {
+            return new FlushResult(0, 0, true);
+        }
+        long sentBefore = submitter.getSentDatums();
+        long abandonedBefore = submitter.getAbandonedDatums();
+
+        submit(collect());
+        if (reporterMetricsReporter != null) {
+            reporterMetricsReporter.submit(reporterMetricsReporter.collect());
+        }
+
+        boolean complete;
         try {
-            // Reset the registry to avoid memory leak. If not reset, the size of concurrent hashmap increases exponentially
-           currentRegistry.removeMatching(MetricFilter.ALL);
+            complete = submitter.flush(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            complete = false;
+        }
+        FlushResult result = new FlushResult(submitter.getSentDatums() - sentBefore,
+                submitter.getAbandonedDatums() - abandonedBefore + submitter.getPendingDatums(), complete);
+        LOG.info("Stopped reporting to CloudWatch namespace {}. {}", metricNamespace, result);
+        return result;
+    }
+
+    /**
+     * Registers a JVM shutdown hook which {@link #stop(long, TimeUnit)}s this reporter, until it is stopped.
+     */
+    synchronized void addShutdownHook(final long timeoutMillis) {
+        Preconditions.checkState(shutdownHook == null, "Already has a shutdown hook");
+        shutdownHook = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stop(timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        }, "CloudWatchReporter-shutdown-" + metricNamespace);
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
 
-            // Just an estimate to reduce resizing.
-            List<MetricDatum> data = new ArrayList<MetricDatum>(
-                    gauges.size() + counters.size() + meters.size() + 2 * histograms.size() + 2 * timers.size()
-            );
+    /**
+     * @return the registered shutdown hook, or null
+     */
+    synchronized Thread getShutdownHook() {
+        return shutdownHook;
+    }
 
-            // Translate various metric classes to MetricDatum
-            for (Map.Entry<String, Gauge> gaugeEntry : gauges.entrySet()) {
-                reportGauge(gaugeEntry, data);
+    /**
+     * Lets go of the shutdown hook, so that it neither flushes a stopped reporter at exit nor keeps it reachable.
+     */
+    private synchronized void removeShutdownHook() {
+        if (shutdownHook != null && shutdownHook != Thread.currentThread()) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // The JVM is already shutting down, and running it.
             }
-            for (Map.Entry<String, Counter> counterEntry : counters.entrySet()) {
-                reportCounter(counterEntry, data);
+        }
+        shutdownHook = null;
+    }
+
+    /**
+     * @return the first tick after the given time, at a multiple of the period plus the offset
+     */
+    static long nextAlignedTick(long afterMillis, long periodMillis, long offsetMillis) {
+        return ((afterMillis - offsetMillis) / periodMillis + 1) * periodMillis + offsetMillis;
+    }
+
+    /**
+     * @return a jitter in [0, maxJitterMillis], the same for the same host and namespace
+     */
+    long tickOffsetMillis(long maxJitterMillis) {
+        if (maxJitterMillis <= 0) {
+            return 0;
+        }
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            // pid@host, as well as the JVM can tell
+            host = ManagementFactory.getRuntimeMXBean().getName();
+        }
+        int hash = Hashing.murmur3_32().hashString(host + "/" + metricNamespace, Charsets.UTF_8).asInt();
+        return (hash & Integer.MAX_VALUE) % (maxJitterMillis + 1);
+    }
+
+    /**
+     * @param lastTickMillis the tick which just ran, or the start time. The next tick is after both it and now.
+     */
+    private void scheduleAlignedTick(final ScheduledExecutorService scheduler, long lastTickMillis,
+                                     final long periodMillis, final long offsetMillis) {
+        long now = System.currentTimeMillis();
+        final long tickMillis = nextAlignedTick(Math.max(now, lastTickMillis), periodMillis, offsetMillis);
+        try {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        alignedTick(tickMillis, offsetMillis);
+                    } finally {
+                        scheduleAlignedTick(scheduler, tickMillis, periodMillis, offsetMillis);
+                    }
+                }
+            }, tickMillis - now, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Stopped
+        }
+    }
+
+    void alignedTick(long tickMillis, long offsetMillis) {
+        metrics.tickDrift.update(Math.max(0, System.currentTimeMillis() - tickMillis));
+        boolean topOfMinute = (tickMillis - offsetMillis) % TimeUnit.MINUTES.toMillis(1) == 0;
+        // Never let an exception out, or the ticks stop.
+        try {
+            submit(collect(HIGH_RESOLUTION, false));
+            if (topOfMinute) {
+                submit(collect(STANDARD_RESOLUTION, true));
+                if (reporterMetricsReporter != null) {
+                    reporterMetricsReporter.report();
+                }
+            }
+        } catch (RuntimeException e) {
+            LOG.error("Error reporting CloudWatch metrics.", e);
+        }
+    }
+
+    /**
+     * Records how late this report is for the tick it is scheduled on, if started. Scheduled reports are never early,
+     * and one held up by more than a period is recorded as late for the latest tick it missed.
+     */
+    private void recordTickDrift() {
+        long period = tickPeriodNanos;
+        if (period > 0) {
+            long sinceFirst = System.nanoTime() - firstTickNanos;
+            if (sinceFirst >= 0) {
+                metrics.tickDrift.update(TimeUnit.NANOSECONDS.toMillis(sinceFirst % period));
+            }
+        }
+    }
+
+    /**
+     * Translates the registry into data without submitting it, for a {@link CloudWatchSubmissionEngine} to merge with
+     * the data of other reporters. In drain mode this drains, just like {@link #report()}.
+     *
+     * @return data for this reporter's namespace, filtered and packed as configured
+     */
+    List<MetricDatum> collect() {
+        return collect(MetricFilter.ALL, true);
+    }
+
+    /**
+     * @param cadence which metrics to translate, of those which pass the metric filter
+     * @param drain   whether to drain the generations in drain mode. Otherwise only the stable tier is translated.
+     */
+    private List<MetricDatum> collect(MetricFilter cadence, boolean drain) {
+        MetricFilter filter = cadence == MetricFilter.ALL ? metricFilter : both(metricFilter, cadence);
+        synchronized (this) {
+            try {
+                List<MetricDatum> data;
+                if (generationalRegistry == null) {
+                    SortedMap<String, Gauge> gauges = currentRegistry.getGauges(filter);
+                    SortedMap<String, Counter> counters = currentRegistry.getCounters(filter);
+                    SortedMap<String, Histogram> histograms = currentRegistry.getHistograms(filter);
+                    SortedMap<String, Meter> meters = currentRegistry.getMeters(filter);
+                    SortedMap<String, Timer> timers = currentRegistry.getTimers(filter);
+                    resetRegistry(cadence);
+                    data = translate(gauges, counters, histograms, meters, timers);
+                } else if (!drain) {
+                    MetricRegistry stable = generationalRegistry.stable();
+                    data = translate(stable.getGauges(filter), stable.getCounters(filter),
+                            stable.getHistograms(filter), stable.getMeters(filter), stable.getTimers(filter));
+                } else {
+                    data = drain(filter);
+                }
+                // Idleness is counted in reports of every metric. High resolution ticks in between only see some
+                // of them, and would otherwise expire the counts of the others within seconds.
+                if (cadence != HIGH_RESOLUTION) {
+                    lastPolledCounts.expire();
+                }
+                return data;
+            } catch (RuntimeException e) {
+                metrics.translateErrors.mark();
+                LOG.error("Error marshalling CloudWatch metrics.", e);
+                return Collections.emptyList();
             }
-            for (Map.Entry<String, Meter> meterEntry : meters.entrySet()) {
-                reportCounter(meterEntry, data);
+        }
+    }
+
+    /**
+     * @return the namespace this reporter's data goes to
+     */
+    String getMetricNamespace() {
+        return metricNamespace;
+    }
+
+    /**
+     * @param stableFilter which metrics of the stable tier to translate. The retired generation is translated whole.
+     */
+    private List<MetricDatum> drain(MetricFilter stableFilter) {
+        MetricRegistry stable = generationalRegistry.stable();
+        MetricRegistry retired = generationalRegistry.swap();
+
+        // Counting metrics which have not moved since this generation was last drained are done with. Evict them
+        // before translating, so they are neither reported again nor kept alive.
+        SortedMap<String, Counter> retiredCounters = retainActive(retired, retired.getCounters(metricFilter), false);
+        SortedMap<String, Meter> retiredMeters = retainActive(retired, retired.getMeters(metricFilter), false);
+        SortedMap<String, Histogram> retiredHistograms = retainActive(retired, retired.getHistograms(metricFilter), true);
+        SortedMap<String, Timer> retiredTimers = retainActive(retired, retired.getTimers(metricFilter), true);
+        SortedMap<String, Gauge> retiredGauges = retired.getGauges(metricFilter);
+
+        List<MetricDatum> data = translate(merge(stable.getGauges(stableFilter), retiredGauges),
+                merge(stable.getCounters(stableFilter), retiredCounters),
+                merge(stable.getHistograms(stableFilter), retiredHistograms),
+                merge(stable.getMeters(stableFilter), retiredMeters),
+                merge(stable.getTimers(stableFilter), retiredTimers));
+
+        // A timestamped gauge is a single point, which has now been read.
+        for (String name : retiredGauges.keySet()) {
+            retired.remove(name);
+        }
+        return data;
+    }
+
+    /**
+     * Removes metrics from the retired generation whose count has not changed since the generation was last drained.
+     *
+     * @param track whether to record the count of the remaining metrics here. Counters and meters need not, as
+     *              {@link #reportCounter(Map.Entry, List, List)} already does.
+     * @return the metrics that remain, for reporting
+     */
+    private <T extends Counting> SortedMap<String, T> retainActive(MetricRegistry generation,
+                                                                   SortedMap<String, T> metrics,
+                                                                   boolean track) {
+        metrics = new TreeMap<String, T>(metrics);
+        for (Iterator<Map.Entry<String, T>> it = metrics.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, T> entry = it.next();
+            T metric = entry.getValue();
+            if (metric instanceof DeltaCounting) {
+                if (((DeltaCounting) metric).getPendingCount() == 0) {
+                    generation.remove(entry.getKey());
+                    it.remove();
+                }
+                continue;
             }
-            for (Map.Entry<String, Histogram> histogramEntry : histograms.entrySet()) {
-                reportSampling(histogramEntry, 1.0, data);
+            long count = metric.getCount();
+            if (count == lastPolledCounts.get(entry.getKey(), metric)) {
+                generation.remove(entry.getKey());
+                lastPolledCounts.remove(entry.getKey(), metric);
+                it.remove();
+            } else if (track) {
+                lastPolledCounts.swap(entry.getKey(), metric, count);
             }
-            for (Map.Entry<String, Timer> timerEntry : timers.entrySet()) {
-                reportSampling(timerEntry, 0.000001, data); // nanos -> millis
+        }
+        return metrics;
+    }
+
+    private static MetricFilter both(final MetricFilter first, final MetricFilter second) {
+        return new MetricFilter() {
+            @Override
+            public boolean matches(String name, Metric metric) {
+                return first.matches(name, metric) && second.matches(name, metric);
             }
+        };
+    }
+
+    private static <T> SortedMap<String, T> merge(SortedMap<String, T> stable, SortedMap<String, T> retired) {
+        // Tiers never share names. See GenerationalMetricRegistry.
+        SortedMap<String, T> merged = new TreeMap<String, T>(stable);
+        merged.putAll(retired);
+        return merged;
+    }
+
+    @Override
+    public void report(SortedMap<String, Gauge> gauges,
+                       SortedMap<String, Counter> counters,
+                       SortedMap<String, Histogram> histograms,
+                       SortedMap<String, Meter> meters,
+                       SortedMap<String, Timer> timers) {
+        try {
+            resetRegistry(MetricFilter.ALL);
+            List<MetricDatum> data = translate(gauges, counters, histograms, meters, timers);
+            lastPolledCounts.expire();
+            submit(data);
+        } catch (RuntimeException e) {
+            metrics.translateErrors.mark();
+            LOG.error("Error marshalling CloudWatch metrics.", e);
+        }
+    }
+
+    /**
+     * Resets the registry to avoid memory leak. If not reset, the size of concurrent hashmap increases exponentially.
+     * In drain mode the generational registry takes care of this without losing data.
+     * <p>
+     * {@link DeltaCounting} metrics are kept. They are registered once and held by whoever counts into them, so
+     * removing them would lose every later count. Having no last count to remember, they cost nothing more in the
+     * reporter for it.
+     *
+     * @param reported which metrics are about to be reported, and so removed
+     */
+    private void resetRegistry(final MetricFilter reported) {
+        if (generationalRegistry == null) {
+            currentRegistry.removeMatching(new MetricFilter() {
+                @Override
+                public boolean matches(String name, Metric metric) {
+                    return !(metric instanceof DeltaCounting) && reported.matches(name, metric);
+                }
+            });
+        }
+    }
+
+    /**
+     * Translates metrics to data, dropping unreportable data and applying the reporter filter, local timestamps and
+     * packing as configured.
+     */
+    private List<MetricDatum> translate(SortedMap<String, Gauge> gauges,
+                                        SortedMap<String, Counter> counters,
+                                        SortedMap<String, Histogram> histograms,
+                                        SortedMap<String, Meter> meters,
+                                        SortedMap<String, Timer> timers) {
+        Timer.Context timing = metrics.translateTime.time();
+        try {
+            int metricCount = gauges.size() + counters.size() + meters.size() + histograms.size() + timers.size();
+            List<MetricDatum> data;
+            List<PermutedRun> runs = new ArrayList<PermutedRun>();
+            if (translationExecutor != null && metricCount > translationChunkSize) {
+                data = translateInChunks(gauges, counters, histograms, meters, timers, runs);
+            } else {
+                data = translateInOrder(gauges, counters, histograms, meters, timers, runs);
+            }
+            data = limitPermutations(data, runs);
 
             // Filter out unreportable entries.
             Collection<MetricDatum> nonEmptyData = Collections2.filter(data, new Predicate<MetricDatum>() {
@@ -298,153 +1032,524 @@ public class CloudWatchReporter extends ScheduledReporter {
             // Finally, apply any user-level filter.
             Collection<MetricDatum> filtered = Collections2.filter(nonEmptyData, reporterFilter);
 
-            // Each CloudWatch API request may contain at maximum 20 datums. Break into partitions of 20.
-            Iterable<List<MetricDatum>> dataPartitions = Iterables.partition(filtered, 20);
-            List<Future<?>> cloudWatchFutures = Lists.newArrayListWithExpectedSize(filtered.size());
+            List<MetricDatum> kept = new ArrayList<MetricDatum>(filtered);
+            metrics.datums.mark(data.size());
+            metrics.filteredDatums.mark(data.size() - kept.size());
 
-            // Submit asynchronously with threads.
+            if (cardinalityLimiter != null) {
+                kept = limitCardinality(kept);
+            }
+
+            return datumPacking ? MetricDatumPacker.pack(kept) : kept;
+        } finally {
+            timing.stop();
+            metrics.observe(submitter);
+        }
+    }
+
+    private List<MetricDatum> limitCardinality(List<MetricDatum> data) {
+        List<MetricDatum> limited = cardinalityLimiter.limit(data);
+        metrics.distinctSeries.update(cardinalityLimiter.getLastDistinctSeries());
+
+        int limitedSeries = cardinalityLimiter.getLastLimitedSeries();
+        if (limitedSeries > 0) {
+            metrics.limitedSeries.mark(limitedSeries);
+            LOG.warn("About {} series exceeded the cardinality budget of namespace {} and were not sent as such.",
+                    limitedSeries, metricNamespace);
+            limited.add(new MetricDatum()
+                    .withMetricName(CARDINALITY_LIMITED)
+                    .withUnit(StandardUnit.Count)
+                    .withValue((double) limitedSeries)
+                    .withTimestamp(timestampLocal ? new Date() : null));
+        }
+        return limited;
+    }
+
+    private void submit(List<MetricDatum> data) {
+        Timer.Context timing = metrics.submitTime.time();
+        try {
+            // Each CloudWatch API request is limited in datums and size. Fill each request up to those limits.
+            List<List<MetricDatum>> dataPartitions = batcher.batch(metricNamespace, data);
+
+            // Hand off to the submitter, which sends asynchronously and tracks completion. Never wait on a response
+            // here, or one slow CloudWatch call would hold up the next tick.
             for (List<MetricDatum> dataSubset : dataPartitions) {
-                cloudWatchFutures.add(cloudWatch.putMetricDataAsync(new PutMetricDataRequest()
+                submitter.submit(new PutMetricDataRequest()
                         .withNamespace(metricNamespace)
-                        .withMetricData(dataSubset)));
+                        .withMetricData(dataSubset));
             }
+            metrics.batches.mark(dataPartitions.size());
+
+            LOG.debug("Submitted {} metric data to CloudWatch. namespace: {}", data.size(), metricNamespace);
+
+        } catch (RuntimeException e) {
+            metrics.submitErrors.mark();
+            LOG.error("Error submitting CloudWatch metrics.", e);
+        } finally {
+            timing.stop();
+        }
+    }
+
+
+    private List<MetricDatum> translateInOrder(SortedMap<String, Gauge> gauges,
+                                              SortedMap<String, Counter> counters,
+                                              SortedMap<String, Histogram> histograms,
+                                              SortedMap<String, Meter> meters,
+                                              SortedMap<String, Timer> timers,
+                                              List<PermutedRun> runs) {
+        // Just an estimate to reduce resizing.
+        List<MetricDatum> data = new ArrayList<MetricDatum>(
+                gauges.size() + counters.size() + meters.size() + 2 * histograms.size() + 2 * timers.size()
+        );
+
+        // Translate various metric classes to MetricDatum
+        for (Map.Entry<String, Gauge> gaugeEntry : gauges.entrySet()) {
+            reportGauge(gaugeEntry, data, runs);
+        }
+        for (Map.Entry<String, Counter> counterEntry : counters.entrySet()) {
+            reportCounter(counterEntry, data, runs);
+        }
+        for (Map.Entry<String, Meter> meterEntry : meters.entrySet()) {
+            reportCounter(meterEntry, data, runs);
+        }
+        for (Map.Entry<String, Histogram> histogramEntry : histograms.entrySet()) {
+            reportSampling(histogramEntry, 1.0, data, runs);
+        }
+        for (Map.Entry<String, Timer> timerEntry : timers.entrySet()) {
+            reportSampling(timerEntry, 0.000001, data, runs); // nanos -> millis
+        }
+        return data;
+    }
 
-            // Wait for CloudWatch putMetricData futures to be fulfilled.
-            for (Future<?> cloudWatchFuture : cloudWatchFutures) {
-                // We can't let an exception leak out of here, or else the reporter will cease running as described in
-                // java.util.concurrent.ScheduledExecutorService.scheduleAtFixedRate(Runnable, long, long, TimeUnit unit)
+    /**
+     * Translates chunks of each kind of metric on the {@link #translationExecutor} into lists of their own, which are
+     * then concatenated in the order {@link #translateInOrder} would produce. The state shared by the chunks, i.e. the
+     * template cache and the last polled counts, is safe for concurrent use, and each metric is in one chunk only.
+     * The permuted runs of the chunks are likewise concatenated, so that the per-report budget is applied after
+     * translation in the same order either way. A chunk which fails is left out, and counted as a translation error.
+     */
+    private List<MetricDatum> translateInChunks(SortedMap<String, Gauge> gauges,
+                                               SortedMap<String, Counter> counters,
+                                               SortedMap<String, Histogram> histograms,
+                                               SortedMap<String, Meter> meters,
+                                               SortedMap<String, Timer> timers,
+                                               List<PermutedRun> runs) {
+        List<TranslationChunk> chunks = new ArrayList<TranslationChunk>();
+        addChunks(chunks, MetricKind.GAUGE, gauges);
+        addChunks(chunks, MetricKind.COUNTER, counters);
+        addChunks(chunks, MetricKind.METER, meters);
+        addChunks(chunks, MetricKind.HISTOGRAM, histograms);
+        addChunks(chunks, MetricKind.TIMER, timers);
+
+        List<Future<List<MetricDatum>>> futures = new ArrayList<Future<List<MetricDatum>>>(chunks.size());
+        for (TranslationChunk chunk : chunks) {
+            try {
+                futures.add(translationExecutor.submit(chunk));
+            } catch (RejectedExecutionException e) {
                 try {
-                    // See what happened in case of an error.
-                    cloudWatchFuture.get();
-                } catch (Exception e) {
-                    LOG.error("Exception reporting metrics to CloudWatch. The data in this CloudWatch API request " +
-                            "may have been discarded, did not make it to CloudWatch.", e);
+                    futures.add(Futures.immediateFuture(chunk.call()));
+                } catch (RuntimeException chunkError) {
+                    futures.add(Futures.<List<MetricDatum>>immediateFailedFuture(chunkError));
                 }
             }
+        }
 
-            LOG.debug("Sent {} metric data to CloudWatch. namespace: {}", filtered.size(), metricNamespace);
+        // Chunks which ran have consumed their counters' deltas, so their data is kept even if other chunks fail or
+        // the wait is interrupted.
+        List<MetricDatum> data = new ArrayList<MetricDatum>();
+        boolean interrupted = false;
+        for (int i = 0; i < chunks.size(); i++) {
+            Future<List<MetricDatum>> future = futures.get(i);
+            List<MetricDatum> chunkData = null;
+            try {
+                if (!interrupted) {
+                    try {
+                        chunkData = future.get();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (chunkData == null) {
+                    if (future.cancel(false)) {
+                        // Never started, so nothing was consumed.
+                        continue;
+                    }
+                    chunkData = Uninterruptibles.getUninterruptibly(future);
+                }
+            } catch (ExecutionException e) {
+                Throwables.propagateIfInstanceOf(e.getCause(), Error.class);
+                metrics.translateErrors.mark();
+                LOG.error("Error translating a chunk of CloudWatch metrics. Reporting the other chunks.", e.getCause());
+                continue;
+            }
+            for (PermutedRun run : chunks.get(i).runs) {
+                runs.add(run.offset(data.size()));
+            }
+            data.addAll(chunkData);
+        }
+        if (interrupted) {
+            LOG.warn("Interrupted while translating metrics. Reporting the chunks which were already translated.");
+            Thread.currentThread().interrupt();
+        }
+        return data;
+    }
 
-        } catch (RuntimeException e) {
-            LOG.error("Error marshalling CloudWatch metrics.", e);
+    private <T extends Metric> void addChunks(List<TranslationChunk> chunks, MetricKind kind,
+                                              SortedMap<String, T> metrics) {
+        List<Map.Entry<String, T>> entries = new ArrayList<Map.Entry<String, T>>(metrics.entrySet());
+        for (List<Map.Entry<String, T>> partition : Lists.partition(entries, translationChunkSize)) {
+            chunks.add(new TranslationChunk(kind, partition));
         }
     }
 
+    private enum MetricKind {
+        GAUGE, COUNTER, METER, HISTOGRAM, TIMER
+    }
+
+    /**
+     * Translates a run of metrics of one kind, just as {@link #translateInOrder} does.
+     */
+    private class TranslationChunk implements Callable<List<MetricDatum>> {
+
+        final MetricKind kind;
+        final List<? extends Map.Entry<String, ? extends Metric>> entries;
+        final List<PermutedRun> runs = new ArrayList<PermutedRun>();
+
+        TranslationChunk(MetricKind kind, List<? extends Map.Entry<String, ? extends Metric>> entries) {
+            this.kind = kind;
+            this.entries = entries;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public List<MetricDatum> call() {
+            List<MetricDatum> data = new ArrayList<MetricDatum>(2 * entries.size());
+            for (Map.Entry<String, ? extends Metric> entry : entries) {
+                switch (kind) {
+                    case GAUGE:
+                        reportGauge((Map.Entry<String, Gauge>) entry, data, runs);
+                        break;
+                    case COUNTER:
+                    case METER:
+                        reportCounter((Map.Entry<String, ? extends Counting>) entry, data, runs);
+                        break;
+                    case HISTOGRAM:
+                        reportSampling((Map.Entry<String, ? extends Sampling>) entry, 1.0, data, runs);
+                        break;
+                    default:
+                        reportSampling((Map.Entry<String, ? extends Sampling>) entry, 0.000001, data, runs); // nanos -> millis
+                }
+            }
+            return data;
+        }
+    }
 
     void reportGauge(Map.Entry<String, Gauge> gaugeEntry, List<MetricDatum> data) {
+        reportGauge(gaugeEntry, data, null);
+    }
+
+    /**
+     * @param runs to record the datums of a metric with permutations in, for the per-report budget, or null
+     */
+    private void reportGauge(Map.Entry<String, Gauge> gaugeEntry, List<MetricDatum> data, List<PermutedRun> runs) {
         Gauge gauge = gaugeEntry.getValue();
 
-        Object valueObj = gauge.getValue();
-        if (valueObj == null) {
+        double value;
+        if (gauge instanceof DoubleGauge) {
+            value = ((DoubleGauge) gauge).doubleValue();
+        } else if (gauge instanceof LongGauge) {
+            value = ((LongGauge) gauge).longValue();
+        } else {
+            Object valueObj = gauge.getValue();
+            if (valueObj instanceof Number) {
+                value = ((Number) valueObj).doubleValue();
+            } else if (valueObj != null && NumberUtils.isNumber(valueObj.toString())) {
+                value = NumberUtils.createNumber(valueObj.toString()).doubleValue();
+            } else {
+                return;
+            }
+        }
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            // CloudWatch rejects these.
             return;
         }
 
-        String valueStr = valueObj.toString();
-        if (NumberUtils.isNumber(valueStr)) {
-            final Number value = NumberUtils.createNumber(valueStr);
-
-            String nameAndDimensions = StringUtils.substringBeforeLast(gaugeEntry.getKey(), NAME_STORAGE_RESOLUTION_TOKEN);
-            String resolutionAndTimestamp = StringUtils.substringAfterLast(gaugeEntry.getKey(), NAME_STORAGE_RESOLUTION_TOKEN);
-            final String resolution = StringUtils.substringBeforeLast(resolutionAndTimestamp, NAME_TIMESTAMP_TOKEN);
-            final String timestamp = StringUtils.substringAfterLast(resolutionAndTimestamp, NAME_TIMESTAMP_TOKEN);
+        DatumTemplates templates = templates(gaugeEntry.getKey(), MetricKey.Kind.GAUGE);
+        if (templates == null) {
+            return;
+        }
 
-            DemuxedKey key = new DemuxedKey(appendGlobalDimensions(nameAndDimensions));
-            Iterables.addAll(data, key.newDatums(new Function<MetricDatum, MetricDatum>() {
-                @Override
-                public MetricDatum apply(MetricDatum datum) {
-                    return datum.withValue(value.doubleValue())
-                            .withStorageResolution(Integer.valueOf(resolution))
-                            .withTimestamp(new Date(Long.parseLong(timestamp)));
-                }
-            }));
+        MetricKey key = templates.key;
+        List<DemuxedKey.Template> permutations = permutations(templates);
+        int from = data.size();
+        Date timestamp = toDate(MetricKey.timestampOf(gaugeEntry.getKey()));
+        for (DemuxedKey.Template template : permutations) {
+            data.add(template.newDatum()
+                    .withValue(value)
+                    .withUnit(key.getUnit())
+                    .withStorageResolution(key.getStorageResolution())
+                    .withTimestamp(timestamp));
         }
+        recordPermuted(templates, from, data.size(), runs);
     }
 
-    void reportCounter(Map.Entry<String, ? extends Counting> entry, List<MetricDatum> data) {
+    void reportCounter(Map.Entry<String, ? extends Counting> entry, List<MetricDatum> data, List<PermutedRun> runs) {
         Counting metric = entry.getValue();
-        final long diff = diffLast(metric);
+        long diff = diffLast(entry.getKey(), metric);
         if (diff == 0) {
             // Don't submit metrics that have not changed. No reason to keep these alive. Also saves on CloudWatch
             // costs.
             return;
         }
 
-        String groupedName = entry.getKey();
-        String counterName;
-        final String timestamp;
-        if (StringUtils.contains(groupedName, NAME_SAMPLING_TOKEN)) {
-            counterName = StringUtils.substringBetween(groupedName, NAME_COUNTER_TOKEN, NAME_SAMPLING_TOKEN);
-            timestamp = StringUtils.substringBetween(groupedName, NAME_TIMESTAMP_TOKEN, NAME_UNIT_TOKEN);
-        } else {
-            counterName = StringUtils.substringBetween(groupedName, NAME_COUNTER_TOKEN, NAME_METRIC_DIMENSION_SEPARATOR);
-            timestamp = StringUtils.substringBetween(groupedName, NAME_TIMESTAMP_TOKEN, NAME_UNIT_TOKEN);
+        DatumTemplates templates = templates(entry.getKey(), MetricKey.Kind.COUNTER);
+        if (templates == null) {
+            return;
+        }
+
+        MetricKey key = templates.key;
+        List<DemuxedKey.Template> permutations = permutations(templates);
+        int from = data.size();
+        String unit = key.getUnit() != null ? key.getUnit() : StandardUnit.Count.toString();
+        Date timestamp = toDate(MetricKey.timestampOf(entry.getKey()));
+        for (DemuxedKey.Template template : permutations) {
+            data.add(template.newDatum()
+                    .withValue((double) diff)
+                    .withUnit(unit)
+                    .withStorageResolution(key.getStorageResolution())
+                    .withTimestamp(timestamp));
         }
+        recordPermuted(templates, from, data.size(), runs);
+    }
 
-        if (counterName == null || counterName.equals("null")) {
+    /**
+     * @param rescale the submitted sum by this multiplier. 1.0 is the identity (no rescale).
+     */
+    void reportSampling(Map.Entry<String, ? extends Sampling> entry, double rescale, List<MetricDatum> data,
+                        List<PermutedRun> runs) {
+        DatumTemplates templates = templates(entry.getKey(), MetricKey.Kind.SAMPLING);
+        if (templates == null) {
             return;
         }
 
-        String dimensions = StringUtils.substringBetween(groupedName, NAME_METRIC_DIMENSION_SEPARATOR, NAME_STORAGE_RESOLUTION_TOKEN);
-        final String resolution = StringUtils.substringBetween(groupedName, NAME_STORAGE_RESOLUTION_TOKEN, NAME_METRIC_DIMENSION_SEPARATOR);
+        Sampling metric = entry.getValue();
+        Snapshot snapshot = metric.getSnapshot();
+        if (snapshot instanceof LogBucketReservoir.BucketSnapshot) {
+            reportBuckets(templates, toDate(MetricKey.timestampOf(entry.getKey())),
+                    (LogBucketReservoir.BucketSnapshot) snapshot, rescale, data, runs);
+            return;
+        }
 
-        String nameAndDimensions = counterName + NAME_TOKEN_DELIMITER + dimensions;
+        double sum;
+        double sampleCount;
+        if (snapshot instanceof IntervalStatsReservoir.IntervalSnapshot) {
+            // Already summed, and exactly this interval's.
+            IntervalStatsReservoir.IntervalSnapshot interval = (IntervalStatsReservoir.IntervalSnapshot) snapshot;
+            sum = interval.getSum();
+            sampleCount = interval.getCount();
+        } else if (generationalRegistry != null) {
+            // Never reset, and never removed in drain mode, so every report would send all its samples again.
+            if (warnedCumulativeSampling.compareAndSet(false, true)) {
+                LOG.warn("Not reporting {}, nor any other histogram or timer of namespace {} which keeps cumulative "
+                        + "samples, as drain mode would send them again in every report. Create them through the "
+                        + "GenerationalMetricRegistry, or give them an IntervalStatsReservoir or LogBucketReservoir.",
+                        entry.getKey(), metricNamespace);
+            }
+            return;
+        } else {
+            sum = sum(snapshot.getValues());
+            sampleCount = snapshot.size();
+        }
+        StatisticSet statisticSet = new StatisticSet()
+                .withSum(sum * rescale)
+                .withSampleCount(sampleCount)
+                .withMinimum((double) snapshot.getMin() * rescale)
+                .withMaximum((double) snapshot.getMax() * rescale);
 
-        DemuxedKey key = new DemuxedKey(appendGlobalDimensions(nameAndDimensions));
+        MetricKey key = templates.key;
+        List<DemuxedKey.Template> permutations = permutations(templates);
+        int from = data.size();
+        Date timestamp = toDate(MetricKey.timestampOf(entry.getKey()));
+        for (DemuxedKey.Template template : permutations) {
+            data.add(template.newDatum()
+                    .withStatisticValues(statisticSet)
+                    .withUnit(key.getUnit())
+                    .withStorageResolution(key.getStorageResolution())
+                    .withTimestamp(timestamp));
+        }
+        recordPermuted(templates, from, data.size(), runs);
+    }
 
-        Iterables.addAll(data, key.newDatums(new Function<MetricDatum, MetricDatum>() {
-            @Override
-            public MetricDatum apply(MetricDatum datum) {
-                return datum.withValue((double) diff)
-                        .withUnit(StandardUnit.Count)
-                        .withStorageResolution(Integer.valueOf(resolution))
-                        .withTimestamp(new Date(Long.parseLong(timestamp)));
+    /**
+     * Sends the buckets as Values/Counts, at most {@link MetricDatumPacker#MAX_VALUES_PER_DATUM} per datum, so that
+     * CloudWatch can compute percentiles.
+     */
+    private void reportBuckets(DatumTemplates templates, Date timestamp, LogBucketReservoir.BucketSnapshot snapshot,
+                               double rescale, List<MetricDatum> data, List<PermutedRun> runs) {
+        double[] bucketValues = snapshot.getBucketValues();
+        long[] bucketCounts = snapshot.getBucketCounts();
+        MetricKey key = templates.key;
+        List<DemuxedKey.Template> permutations = permutations(templates);
+        int first = data.size();
+        for (int from = 0; from < bucketValues.length; from += MetricDatumPacker.MAX_VALUES_PER_DATUM) {
+            int to = Math.min(bucketValues.length, from + MetricDatumPacker.MAX_VALUES_PER_DATUM);
+            List<Double> values = new ArrayList<Double>(to - from);
+            List<Double> counts = new ArrayList<Double>(to - from);
+            for (int i = from; i < to; i++) {
+                values.add(bucketValues[i] * rescale);
+                counts.add((double) bucketCounts[i]);
+            }
+            for (DemuxedKey.Template template : permutations) {
+                data.add(template.newDatum()
+                        .withValues(values)
+                        .withCounts(counts)
+                        .withUnit(key.getUnit())
+                        .withStorageResolution(key.getStorageResolution())
+                        .withTimestamp(timestamp));
             }
-        }));
+        }
+        recordPermuted(templates, first, data.size(), runs);
     }
 
     /**
-     * @param rescale the submitted sum by this multiplier. 1.0 is the identity (no rescale).
+     * @return the templates to report, within the per-metric permutation budget
      */
-    void reportSampling(Map.Entry<String, ? extends Sampling> entry, double rescale, List<MetricDatum> data) {
-        Sampling metric = entry.getValue();
-        Snapshot snapshot = metric.getSnapshot();
-        double scaledSum = sum(snapshot.getValues()) * rescale;
-        final StatisticSet statisticSet = new StatisticSet()
-                .withSum(scaledSum)
-                .withSampleCount((double) snapshot.size())
-                .withMinimum((double) snapshot.getMin() * rescale)
-                .withMaximum((double) snapshot.getMax() * rescale);
+    private List<DemuxedKey.Template> permutations(DatumTemplates templates) {
+        if (templates.limited) {
+            metrics.metricPermutationsLimited.mark();
+        }
+        return templates.templates;
+    }
 
-        String groupedName = entry.getKey();
-        String samplingName = StringUtils.substringBetween(groupedName, NAME_SAMPLING_TOKEN, NAME_METRIC_DIMENSION_SEPARATOR);
-        String dimensions = StringUtils.substringBetween(groupedName, NAME_METRIC_DIMENSION_SEPARATOR, NAME_STORAGE_RESOLUTION_TOKEN);
-        final String resolution = StringUtils.substringBetween(groupedName, NAME_STORAGE_RESOLUTION_TOKEN, NAME_METRIC_DIMENSION_SEPARATOR);
-        final String timestamp = StringUtils.substringBetween(groupedName, NAME_TIMESTAMP_TOKEN, NAME_UNIT_TOKEN);
-        final String unit = StringUtils.substringAfterLast(groupedName, NAME_UNIT_TOKEN);
+    private static void recordPermuted(DatumTemplates templates, int from, int to, List<PermutedRun> runs) {
+        if (runs != null && templates.templates.size() > 1 && to > from) {
+            runs.add(new PermutedRun(templates, from, to));
+        }
+    }
 
-        String nameAndDimensions = samplingName + NAME_TOKEN_DELIMITER + dimensions;
+    /**
+     * Applies the per-report budget to the metrics with permutations, in the order of the data, so that the same
+     * metrics are cut whether or not the report was translated in chunks.
+     *
+     * @param runs the datums of each metric with more than one permutation, in the order of the data
+     * @return the data within budget, which is the same list if nothing was over
+     */
+    private List<MetricDatum> limitPermutations(List<MetricDatum> data, List<PermutedRun> runs) {
+        long permuted = 0;
+        for (PermutedRun run : runs) {
+            permuted += run.templates.templates.size();
+        }
+        if (permuted <= maxPermutedDatumsPerReport) {
+            return data;
+        }
 
-        DemuxedKey key = new DemuxedKey(appendGlobalDimensions(nameAndDimensions));
-        Iterables.addAll(data, key.newDatums(new Function<MetricDatum, MetricDatum>() {
-            @Override
-            public MetricDatum apply(MetricDatum datum) {
-                return datum.withStatisticValues(statisticSet).withUnit(unit)
-                        .withStorageResolution(Integer.valueOf(resolution))
-                        .withTimestamp(new Date(Long.parseLong(timestamp)));
+        List<MetricDatum> kept = new ArrayList<MetricDatum>(data.size());
+        permuted = 0;
+        int next = 0;
+        boolean warned = false;
+        for (PermutedRun run : runs) {
+            kept.addAll(data.subList(next, run.from));
+            next = run.to;
+            List<DemuxedKey.Template> permutations = run.templates.templates;
+            if (permuted + permutations.size() <= maxPermutedDatumsPerReport) {
+                permuted += permutations.size();
+                kept.addAll(data.subList(run.from, run.to));
+                continue;
             }
-        }));
+
+            metrics.reportPermutationsLimited.mark();
+            if (!warned) {
+                warned = true;
+                LOG.warn("Permuted datums exceeded the budget of {} for this report of namespace {}. Applying {} to "
+                        + "the rest, starting with {}.", maxPermutedDatumsPerReport, metricNamespace,
+                        permutationPolicy, run.templates.key);
+            }
+            if (permutationPolicy == PermutationPolicy.TRUNCATE) {
+                List<DemuxedKey.Template> truncated = run.templates.truncated;
+                permuted += truncated.size();
+                for (MetricDatum datum : data.subList(run.from, run.to)) {
+                    if (isOf(datum, truncated)) {
+                        kept.add(datum);
+                    }
+                }
+            }
+        }
+        kept.addAll(data.subList(next, data.size()));
+        return kept;
     }
 
+    private static boolean isOf(MetricDatum datum, List<DemuxedKey.Template> templates) {
+        for (DemuxedKey.Template template : templates) {
+            if (template.metricName.equals(datum.getMetricName())
+                    && template.getDimensions().equals(datum.getDimensions())) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-    private long diffLast(Counting metric) {
-        long count = metric.getCount();
+    /**
+     * The datums translated from one metric with more than one permutation, as a range of the translated data.
+     */
+    private static class PermutedRun {
+
+        final DatumTemplates templates;
+        final int from;
+        final int to;
 
-        Long lastCount = lastPolledCounts.get(metric);
-        lastPolledCounts.put(metric, count);
+        PermutedRun(DatumTemplates templates, int from, int to) {
+            this.templates = templates;
+            this.from = from;
+            this.to = to;
+        }
 
-        if (lastCount == null) {
-            lastCount = 0L;
+        PermutedRun offset(int by) {
+            return new PermutedRun(templates, from + by, to + by);
         }
-        return count - lastCount;
+    }
+
+    /**
+     * Timestamped names are a new registry name for every interval of the same series, so templates are cached by the
+     * name without its timestamp, and carry none. Callers stamp datums with {@link MetricKey#timestampOf(String)}.
+     *
+     * @return cached templates for the registry name, or null if the name is not understood
+     */
+    private DatumTemplates templates(String registryName, MetricKey.Kind kind) {
+        String name = MetricKey.withoutTimestamp(registryName);
+        DatumTemplates templates = templateCache.getIfPresent(name);
+        if (templates != null && templates.key.getKind() == kind) {
+            return templates;
+        }
+
+        MetricKey key;
+        switch (kind) {
+            case COUNTER:
+                key = MetricKey.forCounter(name);
+                break;
+            case SAMPLING:
+                key = MetricKey.forSampling(name);
+                break;
+            default:
+                key = MetricKey.forGauge(name);
+        }
+        if (key == null) {
+            LOG.debug("Skipping metric with unrecognized name: {}", name);
+            return null;
+        }
+
+        templates = new DatumTemplates(key, globalDimensions, maxPermutationsPerMetric, permutationPolicy);
+        templateCache.put(name, templates);
+        return templates;
+    }
+
+
+    private long diffLast(String name, Counting metric) {
+        if (metric instanceof DeltaCounting) {
+            // Keeps its own interval count, so there is nothing to remember.
+            return ((DeltaCounting) metric).sumThenReset();
+        }
+        long count = metric.getCount();
+        return count - lastPolledCounts.swap(name, metric, count);
     }
 
     private long sum(long[] values) {
@@ -454,12 +1559,52 @@ public class CloudWatchReporter extends ScheduledReporter {
     }
 
 
-    private String appendGlobalDimensions(String metric) {
-        if (StringUtils.isBlank(StringUtils.trim(dimensions))) {
-            return metric;
-        } else {
-            return metric + NAME_TOKEN_DELIMITER + dimensions;
-        }
+    private static Date toDate(Long timestamp) {
+        return timestamp == null ? null : new Date(timestamp);
     }
 
+
+    /**
+     * The outcome of a graceful {@link #stop(long, TimeUnit)}, counted over the reporter's submitter, which other
+     * reporters may share.
+     */
+    public static class FlushResult {
+
+        private final long flushedDatums;
+        private final long abandonedDatums;
+        private final boolean complete;
+
+        FlushResult(long flushedDatums, long abandonedDatums, boolean complete) {
+            this.flushedDatums = flushedDatums;
+            this.abandonedDatums = abandonedDatums;
+            this.complete = complete;
+        }
+
+        /**
+         * @return datums which CloudWatch accepted between the start of the stop and the deadline
+         */
+        public long getFlushedDatums() {
+            return flushedDatums;
+        }
+
+        /**
+         * @return datums which failed, were dropped or spooled during the stop, or were still unsent at the deadline
+         */
+        public long getAbandonedDatums() {
+            return abandonedDatums;
+        }
+
+        /**
+         * @return true if the submitter was idle by the deadline
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+        @Override
+        public String toString() {
+            return "Flushed " + flushedDatums + " metric data, abandoned " + abandonedDatums
+                    + (complete ? "." : ", timed out.");
+        }
+    }
 }
@@ -26,7 +26,11 @@ import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
 import com.google.common.base.Strings;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.SortedMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -45,11 +49,39 @@ public class CloudWatchReporterBuilder {
     private MetricFilter filter;
     private String dimensions;
     private Boolean timestampLocal;
+    private Integer templateCacheSize;
+    private Boolean datumPacking;
+    private Integer maxDatumsPerRequest;
+    private Integer maxRequestBytes;
+    private Integer maxConcurrentRequests;
+    private Integer maxQueuedRequests;
+    private CloudWatchSubmitter.OverflowPolicy overflowPolicy;
+    private Long overflowBlockTimeoutMillis;
+    private RetryPolicy retryPolicy;
+    private PutMetricDataRateLimiter rateLimiter;
+    private CloudWatchSubmissionEngine engine;
+    private File spoolDirectory;
+    private Long spoolMaxBytes;
 
     private Predicate<MetricDatum> reporterFilter;
 
+    private ExecutorService translationExecutor;
+    private Integer translationChunkSize;
+
+    private CardinalityLimiter cardinalityLimiter;
+    private Integer maxPermutationsPerMetric;
+    private Integer maxPermutedDatumsPerReport;
+    private CloudWatchReporter.PermutationPolicy permutationPolicy;
+    private Long maxTickJitterMillis;
+    private Boolean shutdownHook;
+    private Long stopTimeoutMillis;
+
+    private String reporterMetricsNamespace;
+    private Boolean reporterMetricsJmx;
+
     /**
-     * @param registry of metrics for CloudWatchReporter to submit
+     * @param registry of metrics for CloudWatchReporter to submit. A {@link GenerationalMetricRegistry} puts the
+     *                 reporter into drain mode.
      * @return this (for chaining)
      */
     public CloudWatchReporterBuilder withRegistry(MetricRegistry registry) {
@@ -104,6 +136,132 @@ public class CloudWatchReporterBuilder {
         return this;
     }
 
+    /**
+     * @param datumPacking whether or not to pack datums of the same series and timestamp bucket into Values/Counts
+     *                     arrays or a merged StatisticSet before submission
+     * @return this (for chaining)
+     */
+    public CloudWatchReporterBuilder withDatumPacking(Boolean datumPacking) {
+        this.datumPacking = datumPacking;
+        return this;
+    }
+
+    /**
+     * @param maxDatumsPerRequest most datums to put in one PutMetricData request
+     * @return this (for chaining)
+     */
+    public CloudWatchReporterBuilder withMaxDatumsPerRequest(Integer maxDatumsPerRequest) {
+        this.maxDatumsPerRequest = maxDatumsPerRequest;
+        return this;
+    }
+
+    /**
+     * @param maxRequestBytes most bytes a PutMetricData request should take, as estimated from its datums
+     * @return this (for chaining)
+     */
+    public CloudWatchReporterBuilder withMaxRequestBytes(Integer maxRequestBytes) {
+        this.maxRequestBytes = maxRequestBytes;
+        return this;
+    }
+
+    /**
+     * @param maxConcurrentRequests most PutMetricData requests in flight at once
+     * @return this (for chaining)
+     */
+    public CloudWatchReporterBuilder withMaxConcurrentRequests(Integer maxConcurrentRequests) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        return this;
+    }
+
+    /**
+     * @param maxQueuedRequests most PutMetricData requests waiting for one of the concurrent slots
+     * @return this (for chaining)
+     */
+    public CloudWatchReporterBuilder withMaxQueuedRequests(Integer maxQueuedRequests) {
+        this.maxQueuedRequests = maxQueuedRequests;
+        return this;
+    }
+
+    /**
+     * @param overflowPolicy what to do with a request when the submission queue is full
+     * @return this (for chaining)
+     */
+    public CloudWatchReporterBuilder withOverflowPolicy(CloudWatchSubmitter.OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+        return this;
+    }
+
+    /**
+     * @param overflowBlockTimeoutMillis how long {@link CloudWatchSubmitter.OverflowPolicy#BLOCK} waits for room in the
+     *                                   submission queue
+     * @return this (for chaining)
+     */
+    public CloudWatchReporterBuilder withOverflowBlockTimeoutMillis(Long overflowBlockTimeoutMillis) {
+        this.overflowBlockTimeoutMillis = overflowBlockTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @param retryPolicy when to send failed PutMetricData requests again. Defaults to a {@link RetryPolicy} with its
+     *                    default settings, paid for from {@link RetryBudget#global()}.
+     * @return this (for chaining)
+     */
+    public CloudWatchReporterBuilder withRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    /**
+     * @param engine (optional) to register the built reporter with, in which case the reporter sends through the
+     *               engine's submitter and must not be started itself. The client and the submission settings of this
+     *               builder are then ignored.
+     * @return this (for chaining)
+     */
+    public CloudWatchReporterBuilder withEngine(CloudWatchSubmissionEngine engine) {
+        this.engine = engine;
+        return this;
+    }
+
+    /**
+     * @param rateLimiter to pace PutMetricData requests with. Share one among all reporters sending to the same
+     *                    account. Defaults to {@link PutMetricDataRateLimiter#global()}.
+     * @return this (for chaining)
+     */
+    public CloudWatchReporterBuilder withRateLimiter(PutMetricDataRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+        return this;
+    }
+
+    /**
+     * @param spoolDirectory (optional) directory in which to spool PutMetricData requests that could not be delivered,
+     *                       so that they survive CloudWatch outages and restarts. Each reporter needs a directory of
+     *                       its own. No spooling by default.
+     * @return this (for chaining)
+     */
+    public CloudWatchReporterBuilder withSpoolDirectory(File spoolDirectory) {
+        this.spoolDirectory = spoolDirectory;
+        return this;
+    }
+
+    /**
+     * @param spoolMaxBytes most disk space the spool may take up. The oldest data is discarded beyond that.
+     * @return this (for chaining)
+     */
+    public CloudWatchReporterBuilder withSpoolMaxBytes(Long spoolMaxBytes) {
+        this.spoolMaxBytes = spoolMaxBytes;
+        return this;
+    }
+
+    /**
+     * @param templateCacheSize number of series, i.e. registry names less any timestamp, for which the reporter
+     *                          keeps parsed names, dimensions and their permutations between reports
+     * @return this (for chaining)
+     */
+    public CloudWatchReporterBuilder withTemplateCacheSize(Integer templateCacheSize) {
+        this.templateCacheSize = templateCacheSize;
+        return this;
+    }
+
 
     /**
      * This filter is applied right before submission to CloudWatch. This filter can access decoded metric name elements
@@ -125,6 +283,120 @@ public class CloudWatchReporterBuilder {
         return this;
     }
 
+    /**
+     * @param translationExecutor on which to translate large registries in chunks. See
+     *                            {@link CloudWatchReporter#withTranslationExecutor(ExecutorService)}.
+     * @return this (for chaining)
+     */
+    public CloudWatchReporterBuilder withTranslationExecutor(ExecutorService translationExecutor) {
+        this.translationExecutor = translationExecutor;
+        return this;
+    }
+
+    /**
+     * @param translationChunkSize number of metrics to translate per task on the translation executor
+     * @return this (for chaining)
+     */
+    public CloudWatchReporterBuilder withTranslationChunkSize(Integer translationChunkSize) {
+        this.translationChunkSize = translationChunkSize;
+        return this;
+    }
+
+    /**
+     * @param cardinalityLimiter (optional) to cap the distinct series sent at once with. See
+     *                           {@link CloudWatchReporter#withCardinalityLimiter(CardinalityLimiter)}. Each reporter
+     *                           needs one of its own. No limit by default.
+     * @return this (for chaining)
+     */
+    public CloudWatchReporterBuilder withCardinalityLimiter(CardinalityLimiter cardinalityLimiter) {
+        this.cardinalityLimiter = cardinalityLimiter;
+        return this;
+    }
+
+    /**
+     * @param maxPermutationsPerMetric most name and dimension permutations of any one metric. See
+     *                                 {@link CloudWatchReporter#withMaxPermutationsPerMetric(int)}.
+     * @return this (for chaining)
+     */
+    public CloudWatchReporterBuilder withMaxPermutationsPerMetric(Integer maxPermutationsPerMetric) {
+        this.maxPermutationsPerMetric = maxPermutationsPerMetric;
+        return this;
+    }
+
+    /**
+     * @param maxPermutedDatumsPerReport most datums per report from metrics with permutations. See
+     *                                   {@link CloudWatchReporter#withMaxPermutedDatumsPerReport(int)}.
+     * @return this (for chaining)
+     */
+    public CloudWatchReporterBuilder withMaxPermutedDatumsPerReport(Integer maxPermutedDatumsPerReport) {
+        this.maxPermutedDatumsPerReport = maxPermutedDatumsPerReport;
+        return this;
+    }
+
+    /**
+     * @param permutationPolicy for metrics beyond a permutation budget: truncate to the most aggregated permutation
+     *                          and the full set, or reject. Defaults to truncate.
+     * @return this (for chaining)
+     */
+    public CloudWatchReporterBuilder withPermutationPolicy(CloudWatchReporter.PermutationPolicy permutationPolicy) {
+        this.permutationPolicy = permutationPolicy;
+        return this;
+    }
+
+    /**
+     * @param maxTickJitterMillis bound on the per-host offset of ticks when started with
+     *                            {@link CloudWatchReporter#startAligned(int)}. Defaults to
+     *                            {@value CloudWatchReporter#DEFAULT_MAX_TICK_JITTER_MILLIS}.
+     * @return this (for chaining)
+     */
+    public CloudWatchReporterBuilder withMaxTickJitterMillis(Long maxTickJitterMillis) {
+        this.maxTickJitterMillis = maxTickJitterMillis;
+        return this;
+    }
+
+    /**
+     * @param shutdownHook whether to register a JVM shutdown hook which stops the reporter gracefully, flushing one
+     *                     last report within the stop timeout. Stopping the reporter removes the hook. Defaults to
+     *                     false.
+     * @return this (for chaining)
+     */
+    public CloudWatchReporterBuilder withShutdownHook(Boolean shutdownHook) {
+        this.shutdownHook = shutdownHook;
+        return this;
+    }
+
+    /**
+     * @param stopTimeoutMillis deadline for the final flush of the shutdown hook, see
+     *                          {@link CloudWatchReporter#stop(long, TimeUnit)}. Defaults to
+     *                          {@value CloudWatchReporter#DEFAULT_STOP_TIMEOUT_MILLIS}.
+     * @return this (for chaining)
+     */
+    public CloudWatchReporterBuilder withStopTimeoutMillis(Long stopTimeoutMillis) {
+        this.stopTimeoutMillis = stopTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @param reporterMetricsNamespace (optional) namespace to which to report what the reporter itself is doing, its
+     *                                 {@link CloudWatchReporter#getMetrics()}, after each report. Sent through the
+     *                                 same submitter and with the same global dimensions. Not reported by default.
+     * @return this (for chaining)
+     */
+    public CloudWatchReporterBuilder withReporterMetricsNamespace(String reporterMetricsNamespace) {
+        this.reporterMetricsNamespace = reporterMetricsNamespace;
+        return this;
+    }
+
+    /**
+     * @param reporterMetricsJmx whether to expose what the reporter itself is doing as MBeans, in the domain
+     *                           "metrics-cloudwatch." + namespace, until the reporter is stopped. Defaults to false.
+     * @return this (for chaining)
+     */
+    public CloudWatchReporterBuilder withReporterMetricsJmx(Boolean reporterMetricsJmx) {
+        this.reporterMetricsJmx = reporterMetricsJmx;
+        return this;
+    }
+
     /**
      * @return a new CloudWatchReporter instance based on the state of this builder
      */
@@ -137,16 +409,108 @@ public class CloudWatchReporterBuilder {
         MetricFilter resolvedFilter = null != filter ? filter : MetricFilter.ALL;
         String resolvedDimensions = null != dimensions ? dimensions : null;
         Boolean resolvedTimestampLocal = null != timestampLocal ? timestampLocal : false;
+        Boolean resolvedDatumPacking = null != datumPacking ? datumPacking : false;
+        Integer resolvedTranslationChunkSize = null != translationChunkSize ? translationChunkSize : CloudWatchReporter.DEFAULT_TRANSLATION_CHUNK_SIZE;
+        Integer resolvedMaxDatumsPerRequest = null != maxDatumsPerRequest ? maxDatumsPerRequest : CloudWatchReporter.DEFAULT_MAX_DATUMS_PER_REQUEST;
+        Integer resolvedMaxRequestBytes = null != maxRequestBytes ? maxRequestBytes : CloudWatchReporter.DEFAULT_MAX_REQUEST_BYTES;
+        Integer resolvedTemplateCacheSize = null != templateCacheSize ? templateCacheSize : CloudWatchReporter.DEFAULT_TEMPLATE_CACHE_SIZE;
+        Integer resolvedMaxPermutationsPerMetric = null != maxPermutationsPerMetric ? maxPermutationsPerMetric : CloudWatchReporter.DEFAULT_MAX_PERMUTATIONS_PER_METRIC;
+        Integer resolvedMaxPermutedDatumsPerReport = null != maxPermutedDatumsPerReport ? maxPermutedDatumsPerReport : CloudWatchReporter.DEFAULT_MAX_PERMUTED_DATUMS_PER_REPORT;
+        CloudWatchReporter.PermutationPolicy resolvedPermutationPolicy = null != permutationPolicy ? permutationPolicy : CloudWatchReporter.DEFAULT_PERMUTATION_POLICY;
+        Long resolvedMaxTickJitterMillis = null != maxTickJitterMillis ? maxTickJitterMillis : CloudWatchReporter.DEFAULT_MAX_TICK_JITTER_MILLIS;
+        Boolean resolvedShutdownHook = null != shutdownHook ? shutdownHook : false;
+        Long resolvedStopTimeoutMillis = null != stopTimeoutMillis ? stopTimeoutMillis : CloudWatchReporter.DEFAULT_STOP_TIMEOUT_MILLIS;
+
+        Boolean resolvedReporterMetricsJmx = null != reporterMetricsJmx ? reporterMetricsJmx : false;
 
         Predicate<MetricDatum> resolvedReporterFilter = null != reporterFilter ? reporterFilter : Predicates.<MetricDatum>alwaysTrue();
 
-        return new CloudWatchReporter(
+        CloudWatchSubmitter resolvedSubmitter = null != engine ? engine.getSubmitter() : buildSubmitter();
+
+        CloudWatchReporter reporter = new CloudWatchReporter(
                 registry,
                 namespace,
                 resolvedFilter,
                 client)
                 .withDimensions(resolvedDimensions)
                 .withReporterFilter(resolvedReporterFilter)
-                .withTimestampLocal(resolvedTimestampLocal);
+                .withTimestampLocal(resolvedTimestampLocal)
+                .withTemplateCacheSize(resolvedTemplateCacheSize)
+                .withDatumPacking(resolvedDatumPacking)
+                .withMaxDatumsPerRequest(resolvedMaxDatumsPerRequest)
+                .withMaxRequestBytes(resolvedMaxRequestBytes)
+                .withTranslationExecutor(translationExecutor)
+                .withTranslationChunkSize(resolvedTranslationChunkSize)
+                .withCardinalityLimiter(cardinalityLimiter)
+                .withMaxPermutationsPerMetric(resolvedMaxPermutationsPerMetric)
+                .withMaxPermutedDatumsPerReport(resolvedMaxPermutedDatumsPerReport)
+                .withPermutationPolicy(resolvedPermutationPolicy)
+                .withMaxTickJitterMillis(resolvedMaxTickJitterMillis)
+                .withSubmitter(resolvedSubmitter);
+        if (null != engine) {
+            engine.register(reporter);
+        }
+
+        if (null != reporterMetricsNamespace) {
+            CloudWatchReporter reporterMetricsReporter = new CloudWatchReporter(
+                    reporter.getMetrics().getRegistry(),
+                    reporterMetricsNamespace,
+                    MetricFilter.ALL,
+                    client)
+                    .withDimensions(resolvedDimensions)
+                    .withMaxDatumsPerRequest(resolvedMaxDatumsPerRequest)
+                    .withMaxRequestBytes(resolvedMaxRequestBytes)
+                    .withSubmitter(resolvedSubmitter);
+            if (null != engine) {
+                engine.register(reporterMetricsReporter);
+            } else {
+                reporter.withReporterMetricsReporter(reporterMetricsReporter);
+            }
+        }
+        if (resolvedReporterMetricsJmx) {
+            reporter.getMetrics().startJmx("metrics-cloudwatch." + namespace);
+        }
+        if (resolvedShutdownHook) {
+            reporter.addShutdownHook(resolvedStopTimeoutMillis);
+        }
+        return reporter;
+    }
+
+    /**
+     * @return a submitter over the client, or null if there is no client
+     */
+    private CloudWatchSubmitter buildSubmitter() {
+        if (null == client) {
+            return null;
+        }
+
+        Integer resolvedMaxConcurrentRequests = null != maxConcurrentRequests ? maxConcurrentRequests : CloudWatchSubmitter.DEFAULT_MAX_CONCURRENT_REQUESTS;
+        Integer resolvedMaxQueuedRequests = null != maxQueuedRequests ? maxQueuedRequests : CloudWatchSubmitter.DEFAULT_MAX_QUEUED_REQUESTS;
+        CloudWatchSubmitter.OverflowPolicy resolvedOverflowPolicy = null != overflowPolicy ? overflowPolicy : CloudWatchSubmitter.DEFAULT_OVERFLOW_POLICY;
+        Long resolvedOverflowBlockTimeoutMillis = null != overflowBlockTimeoutMillis ? overflowBlockTimeoutMillis : CloudWatchSubmitter.DEFAULT_BLOCK_TIMEOUT_MILLIS;
+        RetryPolicy resolvedRetryPolicy = null != retryPolicy ? retryPolicy : new RetryPolicy();
+        PutMetricDataRateLimiter resolvedRateLimiter = null != rateLimiter ? rateLimiter : PutMetricDataRateLimiter.global();
+        Long resolvedSpoolMaxBytes = null != spoolMaxBytes ? spoolMaxBytes : MetricDataSpool.DEFAULT_MAX_BYTES;
+
+        CloudWatchSubmitter resolvedSubmitter = new CloudWatchSubmitter(
+                client,
+                resolvedMaxConcurrentRequests,
+                resolvedMaxQueuedRequests,
+                resolvedOverflowPolicy,
+                resolvedOverflowBlockTimeoutMillis,
+                resolvedRetryPolicy,
+                null);
+        resolvedSubmitter.withRateLimiter(resolvedRateLimiter);
+        if (null != spoolDirectory) {
+            try {
+                // At least two segments, so that one can be replayed while the other is appended to.
+                int segmentBytes = (int) Math.min(MetricDataSpool.DEFAULT_SEGMENT_BYTES, resolvedSpoolMaxBytes / 2);
+                resolvedSubmitter.withSpool(new MetricDataSpool(spoolDirectory, resolvedSpoolMaxBytes, segmentBytes));
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not open metric data spool in " + spoolDirectory, e);
+            }
+        }
+        return resolvedSubmitter;
     }
 }
+
@@ -0,0 +1,188 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a {@link CloudWatchReporter} itself is doing, in a registry of its own:
+ * <ul>
+ * <li>{@code TranslateTime}, {@code SubmitTime}: time to turn the registry into datums, and to batch them and hand
+ * them to the submitter</li>
+ * <li>{@code Datums}, {@code FilteredDatums}: datums translated, and those of them dropped as empty or by the
+ * reporter filter</li>
+ * <li>{@code Batches}: PutMetricData requests handed to the submitter</li>
+ * <li>{@code TickDrift}: milliseconds by which scheduled reports ran late</li>
+ * <li>{@code Errors stage=translate|submit}: reports which failed in the reporter</li>
+ * <li>{@code DistinctSeries}, {@code LimitedSeries}: estimated distinct series per report, and those of them folded
+ * or dropped, with a {@link CardinalityLimiter}</li>
+ * <li>{@code PermutationsLimited budget=metric|report}: metrics truncated or rejected for exceeding a permutation
+ * budget</li>
+ * <li>{@code InFlightRequests}, {@code QueuedRequests}, {@code SentRequests}, {@code RetriedRequests},
+ * {@code FailedRequests}, {@code DroppedRequests}: the submitter's requests</li>
+ * <li>{@code RequestErrors type=...}: failed PutMetricData attempts by CloudWatch error code or exception class</li>
+ * </ul>
+ * Read them from {@link #getRegistry()}, expose them over JMX with {@link #startJmx(String)}, or have them reported
+ * to CloudWatch under a namespace of their own with
+ * {@link CloudWatchReporterBuilder#withReporterMetricsNamespace(String)}.
+ * <p>
+ * The timers and histograms keep an {@link IntervalStatsReservoir}, so that each report to CloudWatch sends the
+ * samples of its interval once. Their statistics over JMX are likewise those since they were last read.
+ */
+public class CloudWatchReporterMetrics {
+
+    /**
+     * Generational so that a CloudWatchReporter of these metrics reports in drain mode, which keeps them from one
+     * report to the next instead of removing them from the registry.
+     */
+    private final GenerationalMetricRegistry registry = new GenerationalMetricRegistry();
+
+    final Timer translateTime = registry.register("TranslateTime", new Timer(new IntervalStatsReservoir()));
+    final Timer submitTime = registry.register("SubmitTime", new Timer(new IntervalStatsReservoir()));
+    final Meter datums = registry.meter("Datums");
+    final Meter filteredDatums = registry.meter("FilteredDatums");
+    final Meter batches = registry.meter("Batches");
+    final Histogram tickDrift = registry.register("TickDrift", new Histogram(new IntervalStatsReservoir()));
+    final Meter translateErrors = registry.meter("Errors stage=translate");
+    final Meter submitErrors = registry.meter("Errors stage=submit");
+    final Histogram distinctSeries = registry.register("DistinctSeries", new Histogram(new IntervalStatsReservoir()));
+    final Meter limitedSeries = registry.meter("LimitedSeries");
+    final Meter metricPermutationsLimited = registry.meter("PermutationsLimited budget=metric");
+    final Meter reportPermutationsLimited = registry.meter("PermutationsLimited budget=report");
+
+    /**
+     * The submitter which the submitter metrics read
+     */
+    private volatile CloudWatchSubmitter submitter;
+
+    private JmxReporter jmxReporter;
+
+    /**
+     * @return the registry of these metrics
+     */
+    public MetricRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Registers these metrics as MBeans, until {@link #stopJmx()}.
+     *
+     * @param domain of the MBeans' object names. Characters not allowed in a domain are replaced with '_'.
+     */
+    public synchronized void startJmx(String domain) {
+        if (jmxReporter == null) {
+            jmxReporter = JmxReporter.forRegistry(registry)
+                    .inDomain(domain.replaceAll("[:*?,=\\n]", "_"))
+                    .convertDurationsTo(TimeUnit.MILLISECONDS)
+                    .build();
+            jmxReporter.start();
+        }
+    }
+
+    public synchronized void stopJmx() {
+        if (jmxReporter != null) {
+            jmxReporter.stop();
+            jmxReporter = null;
+        }
+    }
+
+    /**
+     * Points the submitter metrics at the given submitter, and adds a RequestErrors counter for any new type of
+     * error it has seen. Called on every report.
+     */
+    synchronized void observe(CloudWatchSubmitter submitter) {
+        if (submitter == null) {
+            return;
+        }
+        if (this.submitter == null) {
+            registerSubmitterMetrics();
+        }
+        this.submitter = submitter;
+        for (final String type : submitter.getErrorCounts().keySet()) {
+            String name = "RequestErrors type=" + type;
+            if (!registry.getNames().contains(name)) {
+                registry.register(name, new SubmitterCount() {
+                    @Override
+                    long read(CloudWatchSubmitter submitter) {
+                        Long count = submitter.getErrorCounts().get(type);
+                        return count == null ? 0 : count;
+                    }
+                });
+            }
+        }
+    }
+
+    private void registerSubmitterMetrics() {
+        registry.register("InFlightRequests", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return submitter.getInFlightRequests();
+            }
+        });
+        registry.register("QueuedRequests", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return submitter.getQueuedRequests();
+            }
+        });
+        registry.register("SentRequests", new SubmitterCount() {
+            @Override
+            long read(CloudWatchSubmitter submitter) {
+                return submitter.getSentRequests();
+            }
+        });
+        registry.register("RetriedRequests", new SubmitterCount() {
+            @Override
+            long read(CloudWatchSubmitter submitter) {
+                return submitter.getRetriedRequests();
+            }
+        });
+        registry.register("FailedRequests", new SubmitterCount() {
+            @Override
+            long read(CloudWatchSubmitter submitter) {
+                return submitter.getFailedRequests();
+            }
+        });
+        registry.register("DroppedRequests", new SubmitterCount() {
+            @Override
+            long read(CloudWatchSubmitter submitter) {
+                return submitter.getDroppedRequests();
+            }
+        });
+    }
+
+    /**
+     * A counter over one of the submitter's own counts, so that it is reported as a count per interval like any
+     * other counter.
+     */
+    private abstract class SubmitterCount extends Counter {
+
+        abstract long read(CloudWatchSubmitter submitter);
+
+        @Override
+        public long getCount() {
+            return read(submitter);
+        }
+    }
+}
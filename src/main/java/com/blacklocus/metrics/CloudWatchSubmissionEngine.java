@@ -0,0 +1,199 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.client.builder.ExecutorFactory;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatchAsync;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatchAsyncClientBuilder;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives any number of {@link CloudWatchReporter}s from one thread on one aligned tick, and sends all of their data
+ * through one {@link CloudWatchSubmitter}. On every tick each registered reporter translates its registry, the data
+ * of reporters sharing a namespace is merged, and each namespace is cut into batches as full as the request limits
+ * allow. A dozen reporters thus take one scheduler thread and one client instead of a dozen of each, and send a few
+ * full requests instead of many small ones.
+ * <p>
+ * Registered reporters must not also be {@link CloudWatchReporter#start(long, TimeUnit)}ed. The easiest way to
+ * register one is {@link CloudWatchReporterBuilder#withEngine(CloudWatchSubmissionEngine)}. To bound the client as
+ * well, build it with {@link #boundedClient(AmazonCloudWatchAsyncClientBuilder, int)}.
+ */
+public class CloudWatchSubmissionEngine {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CloudWatchSubmissionEngine.class);
+
+    private final CloudWatchSubmitter submitter;
+    private final MetricDatumBatcher batcher;
+    private final List<CloudWatchReporter> reporters = new CopyOnWriteArrayList<CloudWatchReporter>();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("CloudWatchSubmissionEngine").setDaemon(true).build());
+    private ScheduledFuture<?> tick;
+
+    /**
+     * @param submitter to send every registered reporter's data through
+     */
+    public CloudWatchSubmissionEngine(CloudWatchSubmitter submitter) {
+        this(submitter, MetricDatumBatcher.DEFAULT_MAX_DATUMS_PER_REQUEST, MetricDatumBatcher.DEFAULT_MAX_REQUEST_BYTES);
+    }
+
+    /**
+     * @param submitter           to send every registered reporter's data through
+     * @param maxDatumsPerRequest most datums to put in one PutMetricData request
+     * @param maxRequestBytes     most bytes a PutMetricData request should take, as estimated from its datums
+     */
+    public CloudWatchSubmissionEngine(CloudWatchSubmitter submitter, int maxDatumsPerRequest, int maxRequestBytes) {
+        this.submitter = Preconditions.checkNotNull(submitter);
+        this.batcher = new MetricDatumBatcher(maxDatumsPerRequest, maxRequestBytes);
+    }
+
+    /**
+     * Builds a client whose connection pool and executor are both bounded to {@code maxConcurrency}, with a bounded
+     * executor queue. Pair it with a {@link CloudWatchSubmitter} allowing no more requests in flight.
+     *
+     * @param clientBuilder  with region, credentials, etc. already set
+     * @param maxConcurrency most connections and executor threads
+     * @return the client
+     */
+    public static AmazonCloudWatchAsync boundedClient(AmazonCloudWatchAsyncClientBuilder clientBuilder,
+                                                      final int maxConcurrency) {
+        ClientConfiguration configuration = clientBuilder.getClientConfiguration() != null ?
+                clientBuilder.getClientConfiguration() : new ClientConfiguration();
+        return clientBuilder
+                .withClientConfiguration(configuration.withMaxConnections(maxConcurrency))
+                .withExecutorFactory(new ExecutorFactory() {
+                    @Override
+                    public ExecutorService newExecutor() {
+                        return new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 60, TimeUnit.SECONDS,
+                                new ArrayBlockingQueue<Runnable>(CloudWatchSubmitter.DEFAULT_MAX_QUEUED_REQUESTS),
+                                new ThreadFactoryBuilder().setNameFormat("CloudWatchClient-%d").setDaemon(true).build());
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * @param reporter to translate on every tick, which should send its own requests through {@link #getSubmitter()}
+     * @return this (for chaining)
+     */
+    public CloudWatchSubmissionEngine register(CloudWatchReporter reporter) {
+        reporters.add(reporter);
+        return this;
+    }
+
+    /**
+     * @param reporter to stop translating
+     */
+    public void unregister(CloudWatchReporter reporter) {
+        reporters.remove(reporter);
+    }
+
+    /**
+     * @return the submitter all data goes through
+     */
+    public CloudWatchSubmitter getSubmitter() {
+        return submitter;
+    }
+
+    /**
+     * Flushes on every multiple of the period in wall-clock time, so that e.g. a one minute period ticks at the top
+     * of every minute.
+     *
+     * @param period between ticks
+     * @param unit   of the period
+     */
+    public synchronized void start(long period, TimeUnit unit) {
+        Preconditions.checkState(tick == null, "Already started");
+        long periodMillis = unit.toMillis(period);
+        Preconditions.checkArgument(periodMillis > 0, "period must be at least a millisecond");
+        long initialDelayMillis = periodMillis - System.currentTimeMillis() % periodMillis;
+        tick = scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, initialDelayMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops ticking. Requests already handed to the submitter are still sent.
+     */
+    public synchronized void stop() {
+        if (tick != null) {
+            tick.cancel(false);
+            tick = null;
+        }
+        scheduler.shutdown();
+    }
+
+    /**
+     * Translates every registered reporter and submits the merged data, now.
+     */
+    public void flush() {
+        // Merge by namespace, in registration order.
+        Map<String, List<MetricDatum>> dataByNamespace = new LinkedHashMap<String, List<MetricDatum>>();
+        for (CloudWatchReporter reporter : reporters) {
+            // Never let an exception out, or the tick stops. See ScheduledExecutorService.scheduleAtFixedRate
+            try {
+                List<MetricDatum> data = reporter.collect();
+                if (data.isEmpty()) {
+                    continue;
+                }
+                List<MetricDatum> namespaceData = dataByNamespace.get(reporter.getMetricNamespace());
+                if (namespaceData == null) {
+                    namespaceData = new ArrayList<MetricDatum>(data.size());
+                    dataByNamespace.put(reporter.getMetricNamespace(), namespaceData);
+                }
+                namespaceData.addAll(data);
+            } catch (RuntimeException e) {
+                LOG.error("Error collecting CloudWatch metrics. namespace: " + reporter.getMetricNamespace(), e);
+            }
+        }
+
+        for (Map.Entry<String, List<MetricDatum>> entry : dataByNamespace.entrySet()) {
+            try {
+                for (List<MetricDatum> batch : batcher.batch(entry.getKey(), entry.getValue())) {
+                    submitter.submit(new PutMetricDataRequest()
+                            .withNamespace(entry.getKey())
+                            .withMetricData(batch));
+                }
+                LOG.debug("Submitted {} metric data to CloudWatch. namespace: {}", entry.getValue().size(),
+                        entry.getKey());
+            } catch (RuntimeException e) {
+                LOG.error("Error submitting CloudWatch metrics. namespace: " + entry.getKey(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,649 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatchAsync;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataResult;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Owns the PutMetricData requests on their way to CloudWatch so that the reporter thread only has to hand them over.
+ * At most {@code maxConcurrentRequests} are in flight at once. The rest wait in a queue of at most
+ * {@code maxQueuedRequests}, and the {@link OverflowPolicy} decides what happens beyond that.
+ * <p>
+ * Requests are sent with {@link AmazonCloudWatchAsync#putMetricDataAsync(PutMetricDataRequest, AsyncHandler)} and
+ * completion is tracked in the callback, so no thread ever blocks on a response. Each request first reserves a slot
+ * with a {@link PutMetricDataRateLimiter}, shared JVM-wide by default, and waits out any delay on a scheduler. Failed
+ * requests are sent again as the {@link RetryPolicy} allows, after a delay on a scheduler, and go back through the
+ * queue. Requests which fail for good are logged and counted, and their data discarded unless there is a
+ * {@link MetricDataSpool} to keep them in until CloudWatch takes requests again.
+ */
+public class CloudWatchSubmitter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CloudWatchSubmitter.class);
+
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 8;
+    public static final int DEFAULT_MAX_QUEUED_REQUESTS = 1000;
+    public static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.DROP_OLDEST;
+    public static final long DEFAULT_BLOCK_TIMEOUT_MILLIS = 1000;
+
+    /**
+     * What to do with a request submitted while the queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Discard the longest queued request to make room.
+         */
+        DROP_OLDEST,
+        /**
+         * Discard the request being submitted.
+         */
+        DROP_NEWEST,
+        /**
+         * Block the submitting thread until there is room, for at most the block timeout. The request being submitted
+         * is discarded if there is still no room by then.
+         */
+        BLOCK
+    }
+
+    private final AmazonCloudWatchAsync cloudWatch;
+    private final int maxConcurrentRequests;
+    private final int maxQueuedRequests;
+    private final OverflowPolicy overflowPolicy;
+    private final long blockTimeoutMillis;
+    private final RetryPolicy retryPolicy;
+    private final ScheduledExecutorService scheduler;
+    private final Random random = new Random();
+    private volatile PutMetricDataRateLimiter rateLimiter = PutMetricDataRateLimiter.global();
+
+    /**
+     * Guarded by itself. Waited on by {@link OverflowPolicy#BLOCK} submitters and {@link #awaitIdle(long, TimeUnit)}.
+     */
+    private final Deque<Submission> queue = new ArrayDeque<Submission>();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger awaitingRetry = new AtomicInteger();
+    /**
+     * Serializes {@link #drain()} without holding a lock across sends: only the thread that moves this off 0 sends,
+     * and it keeps going until every concurrent call has been accounted for.
+     */
+    private final AtomicInteger drainers = new AtomicInteger();
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Datums accepted by CloudWatch, datums of submitted requests not yet sent, failed or dropped, and datums
+     * which failed or were dropped. Spool replays count as sent, but never as pending or abandoned.
+     */
+    private final AtomicLong sentDatums = new AtomicLong();
+    private final AtomicLong pendingDatums = new AtomicLong();
+    private final AtomicLong abandonedDatums = new AtomicLong();
+
+    /**
+     * While set, queued requests are sent regardless of the max concurrent requests. See {@link #flush}.
+     */
+    private volatile boolean flushing;
+
+    /**
+     * Failed attempts by error code, or by exception class where there is no code
+     */
+    private final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * Optional. Holds undeliverable requests, which are replayed one at a time while {@link #replaying}.
+     */
+    private volatile MetricDataSpool spool;
+    private final AtomicBoolean replaying = new AtomicBoolean();
+
+    /**
+     * A submitter with the default limits, overflow policy and retry policy.
+     *
+     * @param cloudWatch client
+     */
+    public CloudWatchSubmitter(AmazonCloudWatchAsync cloudWatch) {
+        this(cloudWatch, DEFAULT_MAX_CONCURRENT_REQUESTS, DEFAULT_MAX_QUEUED_REQUESTS, DEFAULT_OVERFLOW_POLICY,
+                DEFAULT_BLOCK_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * A submitter with the default retry policy, retrying on a shared daemon thread.
+     */
+    public CloudWatchSubmitter(AmazonCloudWatchAsync cloudWatch, int maxConcurrentRequests, int maxQueuedRequests,
+                               OverflowPolicy overflowPolicy, long blockTimeoutMillis) {
+        this(cloudWatch, maxConcurrentRequests, maxQueuedRequests, overflowPolicy, blockTimeoutMillis,
+                new RetryPolicy(), null);
+    }
+
+    /**
+     * @param cloudWatch            client
+     * @param maxConcurrentRequests most requests in flight at once
+     * @param maxQueuedRequests     most requests waiting for one of those slots
+     * @param overflowPolicy        what to do when a request is submitted to a full queue
+     * @param blockTimeoutMillis    how long {@link OverflowPolicy#BLOCK} waits for room in the queue
+     * @param retryPolicy           (optional) when to send failed requests again. null never retries.
+     * @param scheduler             (optional) to wait out retry and rate limit delays on. null uses a daemon thread
+     *                              shared by all submitters.
+     */
+    public CloudWatchSubmitter(AmazonCloudWatchAsync cloudWatch, int maxConcurrentRequests, int maxQueuedRequests,
+                               OverflowPolicy overflowPolicy, long blockTimeoutMillis,
+                               RetryPolicy retryPolicy, ScheduledExecutorService scheduler) {
+        Preconditions.checkArgument(maxConcurrentRequests > 0, "maxConcurrentRequests must be positive");
+        Preconditions.checkArgument(maxQueuedRequests >= 0, "maxQueuedRequests must not be negative");
+        Preconditions.checkArgument(blockTimeoutMillis >= 0, "blockTimeoutMillis must not be negative");
+        this.cloudWatch = Preconditions.checkNotNull(cloudWatch);
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        this.maxQueuedRequests = maxQueuedRequests;
+        this.overflowPolicy = Preconditions.checkNotNull(overflowPolicy);
+        this.blockTimeoutMillis = blockTimeoutMillis;
+        this.retryPolicy = null != retryPolicy ? retryPolicy : RetryPolicy.none();
+        this.scheduler = null != scheduler ? scheduler : DefaultScheduler.INSTANCE;
+    }
+
+    /**
+     * @param rateLimiter every request goes through, first attempts and retries alike, in place of
+     *                    {@link PutMetricDataRateLimiter#global()}. null to send without limit.
+     * @return this (for chaining)
+     */
+    public CloudWatchSubmitter withRateLimiter(PutMetricDataRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+        return this;
+    }
+
+    /**
+     * @param spool to keep requests in which were dropped from a full queue or failed for good with a retryable
+     *              error. They are replayed, oldest first, once requests succeed again.
+     * @return this (for chaining)
+     */
+    CloudWatchSubmitter withSpool(MetricDataSpool spool) {
+        this.spool = spool;
+        return this;
+    }
+
+    MetricDataSpool getSpool() {
+        return spool;
+    }
+
+    /**
+     * Queues the request and sends it as soon as there is a free slot, possibly on the calling thread. Never waits
+     * for a response, and waits for room in the queue only under {@link OverflowPolicy#BLOCK}.
+     *
+     * @param request to send
+     * @return false if the request was discarded because the queue was full
+     */
+    public boolean submit(PutMetricDataRequest request) {
+        pendingDatums.addAndGet(request.getMetricData().size());
+        boolean accepted = enqueue(new Submission(request), overflowPolicy);
+        drain();
+        return accepted;
+    }
+
+    private boolean enqueue(Submission request, OverflowPolicy overflowPolicy) {
+        synchronized (queue) {
+            if (hasRoom()) {
+                queue.addLast(request);
+                return true;
+            }
+
+            switch (overflowPolicy) {
+                case DROP_OLDEST:
+                    if (queue.isEmpty()) {
+                        drop(request);
+                        return false;
+                    }
+                    drop(queue.pollFirst());
+                    queue.addLast(request);
+                    return true;
+
+                case BLOCK:
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+                    try {
+                        while (!hasRoom()) {
+                            long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                            if (remainingMillis <= 0) {
+                                break;
+                            }
+                            queue.wait(remainingMillis);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    if (hasRoom()) {
+                        queue.addLast(request);
+                        return true;
+                    }
+                    drop(request);
+                    return false;
+
+                case DROP_NEWEST:
+                default:
+                    drop(request);
+                    return false;
+            }
+        }
+    }
+
+    /**
+     * A request which can go straight out still passes through the queue, but never counts against its bound.
+     */
+    private boolean hasRoom() {
+        return queue.size() < maxQueuedRequests + Math.max(0, maxConcurrentRequests - inFlight.get());
+    }
+
+    private void drop(Submission submission) {
+        if (submission.spooled != null) {
+            // A replay which did not fit. It is still in the spool.
+            replaying.set(false);
+            return;
+        }
+        dropped.incrementAndGet();
+        submission.abandon();
+        if (spool(submission)) {
+            LOG.warn("CloudWatch submission queue is full. Spooled a request of {} metric data. namespace: {}",
+                    submission.request.getMetricData().size(), submission.request.getNamespace());
+            return;
+        }
+        LOG.warn("CloudWatch submission queue is full. Discarding a request of {} metric data. namespace: {}",
+                submission.request.getMetricData().size(), submission.request.getNamespace());
+    }
+
+    private void drain() {
+        if (drainers.getAndIncrement() != 0) {
+            return;
+        }
+        do {
+            while (true) {
+                Submission submission;
+                synchronized (queue) {
+                    if ((inFlight.get() >= maxConcurrentRequests && !flushing) || queue.isEmpty()) {
+                        break;
+                    }
+                    submission = queue.pollFirst();
+                    inFlight.incrementAndGet();
+                    queue.notifyAll();
+                }
+                submission.send();
+            }
+        } while (drainers.decrementAndGet() != 0);
+    }
+
+    /**
+     * @return true if the submission is now in the spool
+     */
+    private boolean spool(Submission submission) {
+        MetricDataSpool spool = this.spool;
+        return spool != null && spool.append(submission.request);
+    }
+
+    /**
+     * Submits the oldest spooled request unless one is already on its way.
+     */
+    private void replay() {
+        MetricDataSpool spool = this.spool;
+        if (spool == null || !replaying.compareAndSet(false, true)) {
+            return;
+        }
+        MetricDataSpool.Spooled spooled = spool.peek();
+        if (spooled == null) {
+            replaying.set(false);
+            return;
+        }
+        LOG.debug("Replaying a spooled request of {} metric data. namespace: {}",
+                spooled.request.getMetricData().size(), spooled.request.getNamespace());
+        // A replay never displaces live data. If there is no room it stays in the spool for next time.
+        enqueue(new Submission(spooled), OverflowPolicy.DROP_NEWEST);
+        drain();
+    }
+
+    private void complete() {
+        synchronized (queue) {
+            inFlight.decrementAndGet();
+            queue.notifyAll();
+        }
+        drain();
+    }
+
+    /**
+     * Waits for every submitted request to complete.
+     *
+     * @return true if there is nothing queued or in flight, false if the timeout elapsed first
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (queue) {
+            while (!queue.isEmpty() || inFlight.get() > 0 || awaitingRetry.get() > 0) {
+                long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remainingMillis <= 0) {
+                    return false;
+                }
+                queue.wait(remainingMillis);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Sends everything queued at once, no longer bounded by the max concurrent requests, and waits for it and any
+     * retries to complete, as on shutdown.
+     *
+     * @return true if there is nothing queued or in flight, false if the timeout elapsed first
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+        flushing = true;
+        try {
+            drain();
+            return awaitIdle(timeout, unit);
+        } finally {
+            flushing = false;
+        }
+    }
+
+    /**
+     * @return number of datums which CloudWatch accepted
+     */
+    public long getSentDatums() {
+        return sentDatums.get();
+    }
+
+    /**
+     * @return number of datums submitted and not yet sent, failed or dropped: queued, in flight or awaiting a retry
+     */
+    public long getPendingDatums() {
+        return pendingDatums.get();
+    }
+
+    /**
+     * @return number of datums which failed for good or were dropped from a full queue, including any which were
+     * then spooled
+     */
+    public long getAbandonedDatums() {
+        return abandonedDatums.get();
+    }
+
+    /**
+     * @return number of requests waiting for a free slot
+     */
+    public int getQueuedRequests() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    /**
+     * @return number of requests sent and not yet completed
+     */
+    public int getInFlightRequests() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return number of requests which CloudWatch accepted
+     */
+    public long getSentRequests() {
+        return sent.get();
+    }
+
+    /**
+     * @return number of retries sent
+     */
+    public long getRetriedRequests() {
+        return retried.get();
+    }
+
+    /**
+     * @return number of requests which failed for good
+     */
+    public long getFailedRequests() {
+        return failed.get();
+    }
+
+    /**
+     * @return number of requests discarded because the queue was full
+     */
+    public long getDroppedRequests() {
+        return dropped.get();
+    }
+
+    /**
+     * @return number of failed attempts, retried or not, by CloudWatch error code (e.g. Throttling) or, for errors
+     * without one, by exception class name
+     */
+    public SortedMap<String, Long> getErrorCounts() {
+        SortedMap<String, Long> counts = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : errors.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    private void countError(Exception exception) {
+        String type = exception instanceof AmazonServiceException
+                && ((AmazonServiceException) exception).getErrorCode() != null
+                ? ((AmazonServiceException) exception).getErrorCode()
+                : exception.getClass().getSimpleName();
+        AtomicLong count = errors.get(type);
+        if (count == null) {
+            AtomicLong created = new AtomicLong();
+            count = errors.putIfAbsent(type, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * A request and its history, which is also its completion handler.
+     */
+    private class Submission implements AsyncHandler<PutMetricDataRequest, PutMetricDataResult> {
+
+        final PutMetricDataRequest request;
+        final long firstSubmittedMillis = System.currentTimeMillis();
+        int attempts = 0;
+        long lastDelayMillis = 0;
+
+        /**
+         * Where this came from if it is a replay from the spool
+         */
+        final MetricDataSpool.Spooled spooled;
+
+        Submission(PutMetricDataRequest request) {
+            this.request = request;
+            this.spooled = null;
+        }
+
+        Submission(MetricDataSpool.Spooled spooled) {
+            this.request = spooled.request;
+            this.spooled = spooled;
+        }
+
+        /**
+         * Sends now or, if the rate limiter says so, later. Holds its in-flight slot either way.
+         */
+        void send() {
+            PutMetricDataRateLimiter rateLimiter = CloudWatchSubmitter.this.rateLimiter;
+            long delayNanos = rateLimiter == null ? 0 : rateLimiter.reserve();
+            if (delayNanos > 0) {
+                LOG.debug("Rate limit delays a CloudWatch API request by {}ms", TimeUnit.NANOSECONDS.toMillis(delayNanos));
+                try {
+                    scheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            transmit();
+                        }
+                    }, delayNanos, TimeUnit.NANOSECONDS);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    // The scheduler is gone. Better sent early than not at all.
+                }
+            }
+            transmit();
+        }
+
+        private void transmit() {
+            if (attempts++ == 0) {
+                retryPolicy.getBudget().deposit();
+            }
+            try {
+                cloudWatch.putMetricDataAsync(request, this);
+            } catch (RuntimeException e) {
+                // e.g. the client's executor rejected the request
+                onError(e);
+            }
+        }
+
+        @Override
+        public void onSuccess(PutMetricDataRequest request, PutMetricDataResult result) {
+            sent.incrementAndGet();
+            sentDatums.addAndGet(request.getMetricData().size());
+            if (spooled == null) {
+                pendingDatums.addAndGet(-request.getMetricData().size());
+            }
+            if (spooled != null) {
+                spool.ack(spooled);
+                replaying.set(false);
+            }
+            complete();
+            replay();
+        }
+
+        @Override
+        public void onError(Exception exception) {
+            countError(exception);
+            try {
+                if (spooled != null) {
+                    // Still in the spool. Try again after the next success.
+                    LOG.debug("Replaying a spooled request failed: {}", exception.toString());
+                    replaying.set(false);
+                    return;
+                }
+                String givingUp = retry(exception);
+                if (givingUp != null) {
+                    abandon();
+                }
+                if (givingUp != null && retryPolicy.isRetryable(exception) && spool(this)) {
+                    LOG.warn("Exception reporting metrics to CloudWatch, " + givingUp + ". The data in this " +
+                            "CloudWatch API request has been spooled. " + exception);
+                } else if (givingUp != null) {
+                    failed.incrementAndGet();
+                    LOG.error("Exception reporting metrics to CloudWatch, " + givingUp + ". The data in this " +
+                            "CloudWatch API request has been discarded, did not make it to CloudWatch.", exception);
+                }
+            } finally {
+                complete();
+            }
+        }
+
+        /**
+         * @return null if a retry has been scheduled, otherwise why not
+         */
+        private String retry(Exception exception) {
+            if (!retryPolicy.isRetryable(exception)) {
+                return "not retryable";
+            }
+            if (attempts >= retryPolicy.getMaxAttempts()) {
+                return "out of attempts after " + attempts;
+            }
+            long delayMillis = retryPolicy.nextDelayMillis(lastDelayMillis, random);
+            if (System.currentTimeMillis() + delayMillis - oldestMillis() > retryPolicy.getMaxDataAgeMillis()) {
+                return "data too old to retry";
+            }
+            if (!retryPolicy.getBudget().tryWithdraw()) {
+                return "retry budget exhausted";
+            }
+
+            lastDelayMillis = delayMillis;
+            awaitingRetry.incrementAndGet();
+            try {
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        resubmit();
+                    }
+                }, delayMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                awaitingRetry.decrementAndGet();
+                return "scheduler shut down";
+            }
+            LOG.debug("Retrying a CloudWatch API request in {}ms after {} attempts: {}", delayMillis, attempts,
+                    exception.toString());
+            return null;
+        }
+
+        private void resubmit() {
+            retried.incrementAndGet();
+            // Never block the scheduler on a full queue.
+            enqueue(this, overflowPolicy == OverflowPolicy.BLOCK ? OverflowPolicy.DROP_NEWEST : overflowPolicy);
+            synchronized (queue) {
+                awaitingRetry.decrementAndGet();
+                queue.notifyAll();
+            }
+            drain();
+        }
+
+        /**
+         * Accounts for the datums of a request which will not be sent. Replays stay in the spool.
+         */
+        void abandon() {
+            if (spooled == null) {
+                pendingDatums.addAndGet(-request.getMetricData().size());
+                abandonedDatums.addAndGet(request.getMetricData().size());
+            }
+        }
+
+        private long oldestMillis() {
+            long oldest = firstSubmittedMillis;
+            for (MetricDatum datum : request.getMetricData()) {
+                if (datum.getTimestamp() != null) {
+                    oldest = Math.min(oldest, datum.getTimestamp().getTime());
+                }
+            }
+            return oldest;
+        }
+    }
+
+    private static class DefaultScheduler {
+        static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("CloudWatchSubmitter-scheduler").setDaemon(true).build());
+    }
+}
@@ -17,6 +17,8 @@ package com.blacklocus.metrics;
 
 import com.amazonaws.services.cloudwatch.model.Dimension;
 
+import java.util.regex.Pattern;
+
 public class Constants {
 
     /**
@@ -43,6 +45,11 @@ public class Constants {
     public static final String VALID_NAME_TOKEN_RGX = "[^\\s=\\*]+\\*?";
     public static final String VALID_DIMENSION_PART_RGX = "[^\\s=\\*]+";
 
+    // Compiled once; String.matches and String.split would compile these on every call.
+    static final Pattern NAME_TOKEN_DELIMITER_PATTERN = Pattern.compile(NAME_TOKEN_DELIMITER_RGX);
+    static final Pattern VALID_NAME_TOKEN_PATTERN = Pattern.compile(VALID_NAME_TOKEN_RGX);
+    static final Pattern VALID_DIMENSION_PART_PATTERN = Pattern.compile(VALID_DIMENSION_PART_RGX);
+
     //added
     public static final String NAME_METRIC_DIMENSION_SEPARATOR = ",";
     public static final String NAME_COUNTER_TOKEN = "CounterName=";
@@ -0,0 +1,85 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+/**
+ * Everything about a series' datums that does not change from one report to the next: its {@link MetricKey}, less
+ * any timestamp, and the demuxed permutations of metric name and dimensions, global dimensions included. Cached by
+ * registry name less any timestamp in a {@link Cache}, so that every interval of a timestamped series shares one
+ * entry and the reporter only has to fill in values and the timestamp.
+ * <p>
+ * Permutations are counted before any are enumerated. Beyond the per-metric budget, only the most aggregated
+ * permutation and the full set are kept, or with {@link CloudWatchReporter.PermutationPolicy#REJECT} none at all.
+ */
+class DatumTemplates {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DatumTemplates.class);
+
+    final MetricKey key;
+    final List<DemuxedKey.Template> templates;
+
+    /**
+     * The most aggregated permutation and the full set, for when the per-report budget has run out
+     */
+    final List<DemuxedKey.Template> truncated;
+
+    /**
+     * Whether {@link #templates} are fewer than all permutations for being over the per-metric budget
+     */
+    final boolean limited;
+
+    /**
+     * @param maxPermutations most permutations of this metric to report
+     * @param policy          for a metric with more permutations than that
+     */
+    DatumTemplates(MetricKey key, MetricKey globalDimensions, int maxPermutations,
+                   CloudWatchReporter.PermutationPolicy policy) {
+        this.key = key;
+        DemuxedKey demuxed = new DemuxedKey(key, globalDimensions);
+        this.truncated = ImmutableList.copyOf(demuxed.truncatedTemplates());
+
+        long permutations = demuxed.permutationCount();
+        this.limited = permutations > maxPermutations;
+        if (!limited) {
+            this.templates = ImmutableList.copyOf(demuxed.templates());
+        } else if (policy == CloudWatchReporter.PermutationPolicy.TRUNCATE) {
+            LOG.warn("{} has {} permutations, more than the budget of {}. Reporting only the most aggregated and the "
+                    + "full set.", demuxed, permutations, maxPermutations);
+            this.templates = truncated;
+        } else {
+            LOG.warn("{} has {} permutations, more than the budget of {}. Not reporting it.",
+                    demuxed, permutations, maxPermutations);
+            this.templates = ImmutableList.of();
+        }
+    }
+
+    /**
+     * @param maximumSize number of series to hold templates for. The least recently used are evicted beyond
+     *                    that.
+     * @return a new, empty cache
+     */
+    static Cache<String, DatumTemplates> newCache(int maximumSize) {
+        return CacheBuilder.newBuilder().maximumSize(maximumSize).build();
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.codahale.metrics.Counter;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link Counter} which CloudWatchReporter reports as exactly what was counted in each interval, without keeping
+ * the last count around. Increments go to striped cells, so hundreds of threads can count at once without contending.
+ * Register it under the usual name, e.g.
+ * <pre>
+ *     registry.register(new MetricNameBuilder("Requests").build(), new DeltaCounter());
+ * </pre>
+ */
+public class DeltaCounter extends Counter implements DeltaCounting {
+
+    private final LongCells pending = new LongCells();
+
+    /**
+     * Everything taken by {@link #sumThenReset()} so far
+     */
+    private final AtomicLong reported = new AtomicLong();
+
+    @Override
+    public void inc() {
+        pending.add(1);
+    }
+
+    @Override
+    public void inc(long n) {
+        pending.add(n);
+    }
+
+    @Override
+    public void dec() {
+        pending.add(-1);
+    }
+
+    @Override
+    public void dec(long n) {
+        pending.add(-n);
+    }
+
+    @Override
+    public long getCount() {
+        return reported.get() + pending.sum();
+    }
+
+    @Override
+    public long sumThenReset() {
+        long sum = pending.sumThenReset();
+        reported.addAndGet(sum);
+        return sum;
+    }
+
+    @Override
+    public long getPendingCount() {
+        return pending.sum();
+    }
+}
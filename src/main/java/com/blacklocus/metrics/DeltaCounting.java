@@ -0,0 +1,39 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.codahale.metrics.Counting;
+
+/**
+ * A {@link Counting} metric which keeps what it has counted since it was last reported, so that
+ * {@link CloudWatchReporter} can take exactly that each interval instead of diffing cumulative counts.
+ * {@link #getCount()} remains cumulative for the benefit of other reporters.
+ *
+ * @see DeltaCounter
+ * @see DeltaMeter
+ */
+public interface DeltaCounting extends Counting {
+
+    /**
+     * @return the count since the previous call, which is reset to 0. Every count is returned by exactly one call.
+     */
+    long sumThenReset();
+
+    /**
+     * @return the count the next {@link #sumThenReset()} would return if nothing else were counted first
+     */
+    long getPendingCount();
+}
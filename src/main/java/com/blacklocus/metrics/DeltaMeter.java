@@ -0,0 +1,52 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Meter;
+
+/**
+ * A {@link Meter} which CloudWatchReporter reports as exactly the events marked in each interval, without keeping
+ * the last count around. The rates are still kept, for other reporters. Register it like a {@link DeltaCounter}.
+ */
+public class DeltaMeter extends Meter implements DeltaCounting {
+
+    private final LongCells pending = new LongCells();
+
+    public DeltaMeter() {
+        super();
+    }
+
+    public DeltaMeter(Clock clock) {
+        super(clock);
+    }
+
+    @Override
+    public void mark(long n) {
+        super.mark(n);
+        pending.add(n);
+    }
+
+    @Override
+    public long sumThenReset() {
+        return pending.sumThenReset();
+    }
+
+    @Override
+    public long getPendingCount() {
+        return pending.sum();
+    }
+}
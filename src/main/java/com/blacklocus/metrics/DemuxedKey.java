@@ -18,54 +18,88 @@ package com.blacklocus.metrics;
 import com.amazonaws.services.cloudwatch.model.Dimension;
 import com.amazonaws.services.cloudwatch.model.MetricDatum;
 import com.google.common.base.Function;
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Iterables;
-import com.google.common.collect.Lists;
-import org.apache.commons.lang3.StringUtils;
+import com.google.common.base.Preconditions;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
 
-import static com.blacklocus.metrics.Constants.*;
+import static com.blacklocus.metrics.Constants.NAME_TOKEN_DELIMITER;
 
 /**
+ * A metric name split into name tokens and dimensions, and which of those permute.
+ * <p>
+ * Permutations are enumerated with a bitmask over the permutable tokens, the first permutable token being the most
+ * significant bit. A clear bit omits the token and comes first, so the aggregate (everything omitted) is the first
+ * permutation and the full set the last. All name permutations are the outer loop, dimension permutations the inner.
+ *
  * @author Jason Dunkelberger (dirkraft)
  */
 class DemuxedKey {
 
-    final PermutableChain<String> nameChain;
-    final PermutableChain<Dimension> dimensionChain;
+    /**
+     * Keeps permutation masks within an int.
+     */
+    static final int MAX_PERMUTABLE_TOKENS = 30;
 
-    DemuxedKey(String s) {
-        String[] segments = s.split(NAME_TOKEN_DELIMITER_RGX);
+    final String[] names;
+    final boolean[] namesPermutable;
+    final int permutableNameCount;
 
-        PermutableChain<String> names = null;
-        PermutableChain<Dimension> dimensions = null;
+    final Dimension[] dimensions;
+    final boolean[] dimensionsPermutable;
+    final int permutableDimensionCount;
 
-        // Build NameSegmentChain in reverse. Dimension order is irrelevant.
-        for (int i = segments.length - 1; i >= 0; i--) {
-            String segment = segments[i];
+    DemuxedKey(String s) {
+        this(MetricKey.parseDimensions(s), null);
+    }
 
-            boolean permutable = segment.endsWith(NAME_PERMUTE_MARKER);
-            if (permutable) {
-                segment = segment.substring(0, segment.length() - 1);
+    /**
+     * @param key              of the metric
+     * @param globalDimensions (optional) reporter-wide tokens appended to those of the key
+     */
+    DemuxedKey(MetricKey key, MetricKey globalDimensions) {
+        int nameCount = 0;
+        int dimensionCount = 0;
+        MetricKey[] parts = {key, globalDimensions};
+        for (MetricKey part : parts) {
+            if (part != null) {
+                nameCount += part.getNameTokenCount();
+                dimensionCount += part.getDimensionCount();
             }
+        }
 
-            if (segment.contains(NAME_DIMENSION_SEPARATOR)) {
-                String[] dimensionParts = segment.split(NAME_DIMENSION_SEPARATOR, 2);
-                Dimension dimension = new Dimension().withName(dimensionParts[0]).withValue(dimensionParts[1]);
-                dimensions = new PermutableChain<Dimension>(dimension, permutable, dimensions);
+        names = new String[nameCount];
+        namesPermutable = new boolean[nameCount];
+        dimensions = new Dimension[dimensionCount];
+        dimensionsPermutable = new boolean[dimensionCount];
 
-            } else {
-                assert !segment.contains(NAME_PERMUTE_MARKER);
-                names = new PermutableChain<String>(segment, permutable, names);
+        int n = 0;
+        int d = 0;
+        int permutableNames = 0;
+        int permutableDimensions = 0;
+        for (MetricKey part : parts) {
+            if (part == null) {
+                continue;
+            }
+            for (int i = 0; i < part.getNameTokenCount(); i++, n++) {
+                names[n] = part.getNameToken(i);
+                namesPermutable[n] = part.isNameTokenPermutable(i);
+                if (namesPermutable[n]) {
+                    permutableNames++;
+                }
+            }
+            for (int i = 0; i < part.getDimensionCount(); i++, d++) {
+                dimensions[d] = new Dimension().withName(part.getDimensionName(i)).withValue(part.getDimensionValue(i));
+                dimensionsPermutable[d] = part.isDimensionPermutable(i);
+                if (dimensionsPermutable[d]) {
+                    permutableDimensions++;
+                }
             }
         }
-
-        this.nameChain = names;
-        this.dimensionChain = dimensions;
+        this.permutableNameCount = permutableNames;
+        this.permutableDimensionCount = permutableDimensions;
     }
 
     /**
@@ -75,99 +109,151 @@ class DemuxedKey {
     Iterable<MetricDatum> newDatums(Function<MetricDatum, MetricDatum> datumSpecification) {
 
         List<MetricDatum> data = new ArrayList<MetricDatum>();
+        for (Template template : templates()) {
+            data.add(datumSpecification.apply(template.newDatum()));
+        }
+        return data;
+    }
+
+    /**
+     * @return number of templates {@link #templates()} would return, counted without enumerating them.
+     * {@link Long#MAX_VALUE} if there are too many to count in a long.
+     */
+    long permutationCount() {
+        if (permutableNameCount + permutableDimensionCount >= 62) {
+            return Long.MAX_VALUE;
+        }
+        long nameMasks = 1L << permutableNameCount;
+        if (permutableNameCount == names.length) {
+            // Omitting every name token leaves nothing to submit.
+            nameMasks--;
+        }
+        return nameMasks << permutableDimensionCount;
+    }
+
+    /**
+     * @return the most aggregated permutation and the full set of tokens, in the order of {@link #templates()}, or
+     * just the full set if nothing permutes. The most aggregated omits every permutable token, but keeps the last
+     * name token if all of them permute.
+     */
+    List<Template> truncatedTemplates() {
+        Template full = new Template(joinNames(false), selectDimensions(false));
+        String aggregateName = permutableNameCount == names.length ? names[names.length - 1] : joinNames(true);
+        Dimension[] aggregateDimensions = selectDimensions(true);
+        if (aggregateName.equals(full.metricName) && aggregateDimensions.length == dimensions.length) {
+            return Collections.singletonList(full);
+        }
+        return Arrays.asList(new Template(aggregateName, aggregateDimensions), full);
+    }
+
+    /**
+     * @return every permutation of metric name and dimensions, without any data
+     */
+    List<Template> templates() {
+        Preconditions.checkState(permutableNameCount <= MAX_PERMUTABLE_TOKENS
+                        && permutableDimensionCount <= MAX_PERMUTABLE_TOKENS,
+                "Too many permutable tokens: %s", this);
+
+        int nameMasks = 1 << permutableNameCount;
+        int dimensionMasks = 1 << permutableDimensionCount;
+        List<Template> templates = new ArrayList<Template>(nameMasks * dimensionMasks);
 
-        for (Iterable<String> nameSet : nameChain) {
-            String name = StringUtils.join(nameSet, " ");
-            if (StringUtils.isBlank(name)) {
+        StringBuilder nameBuilder = new StringBuilder();
+        for (int nameMask = 0; nameMask < nameMasks; nameMask++) {
+            String name = joinNames(nameMask, nameBuilder);
+            if (name == null) {
                 // If all name segments are permutable, there is one combination where all of them are omitted.
                 // This is expected and supported but of course can not be submitted.
                 continue;
             }
-            for (Iterable<Dimension> dimensionSet : dimensionChain) {
-                data.add(datumSpecification.apply(
-                        new MetricDatum().withMetricName(name).withDimensions(Lists.newArrayList(dimensionSet))
-                ));
+            for (int dimensionMask = 0; dimensionMask < dimensionMasks; dimensionMask++) {
+                templates.add(new Template(name, selectDimensions(dimensionMask)));
             }
         }
 
-        return data;
+        return templates;
     }
 
-    public class PermutableChain<T> implements Iterable<Iterable<T>> {
+    /**
+     * @return the names selected by the mask joined with spaces, or null if none are selected
+     */
+    private String joinNames(int mask, StringBuilder sb) {
+        sb.setLength(0);
+        int bit = permutableNameCount;
+        for (int i = 0; i < names.length; i++) {
+            if (namesPermutable[i] && (mask & (1 << --bit)) == 0) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(NAME_TOKEN_DELIMITER);
+            }
+            sb.append(names[i]);
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
 
-        final T token;
-        final boolean permutable;
-        final PermutableChain<T> nextSegment;
+    private String joinNames(boolean omitPermutable) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < names.length; i++) {
+            if (omitPermutable && namesPermutable[i]) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(NAME_TOKEN_DELIMITER);
+            }
+            sb.append(names[i]);
+        }
+        return sb.toString();
+    }
 
+    private Dimension[] selectDimensions(boolean omitPermutable) {
+        Dimension[] selection = new Dimension[omitPermutable ? dimensions.length - permutableDimensionCount : dimensions.length];
+        for (int i = 0, s = 0; i < dimensions.length; i++) {
+            if (omitPermutable && dimensionsPermutable[i]) {
+                continue;
+            }
+            selection[s++] = dimensions[i];
+        }
+        return selection;
+    }
 
-        PermutableChain(T token, boolean permutable, PermutableChain<T> nextSegment) {
-            this.token = token;
-            this.permutable = permutable;
-            this.nextSegment = nextSegment;
+    private Dimension[] selectDimensions(int mask) {
+        int selected = dimensions.length - permutableDimensionCount + Integer.bitCount(mask);
+        Dimension[] selection = new Dimension[selected];
+        int bit = permutableDimensionCount;
+        for (int i = 0, s = 0; i < dimensions.length; i++) {
+            if (dimensionsPermutable[i] && (mask & (1 << --bit)) == 0) {
+                continue;
+            }
+            selection[s++] = dimensions[i];
         }
+        return selection;
+    }
 
-        @Override
-        public Iterator<Iterable<T>> iterator() {
-            return new Iterator<Iterable<T>>() {
-
-                int permutation = permutable ? 2 : 1;
-                Iterator<Iterable<T>> nextSegmentIt = nextSegment == null ? null : nextSegment.iterator();
-
-                @Override
-                public boolean hasNext() {
-                    boolean isTail = nextSegmentIt == null;
-                    if (isTail) {
-                        return permutation > 0;
-                    } else {
-                        return permutation > 0 && nextSegmentIt != null && nextSegmentIt.hasNext();
-                    }
-                }
+    @Override
+    public String toString() {
+        return Arrays.toString(names) + " " + Arrays.toString(dimensions);
+    }
 
-                @Override
-                public Iterable<T> next() {
-                    assert permutation > 0 && permutation <= 2;
-                    boolean isTail = nextSegmentIt == null;
-                    if (isTail) {
-                        if (permutation == 2) {
-                            permutation = 1;
-                            return Collections.emptyList();
-                        } else {
-                            assert permutation == 1;
-                            permutation = 0;
-                            return ImmutableList.of(token);
-                        }
-                    } else {
-                        if (permutation == 2) {
-                            Iterable<T> next = nextSegmentIt.next();
-                            if (!nextSegmentIt.hasNext()) {
-                                permutation = 1;
-                                nextSegmentIt = nextSegment.iterator();
-                            }
-                            return next;
-                        } else {
-                            assert permutation == 1;
-                            Iterable<T> next = Iterables.concat(ImmutableList.of(token), nextSegmentIt.next());
-                            if (!nextSegmentIt.hasNext()) {
-                                permutation = 0;
-                                nextSegmentIt = null;
-                            }
-                            return next;
-                        }
-                    }
-                }
+    /**
+     * One permutation of a demuxed key: a CloudWatch metric name and its dimensions.
+     */
+    static class Template {
 
-                @Override
-                public void remove() {
-                    throw new UnsupportedOperationException("Nope.");
-                }
-            };
+        final String metricName;
+        private final Dimension[] dimensions;
+
+        Template(String metricName, Dimension[] dimensions) {
+            this.metricName = metricName;
+            this.dimensions = dimensions;
         }
-    /*
-    Three option*
-    hasNext == tail && exhausted || next.hasNext()   next: return
-    Three -> ""
-    Three -> option
-     */
-    }
 
+        List<Dimension> getDimensions() {
+            return Collections.unmodifiableList(Arrays.asList(dimensions));
+        }
+
+        MetricDatum newDatum() {
+            return new MetricDatum().withMetricName(metricName).withDimensions(dimensions);
+        }
+    }
 }
@@ -0,0 +1,56 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.codahale.metrics.Gauge;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe {@link Gauge} of a primitive double. Setting it does not allocate, and CloudWatchReporter reads it
+ * without boxing.
+ */
+public class DoubleGauge implements Gauge<Double> {
+
+    /**
+     * {@link Double#doubleToRawLongBits(double)} of the value
+     */
+    private final AtomicLong bits;
+
+    /**
+     * Initialized with value of 0.
+     */
+    public DoubleGauge() {
+        this(0.0);
+    }
+
+    public DoubleGauge(double initialValue) {
+        bits = new AtomicLong(Double.doubleToRawLongBits(initialValue));
+    }
+
+    @Override
+    public Double getValue() {
+        return doubleValue();
+    }
+
+    public double doubleValue() {
+        return Double.longBitsToDouble(bits.get());
+    }
+
+    public void setValue(double value) {
+        bits.set(Double.doubleToRawLongBits(value));
+    }
+}
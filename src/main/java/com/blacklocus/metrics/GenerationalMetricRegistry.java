@@ -0,0 +1,243 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.Timer;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static com.blacklocus.metrics.Constants.NAME_TIMESTAMP_TOKEN;
+
+/**
+ * A {@link MetricRegistry} which lets a {@link CloudWatchReporter} drain timestamped metrics without wiping them out
+ * from under the writers. Giving one of these to a CloudWatchReporter switches the reporter into <i>drain mode</i>.
+ * <p>
+ * Metrics are split into two tiers by name:
+ * <ul>
+ * <li>Names without a {@link Constants#NAME_TIMESTAMP_TOKEN} are <i>stable</i>. They live in a single registry, are
+ * reported on every tick and are never removed by the reporter. Counters and meters are reported as the difference
+ * since the previous report.</li>
+ * <li>Timestamped names are <i>one-shot buckets</i>. They are kept in two generations. Writers always hit the live
+ * generation. On every tick the reporter swaps the generations, translates the retired one, and only then evicts
+ * what it has fully consumed: gauges once read, and counting metrics once they have been idle for a whole cycle.</li>
+ * </ul>
+ * Counting metrics are reported as a diff against the previous drain, so an increment that lands on a retired
+ * generation after it was translated is picked up the next time that generation retires. Hot metrics are not removed
+ * and re-created every interval. The only write that can still be lost is one made through a metric reference held
+ * without use across an entire drain cycle, after the reporter has found that metric idle.
+ * <p>
+ * Since histograms and timers are not removed either, each report must take only the samples of its interval.
+ * {@link #histogram(String)} and {@link #timer(String)} thus create them with an {@link IntervalStatsReservoir}.
+ * Those {@link #register(String, Metric)}ed directly need an IntervalStatsReservoir or a {@link LogBucketReservoir}.
+ * The reporter skips any other, whose samples it would send again in every report.
+ * <p>
+ * The query methods ({@link #getNames()}, {@link #getCounters(MetricFilter)}, etc.) return a merged view over all
+ * tiers for the benefit of other reporters.
+ */
+public class GenerationalMetricRegistry extends MetricRegistry {
+
+    private final MetricRegistry stable = new MetricRegistry();
+
+    private volatile MetricRegistry live = new MetricRegistry();
+    private MetricRegistry retired = new MetricRegistry();
+
+    /**
+     * @return true if the name belongs to the generational (timestamped) tier
+     */
+    static boolean isGenerational(String name) {
+        return name.contains(NAME_TIMESTAMP_TOKEN);
+    }
+
+    private MetricRegistry route(String name) {
+        return isGenerational(name) ? live : stable;
+    }
+
+    /**
+     * @return the registry of stable, untimestamped metrics
+     */
+    MetricRegistry stable() {
+        return stable;
+    }
+
+    /**
+     * Atomically retires the live generation. The previously retired generation, which the reporter has already
+     * drained, becomes the live one again, so steady-state metrics are recycled instead of re-created.
+     *
+     * @return the generation which was live until now
+     */
+    synchronized MetricRegistry swap() {
+        MetricRegistry nowRetired = live;
+        live = retired;
+        retired = nowRetired;
+        return nowRetired;
+    }
+
+    @Override
+    public <T extends Metric> T register(String name, T metric) throws IllegalArgumentException {
+        return route(name).register(name, metric);
+    }
+
+    @Override
+    public Counter counter(String name) {
+        return route(name).counter(name);
+    }
+
+    /**
+     * @return the histogram of the name, created with an {@link IntervalStatsReservoir} if there is none
+     */
+    @Override
+    public Histogram histogram(String name) {
+        MetricRegistry tier = route(name);
+        while (true) {
+            Metric metric = tier.getMetrics().get(name);
+            if (metric instanceof Histogram) {
+                return (Histogram) metric;
+            } else if (metric != null) {
+                throw new IllegalArgumentException(name + " is already used for a different type of metric");
+            }
+            try {
+                return tier.register(name, new Histogram(new IntervalStatsReservoir()));
+            } catch (IllegalArgumentException e) {
+                // Registered concurrently. Look again.
+            }
+        }
+    }
+
+    @Override
+    public Meter meter(String name) {
+        return route(name).meter(name);
+    }
+
+    /**
+     * @return the timer of the name, created with an {@link IntervalStatsReservoir} if there is none
+     */
+    @Override
+    public Timer timer(String name) {
+        MetricRegistry tier = route(name);
+        while (true) {
+            Metric metric = tier.getMetrics().get(name);
+            if (metric instanceof Timer) {
+                return (Timer) metric;
+            } else if (metric != null) {
+                throw new IllegalArgumentException(name + " is already used for a different type of metric");
+            }
+            try {
+                return tier.register(name, new Timer(new IntervalStatsReservoir()));
+            } catch (IllegalArgumentException e) {
+                // Registered concurrently. Look again.
+            }
+        }
+    }
+
+    @Override
+    public synchronized boolean remove(String name) {
+        if (!isGenerational(name)) {
+            return stable.remove(name);
+        }
+        boolean removedLive = live.remove(name);
+        boolean removedRetired = retired.remove(name);
+        return removedLive || removedRetired;
+    }
+
+    @Override
+    public synchronized void removeMatching(MetricFilter filter) {
+        stable.removeMatching(filter);
+        live.removeMatching(filter);
+        retired.removeMatching(filter);
+    }
+
+    @Override
+    public synchronized void addListener(MetricRegistryListener listener) {
+        stable.addListener(listener);
+        live.addListener(listener);
+        retired.addListener(listener);
+    }
+
+    @Override
+    public synchronized void removeListener(MetricRegistryListener listener) {
+        stable.removeListener(listener);
+        live.removeListener(listener);
+        retired.removeListener(listener);
+    }
+
+    @Override
+    public synchronized SortedSet<String> getNames() {
+        SortedSet<String> names = new TreeSet<String>(stable.getNames());
+        names.addAll(retired.getNames());
+        names.addAll(live.getNames());
+        return names;
+    }
+
+    @Override
+    public synchronized SortedMap<String, Gauge> getGauges(MetricFilter filter) {
+        SortedMap<String, Gauge> gauges = new TreeMap<String, Gauge>(stable.getGauges(filter));
+        gauges.putAll(retired.getGauges(filter));
+        gauges.putAll(live.getGauges(filter));
+        return gauges;
+    }
+
+    @Override
+    public synchronized SortedMap<String, Counter> getCounters(MetricFilter filter) {
+        SortedMap<String, Counter> counters = new TreeMap<String, Counter>(stable.getCounters(filter));
+        counters.putAll(retired.getCounters(filter));
+        counters.putAll(live.getCounters(filter));
+        return counters;
+    }
+
+    @Override
+    public synchronized SortedMap<String, Histogram> getHistograms(MetricFilter filter) {
+        SortedMap<String, Histogram> histograms = new TreeMap<String, Histogram>(stable.getHistograms(filter));
+        histograms.putAll(retired.getHistograms(filter));
+        histograms.putAll(live.getHistograms(filter));
+        return histograms;
+    }
+
+    @Override
+    public synchronized SortedMap<String, Meter> getMeters(MetricFilter filter) {
+        SortedMap<String, Meter> meters = new TreeMap<String, Meter>(stable.getMeters(filter));
+        meters.putAll(retired.getMeters(filter));
+        meters.putAll(live.getMeters(filter));
+        return meters;
+    }
+
+    @Override
+    public synchronized SortedMap<String, Timer> getTimers(MetricFilter filter) {
+        SortedMap<String, Timer> timers = new TreeMap<String, Timer>(stable.getTimers(filter));
+        timers.putAll(retired.getTimers(filter));
+        timers.putAll(live.getTimers(filter));
+        return timers;
+    }
+
+    @Override
+    public synchronized Map<String, Metric> getMetrics() {
+        Map<String, Metric> metrics = new TreeMap<String, Metric>(stable.getMetrics());
+        metrics.putAll(retired.getMetrics());
+        metrics.putAll(live.getMetrics());
+        return metrics;
+    }
+}
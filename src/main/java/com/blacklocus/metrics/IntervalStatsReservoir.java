@@ -0,0 +1,212 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link Reservoir} which keeps no values, only the count, sum, min and max of what was recorded since the last
+ * {@link #getSnapshot()}. That is exactly what a CloudWatch StatisticSet holds, so CloudWatchReporter can report each
+ * interval exactly, in constant time, instead of copying and sorting a sliding window of samples. Give it to the
+ * histograms and timers to be reported this way, e.g.
+ * <pre>
+ *     registry.register(new MetricNameBuilder("Latency").build(), new Timer(new IntervalStatsReservoir()));
+ * </pre>
+ * Each {@link #getSnapshot()} takes the interval and starts a new one, so this suits a registry read by
+ * CloudWatchReporter alone. Other reporters would steal intervals from it and see no quantiles.
+ * <p>
+ * Updates are striped by thread and never block. A snapshot swaps in a fresh interval, then waits out the few
+ * updates still being applied to the old one, so every update lands in exactly one snapshot.
+ */
+public class IntervalStatsReservoir implements Reservoir {
+
+    private static final int WRITERS = 0;
+    private static final int COUNT = 1;
+    private static final int SUM = 2;
+    private static final int MIN = 3;
+    private static final int MAX = 4;
+
+    private final int mask;
+
+    private volatile Interval current;
+
+    public IntervalStatsReservoir() {
+        int stripes = LongCells.stripes();
+        this.mask = stripes - 1;
+        this.current = new Interval(stripes);
+    }
+
+    @Override
+    public int size() {
+        long count = current.sum(COUNT);
+        return (int) Math.min(count, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void update(long value) {
+        int base = LongCells.stripe(mask) * LongCells.SPACING;
+        Interval interval;
+        while (true) {
+            interval = current;
+            interval.cells.incrementAndGet(base + WRITERS);
+            if (interval == current) {
+                break;
+            }
+            // Retired in the meantime. Its snapshot may already be taken.
+            interval.cells.decrementAndGet(base + WRITERS);
+        }
+
+        AtomicLongArray cells = interval.cells;
+        cells.incrementAndGet(base + COUNT);
+        cells.addAndGet(base + SUM, value);
+        long min;
+        while (value < (min = cells.get(base + MIN)) && !cells.compareAndSet(base + MIN, min, value)) {
+            // retry
+        }
+        long max;
+        while (value > (max = cells.get(base + MAX)) && !cells.compareAndSet(base + MAX, max, value)) {
+            // retry
+        }
+        cells.decrementAndGet(base + WRITERS);
+    }
+
+    /**
+     * @return the statistics recorded since the previous snapshot, which are reset
+     */
+    @Override
+    public synchronized IntervalSnapshot getSnapshot() {
+        Interval retired = current;
+        current = new Interval(mask + 1);
+        while (retired.sum(WRITERS) != 0) {
+            // Updates in progress are a handful of atomic operations from done.
+            Thread.yield();
+        }
+
+        long count = 0;
+        long sum = 0;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int base = 0; base < retired.cells.length(); base += LongCells.SPACING) {
+            count += retired.cells.get(base + COUNT);
+            sum += retired.cells.get(base + SUM);
+            min = Math.min(min, retired.cells.get(base + MIN));
+            max = Math.max(max, retired.cells.get(base + MAX));
+        }
+        return count == 0 ? new IntervalSnapshot(0, 0, 0, 0) : new IntervalSnapshot(count, sum, min, max);
+    }
+
+    private static class Interval {
+
+        final AtomicLongArray cells;
+
+        Interval(int stripes) {
+            cells = new AtomicLongArray(stripes * LongCells.SPACING);
+            for (int base = 0; base < cells.length(); base += LongCells.SPACING) {
+                cells.set(base + MIN, Long.MAX_VALUE);
+                cells.set(base + MAX, Long.MIN_VALUE);
+            }
+        }
+
+        long sum(int field) {
+            long sum = 0;
+            for (int base = 0; base < cells.length(); base += LongCells.SPACING) {
+                sum += cells.get(base + field);
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * The statistics of one interval. There are no values, so quantiles are answered as the min for 0, the max for 1
+     * and the mean in between, and the standard deviation as 0.
+     */
+    public static class IntervalSnapshot extends Snapshot {
+
+        private static final long[] NO_VALUES = new long[0];
+
+        private final long count;
+        private final long sum;
+        private final long min;
+        private final long max;
+
+        IntervalSnapshot(long count, long sum, long min, long max) {
+            this.count = count;
+            this.sum = sum;
+            this.min = min;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        @Override
+        public double getValue(double quantile) {
+            if (quantile < 0.0 || quantile > 1.0 || Double.isNaN(quantile)) {
+                throw new IllegalArgumentException(quantile + " is not in [0..1]");
+            }
+            if (quantile == 0.0) {
+                return min;
+            } else if (quantile == 1.0) {
+                return max;
+            }
+            return getMean();
+        }
+
+        @Override
+        public long[] getValues() {
+            return NO_VALUES;
+        }
+
+        @Override
+        public int size() {
+            return (int) Math.min(count, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public long getMax() {
+            return max;
+        }
+
+        @Override
+        public double getMean() {
+            return count == 0 ? 0.0 : (double) sum / count;
+        }
+
+        @Override
+        public long getMin() {
+            return min;
+        }
+
+        @Override
+        public double getStdDev() {
+            return 0.0;
+        }
+
+        @Override
+        public void dump(OutputStream output) {
+            // No values to dump.
+        }
+    }
+}
@@ -0,0 +1,345 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A {@link Reservoir} which counts values into logarithmic buckets, so that CloudWatch can compute percentiles. Each
+ * bucket spans values within a fixed relative accuracy of its representative value, the way DDSketch does, so that
+ * e.g. at the default 1% every p99 CloudWatch computes is within 1% of the true p99 of the interval. Values of 0 or
+ * less share a bucket represented by 0.
+ * <p>
+ * CloudWatchReporter sends the non-empty buckets of each interval as the Values and Counts of MetricDatums, instead
+ * of a StatisticSet. Representative values depend only on the bucket, so the same bucket of different metrics and
+ * different machines is the same value, and CloudWatch merges aggregate series (e.g. "Requests" without
+ * {@code machine=}) exactly. Give it to the histograms and timers to be reported this way, e.g.
+ * <pre>
+ *     registry.register(new MetricNameBuilder("Latency").build(), new Timer(new LogBucketReservoir()));
+ * </pre>
+ * Buckets are allocated in pages of {@value #PAGE_SIZE}, on the first value to land in a page, and a page is dropped
+ * again after an interval in which it counted nothing. Memory follows the range of recent values, about 512 bytes
+ * for every factor of 3.6 at 1% and for each of two intervals. Latencies spanning four orders of magnitude take about
+ * 8 KB. The buckets are not collapsed to bound this further, the way DDSketch collapses its lowest ones: a collapsed
+ * bucket would hold a different range of values on each machine, and the aggregate series would no longer merge
+ * exactly. At worst, for values spanning all positive longs, it is the full 2200 or so buckets per interval, 35 KB in
+ * all.
+ * <p>
+ * Like {@link IntervalStatsReservoir}, each {@link #getSnapshot()} takes the interval and starts a new one, so this
+ * suits a registry read by CloudWatchReporter alone.
+ */
+public class LogBucketReservoir implements Reservoir {
+
+    public static final double DEFAULT_RELATIVE_ACCURACY = 0.01;
+
+    /**
+     * Buckets per page, 512 bytes of counts
+     */
+    static final int PAGE_SIZE = 64;
+
+    private static final int PAGE_BITS = 6;
+
+    private final double gamma;
+    private final double inverseLogGamma;
+    private final int mask;
+
+    private volatile Interval current;
+
+    /**
+     * The other interval, recycled by the next snapshot. Guarded by this.
+     */
+    private Interval spare;
+
+    public LogBucketReservoir() {
+        this(DEFAULT_RELATIVE_ACCURACY);
+    }
+
+    /**
+     * @param relativeAccuracy bound on the relative error of every value CloudWatch is given, in (0, 1)
+     */
+    public LogBucketReservoir(double relativeAccuracy) {
+        Preconditions.checkArgument(relativeAccuracy > 0.0 && relativeAccuracy < 1.0,
+                "relativeAccuracy must be in (0, 1)");
+        this.gamma = (1.0 + relativeAccuracy) / (1.0 - relativeAccuracy);
+        this.inverseLogGamma = 1.0 / Math.log(gamma);
+        int stripes = LongCells.stripes();
+        this.mask = stripes - 1;
+        int buckets = bucketOf(Long.MAX_VALUE) + 1;
+        this.current = new Interval(stripes, buckets);
+        this.spare = new Interval(stripes, buckets);
+    }
+
+    /**
+     * @return index into the bucket array. 0 holds values of 0 or less, i + 1 holds (gamma^(i-1), gamma^i].
+     */
+    int bucketOf(long value) {
+        if (value <= 0) {
+            return 0;
+        }
+        return (int) Math.ceil(Math.log(value) * inverseLogGamma) + 1;
+    }
+
+    /**
+     * @return the value which represents the bucket, within the relative accuracy of every value in it
+     */
+    double valueOf(int bucket) {
+        if (bucket == 0) {
+            return 0.0;
+        }
+        return 2.0 * Math.pow(gamma, bucket - 1) / (gamma + 1.0);
+    }
+
+    @Override
+    public int size() {
+        long count = 0;
+        AtomicReferenceArray<AtomicLongArray> pages = current.pages;
+        for (int p = 0; p < pages.length(); p++) {
+            AtomicLongArray page = pages.get(p);
+            for (int i = 0; page != null && i < PAGE_SIZE; i++) {
+                count += page.get(i);
+            }
+        }
+        return (int) Math.min(count, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void update(long value) {
+        int writer = LongCells.stripe(mask) * LongCells.SPACING;
+        Interval interval;
+        while (true) {
+            interval = current;
+            interval.writers.incrementAndGet(writer);
+            if (interval == current) {
+                break;
+            }
+            // Retired in the meantime. Its snapshot may already be taken.
+            interval.writers.decrementAndGet(writer);
+        }
+        int bucket = bucketOf(value);
+        interval.page(bucket >>> PAGE_BITS).incrementAndGet(bucket & (PAGE_SIZE - 1));
+        interval.writers.decrementAndGet(writer);
+    }
+
+    /**
+     * @return the buckets counted since the previous snapshot, which are reset
+     */
+    @Override
+    public synchronized BucketSnapshot getSnapshot() {
+        Interval retired = current;
+        current = spare;
+        while (retired.writing()) {
+            // Updates in progress are an atomic increment from done.
+            Thread.yield();
+        }
+
+        AtomicReferenceArray<AtomicLongArray> pages = retired.pages;
+        int nonEmpty = 0;
+        for (int p = 0; p < pages.length(); p++) {
+            AtomicLongArray page = pages.get(p);
+            for (int i = 0; page != null && i < PAGE_SIZE; i++) {
+                if (page.get(i) != 0) {
+                    nonEmpty++;
+                }
+            }
+        }
+        double[] values = new double[nonEmpty];
+        long[] counts = new long[nonEmpty];
+        int j = 0;
+        for (int p = 0; p < pages.length(); p++) {
+            AtomicLongArray page = pages.get(p);
+            if (page == null) {
+                continue;
+            }
+            int before = j;
+            for (int i = 0; i < PAGE_SIZE; i++) {
+                long count = page.get(i);
+                if (count != 0) {
+                    values[j] = valueOf((p << PAGE_BITS) + i);
+                    counts[j] = count;
+                    page.set(i, 0);
+                    j++;
+                }
+            }
+            if (j == before) {
+                // Nothing in this range for a whole interval. Let it go until values come back to it.
+                pages.set(p, null);
+            }
+        }
+        // Late writers see it is no longer current and move on, so it can be reset and reused.
+        spare = retired;
+        return new BucketSnapshot(values, counts);
+    }
+
+    private static class Interval {
+
+        final AtomicLongArray writers;
+
+        /**
+         * Counts of buckets [p * PAGE_SIZE, (p + 1) * PAGE_SIZE) at p, null until a value lands in the page
+         */
+        final AtomicReferenceArray<AtomicLongArray> pages;
+
+        Interval(int stripes, int buckets) {
+            this.writers = new AtomicLongArray(stripes * LongCells.SPACING);
+            this.pages = new AtomicReferenceArray<AtomicLongArray>((buckets + PAGE_SIZE - 1) >>> PAGE_BITS);
+        }
+
+        AtomicLongArray page(int p) {
+            AtomicLongArray page = pages.get(p);
+            if (page == null) {
+                // Racing writers agree on whichever page is set first.
+                pages.compareAndSet(p, null, new AtomicLongArray(PAGE_SIZE));
+                page = pages.get(p);
+            }
+            return page;
+        }
+
+        boolean writing() {
+            long writing = 0;
+            for (int i = 0; i < writers.length(); i += LongCells.SPACING) {
+                writing += writers.get(i);
+            }
+            return writing != 0;
+        }
+    }
+
+    /**
+     * The non-empty buckets of one interval, as ascending representative values and their counts. Quantiles and the
+     * other statistics are computed from the buckets, so they are as accurate as the buckets. {@link #getValues()}
+     * gives each representative value once, rounded.
+     */
+    public static class BucketSnapshot extends Snapshot {
+
+        private final double[] values;
+        private final long[] counts;
+        private final long count;
+
+        BucketSnapshot(double[] values, long[] counts) {
+            this.values = values;
+            this.counts = counts;
+            long count = 0;
+            for (long c : counts) {
+                count += c;
+            }
+            this.count = count;
+        }
+
+        /**
+         * @return representative values of the non-empty buckets, ascending. Do not modify.
+         */
+        public double[] getBucketValues() {
+            return values;
+        }
+
+        /**
+         * @return counts of the non-empty buckets, in the order of {@link #getBucketValues()}. Do not modify.
+         */
+        public long[] getBucketCounts() {
+            return counts;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public double getValue(double quantile) {
+            if (quantile < 0.0 || quantile > 1.0 || Double.isNaN(quantile)) {
+                throw new IllegalArgumentException(quantile + " is not in [0..1]");
+            }
+            if (count == 0) {
+                return 0.0;
+            }
+            double rank = quantile * (count - 1);
+            long seen = 0;
+            for (int i = 0; i < values.length; i++) {
+                seen += counts[i];
+                if (seen > rank) {
+                    return values[i];
+                }
+            }
+            return values[values.length - 1];
+        }
+
+        @Override
+        public long[] getValues() {
+            long[] rounded = new long[values.length];
+            for (int i = 0; i < values.length; i++) {
+                rounded[i] = Math.round(values[i]);
+            }
+            return rounded;
+        }
+
+        @Override
+        public int size() {
+            return (int) Math.min(count, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public long getMax() {
+            return values.length == 0 ? 0 : Math.round(values[values.length - 1]);
+        }
+
+        @Override
+        public double getMean() {
+            if (count == 0) {
+                return 0.0;
+            }
+            double sum = 0.0;
+            for (int i = 0; i < values.length; i++) {
+                sum += values[i] * counts[i];
+            }
+            return sum / count;
+        }
+
+        @Override
+        public long getMin() {
+            return values.length == 0 ? 0 : Math.round(values[0]);
+        }
+
+        @Override
+        public double getStdDev() {
+            if (count <= 1) {
+                return 0.0;
+            }
+            double mean = getMean();
+            double variance = 0.0;
+            for (int i = 0; i < values.length; i++) {
+                double diff = values[i] - mean;
+                variance += diff * diff * counts[i];
+            }
+            return Math.sqrt(variance / (count - 1));
+        }
+
+        @Override
+        public void dump(OutputStream output) {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(output, Charsets.UTF_8));
+            for (int i = 0; i < values.length; i++) {
+                out.printf("%f\t%d%n", values[i], counts[i]);
+            }
+            out.flush();
+        }
+    }
+}
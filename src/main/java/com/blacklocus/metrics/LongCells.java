@@ -0,0 +1,182 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A sum striped over cells, in the manner of Java 8's LongAdder but available on Java 6. Adds go to a single base
+ * value until two threads collide on it. Only then are cells created, each padded to its own cache line, and each
+ * thread adds to the cell picked by its id. The cells double, up to {@link #stripes()}, whenever threads still collide
+ * on one. An uncontended sum costs a few words rather than a cache line per processor.
+ */
+class LongCells {
+
+    /**
+     * Longs per 64 byte cache line
+     */
+    static final int SPACING = 8;
+
+    private static final int MAX_CELLS = 64;
+
+    private static final int MAX_STRIPES = stripes();
+
+    private static final AtomicLongFieldUpdater<LongCells> BASE =
+            AtomicLongFieldUpdater.newUpdater(LongCells.class, "base");
+
+    private volatile long base;
+
+    /**
+     * Null until there is contention. Only replaced, grown or filled in while holding this object's lock, so that a
+     * cell is never created in an array that has already been copied.
+     */
+    private volatile AtomicReferenceArray<Cell> cells;
+
+    /**
+     * @return a power of two number of stripes, enough for the processors to rarely share one
+     */
+    static int stripes() {
+        int count = 1;
+        while (count < 2 * Runtime.getRuntime().availableProcessors() && count < MAX_CELLS) {
+            count <<= 1;
+        }
+        return count;
+    }
+
+    /**
+     * @param mask stripes - 1
+     * @return the stripe of the current thread
+     */
+    static int stripe(int mask) {
+        // Thread ids are sequential. Fibonacci hashing spreads them over the stripes.
+        long id = Thread.currentThread().getId();
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+
+    void add(long x) {
+        AtomicReferenceArray<Cell> cs = cells;
+        if (cs == null) {
+            long b = base;
+            if (BASE.compareAndSet(this, b, b + x)) {
+                return;
+            }
+            cs = grow(null);
+        }
+        while (true) {
+            Cell cell = cs.get(stripe(cs.length() - 1));
+            if (cell == null) {
+                if (create(cs, x)) {
+                    return;
+                }
+            } else {
+                long v = cell.value;
+                if (Cell.VALUE.compareAndSet(cell, v, v + x)) {
+                    return;
+                }
+                if (cs.length() >= MAX_STRIPES) {
+                    Cell.VALUE.addAndGet(cell, x);
+                    return;
+                }
+                grow(cs);
+            }
+            cs = cells;
+        }
+    }
+
+    /**
+     * @return the sum, which is exact only if there are no concurrent adds
+     */
+    long sum() {
+        long sum = base;
+        AtomicReferenceArray<Cell> cs = cells;
+        if (cs != null) {
+            for (int i = 0; i < cs.length(); i++) {
+                Cell cell = cs.get(i);
+                if (cell != null) {
+                    sum += cell.value;
+                }
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Takes the base's and each cell's value and leaves 0 in its place, atomically per cell. Every add is counted by
+     * exactly one call, however adds and calls interleave.
+     *
+     * @return the sum of what was taken
+     */
+    long sumThenReset() {
+        long sum = BASE.getAndSet(this, 0);
+        AtomicReferenceArray<Cell> cs = cells;
+        if (cs != null) {
+            for (int i = 0; i < cs.length(); i++) {
+                Cell cell = cs.get(i);
+                if (cell != null) {
+                    sum += Cell.VALUE.getAndSet(cell, 0);
+                }
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * @return whether a new cell holding x took the current thread's place in the cells, which must still be current
+     */
+    private synchronized boolean create(AtomicReferenceArray<Cell> cs, long x) {
+        int i = stripe(cs.length() - 1);
+        if (cs != cells || cs.get(i) != null) {
+            return false;
+        }
+        Cell cell = new Cell();
+        cell.value = x;
+        cs.set(i, cell);
+        return true;
+    }
+
+    /**
+     * Starts the cells at two, or doubles them, keeping the existing cells so that adds in flight to them still count.
+     *
+     * @param contended the cells some thread collided in, or null for the base
+     * @return the current cells
+     */
+    private synchronized AtomicReferenceArray<Cell> grow(AtomicReferenceArray<Cell> contended) {
+        AtomicReferenceArray<Cell> cs = cells;
+        if (cs == contended) {
+            int length = cs == null ? 2 : Math.min(cs.length() << 1, MAX_STRIPES);
+            AtomicReferenceArray<Cell> grown = new AtomicReferenceArray<Cell>(length);
+            for (int i = 0; cs != null && i < cs.length(); i++) {
+                grown.set(i, cs.get(i));
+            }
+            cells = cs = grown;
+        }
+        return cs;
+    }
+
+    /**
+     * One stripe of the sum, padded either side so that no two cells share a cache line.
+     */
+    @SuppressWarnings("unused")
+    static final class Cell {
+
+        static final AtomicLongFieldUpdater<Cell> VALUE = AtomicLongFieldUpdater.newUpdater(Cell.class, "value");
+
+        long p0, p1, p2, p3, p4, p5, p6;
+        volatile long value;
+        long q0, q1, q2, q3, q4, q5, q6;
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.codahale.metrics.Gauge;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe {@link Gauge} of a primitive long. Setting it does not allocate, and CloudWatchReporter reads it
+ * without boxing.
+ */
+public class LongGauge implements Gauge<Long> {
+
+    private final AtomicLong value;
+
+    /**
+     * Initialized with value of 0.
+     */
+    public LongGauge() {
+        this(0L);
+    }
+
+    public LongGauge(long initialValue) {
+        value = new AtomicLong(initialValue);
+    }
+
+    @Override
+    public Long getValue() {
+        return value.get();
+    }
+
+    public long longValue() {
+        return value.get();
+    }
+
+    public void setValue(long value) {
+        this.value.set(value);
+    }
+}
@@ -0,0 +1,666 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
+import com.amazonaws.services.cloudwatch.model.StatisticSet;
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An on-disk queue of PutMetricData requests which could not be delivered, so that they survive long CloudWatch
+ * outages and process restarts without taking up heap.
+ * <p>
+ * Requests are appended as records to fixed-size, memory-mapped segment files in one directory, and rotated to the
+ * next segment when the current one is full. Once there are as many segments as the disk bound allows, the oldest is
+ * emptied, data and all, and reused. Records are read back oldest first; one which has been delivered is marked
+ * consumed in place, and a segment is emptied for reuse once all of its records are consumed. Segment files are never
+ * deleted: a mapping cannot be released before Java 9 other than by garbage collection, so a deleted segment would
+ * keep its disk space until then, while a reused one simply takes new records. Emptying a segment zeroes its header
+ * and first record length.
+ * <p>
+ * Each segment starts with a long sequence number, in the order the segments were filled, or 0 if it is empty. Then
+ * come its records, each
+ * <pre>
+ *     int length (0: end of segment, negative: consumed), then length bytes of
+ *     namespace, int datum count, then per datum:
+ *         name, byte field flags, short dimension count, name and value per dimension,
+ *         [double value], [double sum, count, min, max], [int n, n double values], [int n, n double counts],
+ *         [unit], long timestamp, [int storage resolution]
+ * </pre>
+ * where strings are a short char count (-1 for null) and the chars. The length is written last, after a 0 length
+ * past the record to end the segment there, so a record interrupted by a crash is never read back, nor is anything
+ * left from before the segment was reused. Appending computes the record size and copies fields straight into the
+ * mapped buffer, allocating nothing per datum.
+ * <p>
+ * Datums without a timestamp are stamped with the time they are spooled. On the way out, datums older than
+ * CloudWatch's accepted window ({@link #MAX_DATA_AGE_MILLIS}) are dropped.
+ */
+class MetricDataSpool implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MetricDataSpool.class);
+
+    static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    static final int DEFAULT_SEGMENT_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * CloudWatch accepts data points time stamped up to two weeks in the past.
+     */
+    static final long MAX_DATA_AGE_MILLIS = TimeUnit.DAYS.toMillis(14);
+
+    private static final String SEGMENT_PREFIX = "metric-data-";
+    private static final String SEGMENT_SUFFIX = ".spool";
+
+    /**
+     * Bytes of the sequence number in front of a segment's records
+     */
+    private static final int HEADER_BYTES = 8;
+
+    private static final int VALUE = 1;
+    private static final int STATISTIC_VALUES = 1 << 1;
+    private static final int VALUES = 1 << 2;
+    private static final int COUNTS = 1 << 3;
+    private static final int UNIT = 1 << 4;
+    private static final int STORAGE_RESOLUTION = 1 << 5;
+
+    private final File directory;
+    private final int segmentBytes;
+    private final int maxSegments;
+
+    /**
+     * Oldest first. Appends go to the last one, reads come from the first one.
+     */
+    private final Deque<Segment> segments = new ArrayDeque<Segment>();
+
+    /**
+     * Segment files holding no records, to fill before creating another file
+     */
+    private final Deque<Segment> empty = new ArrayDeque<Segment>();
+    private int fileCount = 0;
+    private long nextSequence = 1;
+
+    private long spooledRequests = 0;
+    private long evictedRequests = 0;
+
+    /**
+     * @param directory    to keep segment files in, created if needed. Segments already there are recovered.
+     * @param maxBytes     most disk space to take up, rounded down to whole segments but at least two. Segment files
+     *                     already in the directory are kept even if there are more.
+     * @param segmentBytes size of each segment file, which is also the largest request that can be spooled
+     * @throws IOException if the directory or its segments cannot be opened
+     */
+    MetricDataSpool(File directory, long maxBytes, int segmentBytes) throws IOException {
+        Preconditions.checkArgument(segmentBytes > 64, "segmentBytes too small");
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = (int) Math.max(2, Math.min(Integer.MAX_VALUE, maxBytes / segmentBytes));
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create spool directory " + directory);
+        }
+        recover();
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            throw new IOException("Could not list spool directory " + directory);
+        }
+        List<Segment> filled = new ArrayList<Segment>();
+        for (File file : files) {
+            Segment segment = new Segment(file);
+            fileCount++;
+            segment.scan();
+            if (segment.sequence == 0 || segment.isConsumed()) {
+                segment.empty();
+                empty.addLast(segment);
+            } else {
+                filled.add(segment);
+                nextSequence = Math.max(nextSequence, segment.sequence + 1);
+            }
+        }
+        Collections.sort(filled);
+        segments.addAll(filled);
+        if (!segments.isEmpty()) {
+            LOG.info("Recovered {} metric data spool segments from {}", segments.size(), directory);
+        }
+    }
+
+    /**
+     * Appends the request, evicting the oldest segment if the spool is full.
+     *
+     * @return false if the request could not be spooled
+     */
+    synchronized boolean append(PutMetricDataRequest request) {
+        int size = recordSize(request);
+        if (HEADER_BYTES + 4 + size > segmentBytes) {
+            LOG.warn("A request of {} metric data is too large for the spool. It has been discarded.",
+                    request.getMetricData().size());
+            return false;
+        }
+        try {
+            Segment segment = segments.peekLast();
+            if (segment == null || segment.writePos + 4 + size > segmentBytes) {
+                segment = rotate();
+            }
+            segment.append(request, size);
+            spooledRequests++;
+            return true;
+        } catch (IOException e) {
+            LOG.error("Could not spool a request of " + request.getMetricData().size() + " metric data. " +
+                    "It has been discarded.", e);
+            return false;
+        }
+    }
+
+    private Segment rotate() throws IOException {
+        while (segments.size() >= maxSegments) {
+            Segment oldest = segments.pollFirst();
+            int lost = oldest.countUnconsumed();
+            evictedRequests += lost;
+            LOG.warn("Metric data spool is full. Discarding the oldest {} spooled requests.", lost);
+            oldest.empty();
+            empty.addLast(oldest);
+        }
+        Segment segment = empty.pollFirst();
+        if (segment == null) {
+            File file;
+            do {
+                file = new File(directory, String.format("%s%04d%s", SEGMENT_PREFIX, fileCount++, SEGMENT_SUFFIX));
+            } while (file.exists());
+            segment = new Segment(file);
+        }
+        segment.fill(nextSequence++);
+        segments.addLast(segment);
+        return segment;
+    }
+
+    /**
+     * @return the oldest unconsumed request, which stays in the spool until {@link #ack(Spooled)}ed, or null if
+     * there is none. Datums beyond CloudWatch's accepted window are left out, and requests with none left are
+     * consumed straight away.
+     */
+    synchronized Spooled peek() {
+        long oldestAccepted = System.currentTimeMillis() - MAX_DATA_AGE_MILLIS;
+        while (true) {
+            Segment segment = segments.peekFirst();
+            if (segment == null) {
+                return null;
+            }
+            if (segment.isConsumed()) {
+                if (segment == segments.peekLast()) {
+                    return null;
+                }
+                Segment consumed = segments.pollFirst();
+                consumed.empty();
+                empty.addLast(consumed);
+                continue;
+            }
+            Spooled spooled = segment.read(oldestAccepted);
+            if (!spooled.request.getMetricData().isEmpty()) {
+                return spooled;
+            }
+            ack(spooled);
+        }
+    }
+
+    /**
+     * Marks a request from {@link #peek()} as delivered. Does nothing if it has been evicted in the meantime.
+     */
+    synchronized void ack(Spooled spooled) {
+        Segment segment = spooled.segment;
+        if (segment.sequence != spooled.sequence || segment.readPos != spooled.position) {
+            return;
+        }
+        segment.consume();
+        if (segment.isConsumed() && segment != segments.peekLast()) {
+            segments.remove(segment);
+            segment.empty();
+            empty.addLast(segment);
+        }
+    }
+
+    synchronized boolean isEmpty() {
+        for (Segment segment : segments) {
+            if (!segment.isConsumed()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return number of requests spooled since this spool was opened
+     */
+    synchronized long getSpooledRequests() {
+        return spooledRequests;
+    }
+
+    /**
+     * @return number of spooled requests discarded to keep within the disk bound
+     */
+    synchronized long getEvictedRequests() {
+        return evictedRequests;
+    }
+
+    /**
+     * @return number of segments holding spooled requests, consumed or not. There may be more segment files, empty.
+     */
+    synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Flushes segments to disk. The spool must not be used afterwards.
+     */
+    @Override
+    public synchronized void close() {
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+        for (Segment segment : empty) {
+            segment.buffer.force();
+        }
+        segments.clear();
+        empty.clear();
+    }
+
+    /**
+     * A request read back from the spool, and where it came from.
+     */
+    static class Spooled {
+
+        final PutMetricDataRequest request;
+        private final Segment segment;
+
+        /**
+         * Of the segment when it was read, which changes if the segment is emptied and filled again meanwhile
+         */
+        private final long sequence;
+        private final int position;
+
+        Spooled(PutMetricDataRequest request, Segment segment, int position) {
+            this.request = request;
+            this.segment = segment;
+            this.sequence = segment.sequence;
+            this.position = position;
+        }
+    }
+
+    private class Segment implements Comparable<Segment> {
+
+        final MappedByteBuffer buffer;
+
+        /**
+         * 0 while the segment holds no records
+         */
+        long sequence = 0;
+        int writePos = HEADER_BYTES;
+        int readPos = HEADER_BYTES;
+
+        Segment(File file) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                // Mapping extends a new file with zeroes, which read as the end of the segment.
+                this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+            } finally {
+                // The mapping stays valid after the channel is closed.
+                raf.close();
+            }
+        }
+
+        void scan() {
+            sequence = buffer.getLong(0);
+            int pos = HEADER_BYTES;
+            boolean unconsumedSeen = false;
+            while (pos + 4 <= segmentBytes) {
+                int length = buffer.getInt(pos);
+                if (length == 0 || pos + 4 + Math.abs(length) > segmentBytes) {
+                    break;
+                }
+                pos += 4 + Math.abs(length);
+                if (length < 0 && !unconsumedSeen) {
+                    readPos = pos;
+                } else {
+                    unconsumedSeen = true;
+                }
+            }
+            writePos = pos;
+        }
+
+        boolean isConsumed() {
+            return readPos == writePos;
+        }
+
+        /**
+         * Starts taking records again, after those of every other segment
+         */
+        void fill(long sequence) {
+            this.sequence = sequence;
+            buffer.putLong(0, sequence);
+        }
+
+        /**
+         * Zeroes the first record length and then the sequence number, so that the segment reads back as holding
+         * nothing, crash or not.
+         */
+        void empty() {
+            buffer.putInt(HEADER_BYTES, 0);
+            buffer.putLong(0, 0L);
+            sequence = 0;
+            writePos = HEADER_BYTES;
+            readPos = HEADER_BYTES;
+        }
+
+        @Override
+        public int compareTo(Segment other) {
+            return sequence < other.sequence ? -1 : sequence == other.sequence ? 0 : 1;
+        }
+
+        int countUnconsumed() {
+            int count = 0;
+            for (int pos = readPos; pos < writePos; pos += 4 + Math.abs(buffer.getInt(pos))) {
+                if (buffer.getInt(pos) > 0) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        void append(PutMetricDataRequest request, int size) {
+            int pos = writePos + 4;
+            pos = putString(pos, request.getNamespace());
+            List<MetricDatum> data = request.getMetricData();
+            buffer.putInt(pos, data.size());
+            pos += 4;
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < data.size(); i++) {
+                pos = putDatum(pos, data.get(i), now);
+            }
+            if (pos + 4 <= segmentBytes) {
+                // End the segment after this record, over whatever a previous use of the segment left there.
+                buffer.putInt(pos, 0);
+            }
+            // Commit.
+            buffer.putInt(writePos, size);
+            writePos = pos;
+        }
+
+        private int putDatum(int pos, MetricDatum datum, long now) {
+            pos = putString(pos, datum.getMetricName());
+            buffer.put(pos, (byte) flags(datum));
+            pos += 1;
+
+            List<Dimension> dimensions = datum.getDimensions();
+            int dimensionCount = dimensions == null ? 0 : dimensions.size();
+            buffer.putShort(pos, (short) dimensionCount);
+            pos += 2;
+            for (int i = 0; i < dimensionCount; i++) {
+                pos = putString(pos, dimensions.get(i).getName());
+                pos = putString(pos, dimensions.get(i).getValue());
+            }
+
+            if (datum.getValue() != null) {
+                buffer.putDouble(pos, datum.getValue());
+                pos += 8;
+            }
+            StatisticSet statistics = datum.getStatisticValues();
+            if (statistics != null) {
+                buffer.putDouble(pos, statistics.getSum());
+                buffer.putDouble(pos + 8, statistics.getSampleCount());
+                buffer.putDouble(pos + 16, statistics.getMinimum());
+                buffer.putDouble(pos + 24, statistics.getMaximum());
+                pos += 32;
+            }
+            if (datum.getValues() != null) {
+                pos = putDoubles(pos, datum.getValues());
+            }
+            if (datum.getCounts() != null) {
+                pos = putDoubles(pos, datum.getCounts());
+            }
+            if (datum.getUnit() != null) {
+                pos = putString(pos, datum.getUnit());
+            }
+            buffer.putLong(pos, datum.getTimestamp() == null ? now : datum.getTimestamp().getTime());
+            pos += 8;
+            if (datum.getStorageResolution() != null) {
+                buffer.putInt(pos, datum.getStorageResolution());
+                pos += 4;
+            }
+            return pos;
+        }
+
+        private int putDoubles(int pos, List<Double> doubles) {
+            buffer.putInt(pos, doubles.size());
+            pos += 4;
+            for (int i = 0; i < doubles.size(); i++) {
+                buffer.putDouble(pos, doubles.get(i));
+                pos += 8;
+            }
+            return pos;
+        }
+
+        private int putString(int pos, String s) {
+            if (s == null) {
+                buffer.putShort(pos, (short) -1);
+                return pos + 2;
+            }
+            buffer.putShort(pos, (short) s.length());
+            pos += 2;
+            for (int i = 0; i < s.length(); i++) {
+                buffer.putChar(pos, s.charAt(i));
+                pos += 2;
+            }
+            return pos;
+        }
+
+        /**
+         * Reads the record at the read position, skipping any consumed records in front of it.
+         */
+        Spooled read(long oldestAccepted) {
+            int length;
+            while ((length = buffer.getInt(readPos)) < 0) {
+                readPos += 4 - length;
+            }
+            int pos = readPos + 4;
+            String namespace = getString(pos);
+            pos += stringSize(namespace);
+            int count = buffer.getInt(pos);
+            pos += 4;
+            List<MetricDatum> data = new ArrayList<MetricDatum>(count);
+            for (int i = 0; i < count; i++) {
+                MetricDatum datum = new MetricDatum();
+                pos = getDatum(pos, datum);
+                if (datum.getTimestamp().getTime() >= oldestAccepted) {
+                    data.add(datum);
+                }
+            }
+            return new Spooled(new PutMetricDataRequest().withNamespace(namespace).withMetricData(data), this,
+                    readPos);
+        }
+
+        private int getDatum(int pos, MetricDatum datum) {
+            String name = getString(pos);
+            pos += stringSize(name);
+            datum.setMetricName(name);
+            int flags = buffer.get(pos);
+            pos += 1;
+
+            int dimensionCount = buffer.getShort(pos);
+            pos += 2;
+            List<Dimension> dimensions = new ArrayList<Dimension>(dimensionCount);
+            for (int i = 0; i < dimensionCount; i++) {
+                String dimensionName = getString(pos);
+                pos += stringSize(dimensionName);
+                String dimensionValue = getString(pos);
+                pos += stringSize(dimensionValue);
+                dimensions.add(new Dimension().withName(dimensionName).withValue(dimensionValue));
+            }
+            datum.setDimensions(dimensions);
+
+            if ((flags & VALUE) != 0) {
+                datum.setValue(buffer.getDouble(pos));
+                pos += 8;
+            }
+            if ((flags & STATISTIC_VALUES) != 0) {
+                datum.setStatisticValues(new StatisticSet()
+                        .withSum(buffer.getDouble(pos))
+                        .withSampleCount(buffer.getDouble(pos + 8))
+                        .withMinimum(buffer.getDouble(pos + 16))
+                        .withMaximum(buffer.getDouble(pos + 24)));
+                pos += 32;
+            }
+            if ((flags & VALUES) != 0) {
+                List<Double> values = getDoubles(pos);
+                pos += 4 + 8 * values.size();
+                datum.setValues(values);
+            }
+            if ((flags & COUNTS) != 0) {
+                List<Double> counts = getDoubles(pos);
+                pos += 4 + 8 * counts.size();
+                datum.setCounts(counts);
+            }
+            if ((flags & UNIT) != 0) {
+                String unit = getString(pos);
+                pos += stringSize(unit);
+                datum.setUnit(unit);
+            }
+            datum.setTimestamp(new Date(buffer.getLong(pos)));
+            pos += 8;
+            if ((flags & STORAGE_RESOLUTION) != 0) {
+                datum.setStorageResolution(buffer.getInt(pos));
+                pos += 4;
+            }
+            return pos;
+        }
+
+        private List<Double> getDoubles(int pos) {
+            int count = buffer.getInt(pos);
+            pos += 4;
+            List<Double> doubles = new ArrayList<Double>(count);
+            for (int i = 0; i < count; i++) {
+                doubles.add(buffer.getDouble(pos));
+                pos += 8;
+            }
+            return doubles;
+        }
+
+        private String getString(int pos) {
+            int length = buffer.getShort(pos);
+            if (length < 0) {
+                return null;
+            }
+            pos += 2;
+            char[] chars = new char[length];
+            for (int i = 0; i < length; i++) {
+                chars[i] = buffer.getChar(pos);
+                pos += 2;
+            }
+            return new String(chars);
+        }
+
+        void consume() {
+            int length = buffer.getInt(readPos);
+            buffer.putInt(readPos, -length);
+            readPos += 4 + length;
+        }
+    }
+
+    private static int flags(MetricDatum datum) {
+        int flags = 0;
+        if (datum.getValue() != null) {
+            flags |= VALUE;
+        }
+        if (datum.getStatisticValues() != null) {
+            flags |= STATISTIC_VALUES;
+        }
+        if (datum.getValues() != null) {
+            flags |= VALUES;
+        }
+        if (datum.getCounts() != null) {
+            flags |= COUNTS;
+        }
+        if (datum.getUnit() != null) {
+            flags |= UNIT;
+        }
+        if (datum.getStorageResolution() != null) {
+            flags |= STORAGE_RESOLUTION;
+        }
+        return flags;
+    }
+
+    static int recordSize(PutMetricDataRequest request) {
+        int size = stringSize(request.getNamespace()) + 4;
+        List<MetricDatum> data = request.getMetricData();
+        for (int i = 0; i < data.size(); i++) {
+            MetricDatum datum = data.get(i);
+            size += stringSize(datum.getMetricName()) + 1 + 2;
+            List<Dimension> dimensions = datum.getDimensions();
+            if (dimensions != null) {
+                for (int j = 0; j < dimensions.size(); j++) {
+                    size += stringSize(dimensions.get(j).getName()) + stringSize(dimensions.get(j).getValue());
+                }
+            }
+            if (datum.getValue() != null) {
+                size += 8;
+            }
+            if (datum.getStatisticValues() != null) {
+                size += 32;
+            }
+            if (datum.getValues() != null) {
+                size += 4 + 8 * datum.getValues().size();
+            }
+            if (datum.getCounts() != null) {
+                size += 4 + 8 * datum.getCounts().size();
+            }
+            if (datum.getUnit() != null) {
+                size += stringSize(datum.getUnit());
+            }
+            size += 8;
+            if (datum.getStorageResolution() != null) {
+                size += 4;
+            }
+        }
+        return size;
+    }
+
+    private static int stringSize(String s) {
+        return 2 + (s == null ? 0 : 2 * s.length());
+    }
+}
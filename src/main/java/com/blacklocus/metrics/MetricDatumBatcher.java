@@ -0,0 +1,153 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Splits datums into PutMetricData batches which stay within a datum count and an estimated request size. The size
+ * is estimated from the query protocol form encoding the SDK sends, e.g.
+ * <code>&amp;MetricData.member.12.Dimensions.member.1.Name=machine</code>, erring on the large side.
+ */
+class MetricDatumBatcher {
+
+    /**
+     * CloudWatch limit on datums per PutMetricData request.
+     */
+    static final int DEFAULT_MAX_DATUMS_PER_REQUEST = 1000;
+
+    /**
+     * CloudWatch limit on the size of an HTTP POST PutMetricData request.
+     */
+    static final int DEFAULT_MAX_REQUEST_BYTES = 1000 * 1000;
+
+    /**
+     * "&amp;MetricData.member.NNNN." and the like
+     */
+    private static final int MEMBER_PREFIX_BYTES = 24;
+    private static final int SUB_MEMBER_PREFIX_BYTES = MEMBER_PREFIX_BYTES + 24;
+
+    /**
+     * Longest rendering of a double or an ISO 8601 timestamp
+     */
+    private static final int NUMBER_BYTES = 24;
+
+    private final int maxDatums;
+    private final int maxBytes;
+
+    MetricDatumBatcher(int maxDatums, int maxBytes) {
+        Preconditions.checkArgument(maxDatums > 0, "maxDatums must be positive");
+        Preconditions.checkArgument(maxBytes > 0, "maxBytes must be positive");
+        this.maxDatums = maxDatums;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param namespace the batches will be submitted under
+     * @param data      to batch, in order
+     * @return batches of data in the same order. A datum too large for any batch on its own gets a batch to itself.
+     */
+    List<List<MetricDatum>> batch(String namespace, Collection<MetricDatum> data) {
+        int requestBytes = estimateRequestBytes(namespace);
+
+        List<List<MetricDatum>> batches = new ArrayList<List<MetricDatum>>();
+        List<MetricDatum> batch = new ArrayList<MetricDatum>(Math.min(maxDatums, data.size()));
+        int batchBytes = requestBytes;
+        for (MetricDatum datum : data) {
+            int datumBytes = estimateBytes(datum);
+            if (!batch.isEmpty() && (batch.size() == maxDatums || batchBytes + datumBytes > maxBytes)) {
+                batches.add(batch);
+                batch = new ArrayList<MetricDatum>(Math.min(maxDatums, data.size()));
+                batchBytes = requestBytes;
+            }
+            batch.add(datum);
+            batchBytes += datumBytes;
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    static int estimateRequestBytes(String namespace) {
+        // Action=PutMetricData&Version=2010-08-01&Namespace=
+        return 52 + encodedLength(namespace);
+    }
+
+    static int estimateBytes(MetricDatum datum) {
+        int bytes = MEMBER_PREFIX_BYTES + "MetricName=".length() + encodedLength(datum.getMetricName());
+        if (datum.getDimensions() != null) {
+            for (Dimension dimension : datum.getDimensions()) {
+                bytes += 2 * SUB_MEMBER_PREFIX_BYTES
+                        + encodedLength(dimension.getName())
+                        + encodedLength(dimension.getValue());
+            }
+        }
+        if (datum.getValue() != null) {
+            bytes += MEMBER_PREFIX_BYTES + NUMBER_BYTES;
+        }
+        if (datum.getValues() != null) {
+            bytes += datum.getValues().size() * (SUB_MEMBER_PREFIX_BYTES + NUMBER_BYTES);
+        }
+        if (datum.getCounts() != null) {
+            bytes += datum.getCounts().size() * (SUB_MEMBER_PREFIX_BYTES + NUMBER_BYTES);
+        }
+        if (datum.getStatisticValues() != null) {
+            bytes += 4 * (SUB_MEMBER_PREFIX_BYTES + NUMBER_BYTES);
+        }
+        if (datum.getUnit() != null) {
+            bytes += MEMBER_PREFIX_BYTES + encodedLength(datum.getUnit());
+        }
+        if (datum.getTimestamp() != null) {
+            bytes += MEMBER_PREFIX_BYTES + NUMBER_BYTES;
+        }
+        if (datum.getStorageResolution() != null) {
+            bytes += MEMBER_PREFIX_BYTES + NUMBER_BYTES;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return length of the string once form encoded, counting anything but unreserved ASCII as the three bytes of a
+     * percent-encoded byte, and characters beyond Latin-1 as several
+     */
+    static int encodedLength(String s) {
+        if (s == null) {
+            return 0;
+        }
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_' || c == '.' || c == '~') {
+                length += 1;
+            } else if (c < 0x80) {
+                length += 3;
+            } else if (c < 0x800) {
+                length += 6;
+            } else {
+                length += 9;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,214 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.StatisticSet;
+import com.google.common.base.Objects;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Packs datums of the same series into fewer datums. A series here is the metric name, dimensions, unit and storage
+ * resolution, plus the timestamp truncated to the storage resolution (one minute if there is none).
+ * <ul>
+ * <li>Single values and Values/Counts arrays of a series become Values/Counts arrays, with equal values counted
+ * together and at most {@link #MAX_VALUES_PER_DATUM} distinct values per datum.</li>
+ * <li>StatisticSets of a series are merged into one.</li>
+ * </ul>
+ * CloudWatch computes the same Sum, SampleCount, Minimum and Maximum either way, but the data takes fewer datums and
+ * so fewer PutMetricData requests.
+ */
+class MetricDatumPacker {
+
+    /**
+     * CloudWatch limit on the Values array of a MetricDatum.
+     */
+    static final int MAX_VALUES_PER_DATUM = 150;
+
+    private MetricDatumPacker() {
+    }
+
+    /**
+     * @param data to pack, which are not modified
+     * @return packed data, series in the order in which they first appear
+     */
+    static List<MetricDatum> pack(Collection<MetricDatum> data) {
+        Map<Series, Pack> packs = new LinkedHashMap<Series, Pack>();
+        for (MetricDatum datum : data) {
+            Series series = new Series(datum);
+            Pack pack = packs.get(series);
+            if (pack == null) {
+                pack = new Pack();
+                packs.put(series, pack);
+            }
+            pack.add(datum);
+        }
+
+        List<MetricDatum> packed = new ArrayList<MetricDatum>(packs.size());
+        for (Pack pack : packs.values()) {
+            pack.emit(packed);
+        }
+        return packed;
+    }
+
+    private static long bucketOf(Date timestamp, Integer storageResolution) {
+        long periodMillis = (storageResolution == null || storageResolution <= 0 ? 60 : storageResolution) * 1000L;
+        return timestamp.getTime() - timestamp.getTime() % periodMillis;
+    }
+
+    private static class Series {
+
+        final String metricName;
+        final Object dimensions;
+        final String unit;
+        final Integer storageResolution;
+        final Long bucket;
+
+        Series(MetricDatum datum) {
+            this.metricName = datum.getMetricName();
+            this.dimensions = datum.getDimensions();
+            this.unit = datum.getUnit();
+            this.storageResolution = datum.getStorageResolution();
+            this.bucket = datum.getTimestamp() == null ? null : bucketOf(datum.getTimestamp(), storageResolution);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Series)) {
+                return false;
+            }
+            Series that = (Series) o;
+            return Objects.equal(metricName, that.metricName)
+                    && Objects.equal(dimensions, that.dimensions)
+                    && Objects.equal(unit, that.unit)
+                    && Objects.equal(storageResolution, that.storageResolution)
+                    && Objects.equal(bucket, that.bucket);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(metricName, dimensions, unit, storageResolution, bucket);
+        }
+    }
+
+    private static class Pack {
+
+        /**
+         * Template for the packed datums, and the timestamp if every datum shares it
+         */
+        MetricDatum first;
+        Date timestamp;
+        int datumCount;
+
+        final Map<Double, Double> countsByValue = new LinkedHashMap<Double, Double>();
+        StatisticSet statistics;
+
+        void add(MetricDatum datum) {
+            if (first == null) {
+                first = datum;
+                timestamp = datum.getTimestamp();
+            } else if (!Objects.equal(timestamp, datum.getTimestamp())) {
+                timestamp = new Date(bucketOf(first.getTimestamp(), first.getStorageResolution()));
+            }
+            datumCount++;
+
+            if (datum.getValue() != null) {
+                count(datum.getValue(), 1.0);
+            }
+            if (datum.getValues() != null) {
+                List<Double> values = datum.getValues();
+                List<Double> counts = datum.getCounts();
+                for (int i = 0; i < values.size(); i++) {
+                    // CloudWatch treats missing counts as 1 each.
+                    count(values.get(i), counts == null || counts.isEmpty() ? 1.0 : counts.get(i));
+                }
+            }
+            if (datum.getStatisticValues() != null) {
+                merge(datum.getStatisticValues());
+            }
+        }
+
+        private void count(Double value, double count) {
+            Double sofar = countsByValue.get(value);
+            countsByValue.put(value, sofar == null ? count : sofar + count);
+        }
+
+        private void merge(StatisticSet other) {
+            if (statistics == null) {
+                statistics = new StatisticSet()
+                        .withSum(other.getSum())
+                        .withSampleCount(other.getSampleCount())
+                        .withMinimum(other.getMinimum())
+                        .withMaximum(other.getMaximum());
+            } else {
+                statistics = new StatisticSet()
+                        .withSum(statistics.getSum() + other.getSum())
+                        .withSampleCount(statistics.getSampleCount() + other.getSampleCount())
+                        .withMinimum(Math.min(statistics.getMinimum(), other.getMinimum()))
+                        .withMaximum(Math.max(statistics.getMaximum(), other.getMaximum()));
+            }
+        }
+
+        void emit(List<MetricDatum> packed) {
+            if (datumCount == 1) {
+                packed.add(first);
+                return;
+            }
+
+            if (countsByValue.size() == 1 && statistics == null) {
+                Map.Entry<Double, Double> only = countsByValue.entrySet().iterator().next();
+                if (only.getValue() == 1.0) {
+                    packed.add(newDatum().withValue(only.getKey()));
+                    return;
+                }
+            }
+
+            List<Double> values = new ArrayList<Double>(Math.min(countsByValue.size(), MAX_VALUES_PER_DATUM));
+            List<Double> counts = new ArrayList<Double>(Math.min(countsByValue.size(), MAX_VALUES_PER_DATUM));
+            for (Map.Entry<Double, Double> entry : countsByValue.entrySet()) {
+                values.add(entry.getKey());
+                counts.add(entry.getValue());
+                if (values.size() == MAX_VALUES_PER_DATUM) {
+                    packed.add(newDatum().withValues(values).withCounts(counts));
+                    values.clear();
+                    counts.clear();
+                }
+            }
+            if (!values.isEmpty()) {
+                packed.add(newDatum().withValues(values).withCounts(counts));
+            }
+
+            if (statistics != null) {
+                packed.add(newDatum().withStatisticValues(statistics));
+            }
+        }
+
+        private MetricDatum newDatum() {
+            return new MetricDatum()
+                    .withMetricName(first.getMetricName())
+                    .withDimensions(first.getDimensions())
+                    .withUnit(first.getUnit())
+                    .withStorageResolution(first.getStorageResolution())
+                    .withTimestamp(timestamp);
+        }
+    }
+}
@@ -0,0 +1,659 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.amazonaws.services.cloudwatch.model.StandardUnit;
+import com.blacklocus.metrics.MetricNameBuilder.MetricsNameSyntaxException;
+import com.google.common.collect.MapMaker;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.blacklocus.metrics.Constants.*;
+
+/**
+ * An immutable, interned description of one registry entry: its name tokens, dimensions, which of those permute,
+ * and the storage resolution, timestamp and unit of the data. Build one and register the metric under
+ * {@link #getName()}, e.g. <pre>
+ *     MetricKey key = MetricKey.counter()
+ *             .add("ServiceX Requests machine=1.2.3.4*")
+ *             .withStorageResolution(60)
+ *             .withTimestamp(bucketStartMillis)
+ *             .build();
+ *     metricRegistry.counter(key.getName()).inc();
+ * </pre>
+ * The {@link CloudWatchReporter} looks the key back up by name and reads its fields directly instead of parsing the
+ * name. Names registered some other way, in the <code>CounterName=...,StorageResolution=...</code> encodings or as a
+ * plain name spec, are still understood through {@link #forCounter(String)}, {@link #forSampling(String)} and
+ * {@link #forGauge(String)}.
+ * <p>
+ * Interned keys are only weakly referenced, so hold on to keys which are used repeatedly.
+ */
+public final class MetricKey {
+
+    /**
+     * Each kind of key has its own name encoding.
+     */
+    public enum Kind {
+        /**
+         * Counters and meters. <code>CounterName=Name Tokens,dim=value StorageResolution=60,Timestamp=1500000000000Unit=Count</code>
+         */
+        COUNTER,
+        /**
+         * Histograms and timers. <code>SamplingName=Name Tokens,dim=value StorageResolution=60,Timestamp=1500000000000Unit=Milliseconds</code>
+         */
+        SAMPLING,
+        /**
+         * Gauges. <code>Name Tokens dim=value StorageResolution=60Timestamp=1500000000000</code>
+         */
+        GAUGE
+    }
+
+    private static final ConcurrentMap<String, MetricKey> INTERNED = new MapMaker().weakValues().makeMap();
+
+    private static final String[] EMPTY_STRINGS = new String[0];
+    private static final boolean[] EMPTY_BOOLEANS = new boolean[0];
+
+    private final Kind kind;
+
+    private final String[] nameTokens;
+    private final boolean[] nameTokensPermutable;
+
+    private final String[] dimensionNames;
+    private final String[] dimensionValues;
+    private final boolean[] dimensionsPermutable;
+
+    private final Integer storageResolution;
+    private final Long timestamp;
+    private final String unit;
+
+    /**
+     * Encoded name, which is also the registry name.
+     */
+    private final String name;
+
+    private MetricKey(Kind kind, Builder builder) {
+        this.kind = kind;
+        this.nameTokens = builder.nameTokens.toArray(EMPTY_STRINGS);
+        this.nameTokensPermutable = toArray(builder.nameTokensPermutable);
+        this.dimensionNames = builder.dimensionNames.toArray(EMPTY_STRINGS);
+        this.dimensionValues = builder.dimensionValues.toArray(EMPTY_STRINGS);
+        this.dimensionsPermutable = toArray(builder.dimensionsPermutable);
+        this.storageResolution = builder.storageResolution;
+        this.timestamp = builder.timestamp;
+        this.unit = builder.unit;
+        this.name = encode();
+    }
+
+    /**
+     * @return a builder for counters and meters
+     */
+    public static Builder counter() {
+        return new Builder(Kind.COUNTER);
+    }
+
+    /**
+     * @return a builder for histograms and timers
+     */
+    public static Builder sampling() {
+        return new Builder(Kind.SAMPLING);
+    }
+
+    /**
+     * @return a builder for gauges
+     */
+    public static Builder gauge() {
+        return new Builder(Kind.GAUGE);
+    }
+
+    /**
+     * @param name a registry name
+     * @return the counter key registered under this name, or null if the name is not understood
+     */
+    public static MetricKey forCounter(String name) {
+        MetricKey key = INTERNED.get(name);
+        return key != null && key.kind == Kind.COUNTER ? key : parseCounter(name);
+    }
+
+    /**
+     * @param name a registry name
+     * @return the sampling key registered under this name, or null if the name is not understood
+     */
+    public static MetricKey forSampling(String name) {
+        MetricKey key = INTERNED.get(name);
+        return key != null && key.kind == Kind.SAMPLING ? key : parseSampling(name);
+    }
+
+    /**
+     * @param name a registry name
+     * @return the gauge key registered under this name, or null if the name is not understood
+     */
+    public static MetricKey forGauge(String name) {
+        MetricKey key = INTERNED.get(name);
+        return key != null && key.kind == Kind.GAUGE ? key : parseGauge(name);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public int getNameTokenCount() {
+        return nameTokens.length;
+    }
+
+    /**
+     * @return the name token at this position, without any permute marker
+     */
+    public String getNameToken(int i) {
+        return nameTokens[i];
+    }
+
+    public boolean isNameTokenPermutable(int i) {
+        return nameTokensPermutable[i];
+    }
+
+    public int getDimensionCount() {
+        return dimensionNames.length;
+    }
+
+    public String getDimensionName(int i) {
+        return dimensionNames[i];
+    }
+
+    public String getDimensionValue(int i) {
+        return dimensionValues[i];
+    }
+
+    public boolean isDimensionPermutable(int i) {
+        return dimensionsPermutable[i];
+    }
+
+    /**
+     * @return CloudWatch storage resolution in seconds, or null to leave it to CloudWatch
+     */
+    public Integer getStorageResolution() {
+        return storageResolution;
+    }
+
+    /**
+     * @return the data's timestamp in epoch millis, or null to leave it to the reporter or CloudWatch
+     */
+    public Long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return a {@link StandardUnit} value, or null for none
+     */
+    public String getUnit() {
+        return unit;
+    }
+
+    /**
+     * @return the encoded name to register this metric under
+     */
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof MetricKey)) {
+            return false;
+        }
+        MetricKey that = (MetricKey) o;
+        return kind == that.kind && name.equals(that.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return name.hashCode();
+    }
+
+    /**
+     * @return {@link #getName()}
+     */
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    private String encode() {
+        StringBuilder sb = new StringBuilder();
+        if (kind == Kind.COUNTER || kind == Kind.SAMPLING) {
+            sb.append(kind == Kind.COUNTER ? NAME_COUNTER_TOKEN : NAME_SAMPLING_TOKEN);
+            appendNameTokens(sb);
+            sb.append(NAME_METRIC_DIMENSION_SEPARATOR);
+            for (int i = 0; i < dimensionNames.length; i++) {
+                appendDimension(sb, i);
+                sb.append(NAME_TOKEN_DELIMITER);
+            }
+            sb.append(NAME_STORAGE_RESOLUTION_TOKEN).append(storageResolution == null ? "" : storageResolution);
+            sb.append(NAME_METRIC_DIMENSION_SEPARATOR);
+            if (timestamp != null) {
+                sb.append(NAME_TIMESTAMP_TOKEN).append(timestamp);
+            }
+            sb.append(NAME_UNIT_TOKEN).append(unit == null ? "" : unit);
+
+        } else {
+            appendNameTokens(sb);
+            for (int i = 0; i < dimensionNames.length; i++) {
+                sb.append(NAME_TOKEN_DELIMITER);
+                appendDimension(sb, i);
+            }
+            sb.append(NAME_TOKEN_DELIMITER);
+            sb.append(NAME_STORAGE_RESOLUTION_TOKEN).append(storageResolution == null ? "" : storageResolution);
+            if (timestamp != null) {
+                sb.append(NAME_TIMESTAMP_TOKEN).append(timestamp);
+            }
+            if (unit != null) {
+                sb.append(NAME_UNIT_TOKEN).append(unit);
+            }
+        }
+        return sb.toString();
+    }
+
+    private void appendNameTokens(StringBuilder sb) {
+        for (int i = 0; i < nameTokens.length; i++) {
+            if (i > 0) {
+                sb.append(NAME_TOKEN_DELIMITER);
+            }
+            sb.append(nameTokens[i]);
+            if (nameTokensPermutable[i]) {
+                sb.append(NAME_PERMUTE_MARKER);
+            }
+        }
+    }
+
+    private void appendDimension(StringBuilder sb, int i) {
+        sb.append(dimensionNames[i]).append(NAME_DIMENSION_SEPARATOR).append(dimensionValues[i]);
+        if (dimensionsPermutable[i]) {
+            sb.append(NAME_PERMUTE_MARKER);
+        }
+    }
+
+    private static boolean[] toArray(List<Boolean> list) {
+        if (list.isEmpty()) {
+            return EMPTY_BOOLEANS;
+        }
+        boolean[] array = new boolean[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Compatibility with string-encoded names. These mirror how the reporter used to take names apart.
+
+    /**
+     * @return true if the name carries none of the encoding tokens, i.e. is a plain spec like "Requests machine=a*"
+     */
+    private static boolean isPlainSpec(String name) {
+        return !name.contains(NAME_STORAGE_RESOLUTION_TOKEN)
+                && !name.contains(NAME_COUNTER_TOKEN)
+                && !name.contains(NAME_SAMPLING_TOKEN);
+    }
+
+    /**
+     * @return true if the name encodes a storage resolution below a minute, read without parsing the rest of the name
+     */
+    static boolean isHighResolution(String name) {
+        int i = name.indexOf(NAME_STORAGE_RESOLUTION_TOKEN);
+        if (i < 0) {
+            return false;
+        }
+        int resolution = 0;
+        for (i += NAME_STORAGE_RESOLUTION_TOKEN.length(); i < name.length() && resolution < 60; i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            resolution = resolution * 10 + (c - '0');
+        }
+        return resolution > 0 && resolution < 60;
+    }
+
+    /**
+     * @return the name of the same series with no timestamp, read without parsing the rest of the name. The name
+     * itself if it encodes no timestamp.
+     */
+    static String withoutTimestamp(String name) {
+        int start = timestampStart(name);
+        if (start < 0) {
+            return name;
+        }
+        int end = timestampEnd(name, start + NAME_TIMESTAMP_TOKEN.length());
+        return end < 0 ? name : name.substring(0, start) + name.substring(end);
+    }
+
+    /**
+     * @return the timestamp the name encodes, read without parsing the rest of the name, or null if there is none
+     */
+    static Long timestampOf(String name) {
+        int start = timestampStart(name);
+        if (start < 0) {
+            return null;
+        }
+        start += NAME_TIMESTAMP_TOKEN.length();
+        int end = timestampEnd(name, start);
+        if (end < 0) {
+            return null;
+        }
+        try {
+            return Long.valueOf(name.substring(start, end));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return where the timestamp token of an encoded name starts, or -1. Plain specs may have a dimension by that
+     * name.
+     */
+    private static int timestampStart(String name) {
+        int resolution = name.indexOf(NAME_STORAGE_RESOLUTION_TOKEN);
+        return resolution < 0 ? -1 : name.indexOf(NAME_TIMESTAMP_TOKEN, resolution);
+    }
+
+    /**
+     * @return the end of the timestamp digits starting at the index, or -1 if there are none
+     */
+    private static int timestampEnd(String name, int start) {
+        int i = start;
+        if (i < name.length() && name.charAt(i) == '-') {
+            i++;
+        }
+        int digits = i;
+        while (i < name.length() && name.charAt(i) >= '0' && name.charAt(i) <= '9') {
+            i++;
+        }
+        return i > digits ? i : -1;
+    }
+
+    static MetricKey parseCounter(String groupedName) {
+        if (isPlainSpec(groupedName)) {
+            return parseSpec(Kind.COUNTER, groupedName);
+        }
+
+        String counterName;
+        if (groupedName.contains(NAME_SAMPLING_TOKEN)) {
+            counterName = StringUtils.substringBetween(groupedName, NAME_COUNTER_TOKEN, NAME_SAMPLING_TOKEN);
+        } else {
+            counterName = StringUtils.substringBetween(groupedName, NAME_COUNTER_TOKEN, NAME_METRIC_DIMENSION_SEPARATOR);
+        }
+        if (counterName == null || counterName.equals("null")) {
+            return null;
+        }
+
+        return parseEncoded(Kind.COUNTER, groupedName, counterName);
+    }
+
+    static MetricKey parseSampling(String groupedName) {
+        if (isPlainSpec(groupedName)) {
+            return parseSpec(Kind.SAMPLING, groupedName);
+        }
+
+        String samplingName = StringUtils.substringBetween(groupedName, NAME_SAMPLING_TOKEN, NAME_METRIC_DIMENSION_SEPARATOR);
+        if (samplingName == null) {
+            return null;
+        }
+
+        return parseEncoded(Kind.SAMPLING, groupedName, samplingName);
+    }
+
+    private static MetricKey parseEncoded(Kind kind, String groupedName, String metricName) {
+        String dimensions = StringUtils.substringBetween(groupedName, NAME_METRIC_DIMENSION_SEPARATOR, NAME_STORAGE_RESOLUTION_TOKEN);
+        String resolution = StringUtils.substringBetween(groupedName, NAME_STORAGE_RESOLUTION_TOKEN, NAME_METRIC_DIMENSION_SEPARATOR);
+        String timestamp = StringUtils.substringBetween(groupedName, NAME_TIMESTAMP_TOKEN, NAME_UNIT_TOKEN);
+        String unit = groupedName.contains(NAME_UNIT_TOKEN) ? StringUtils.substringAfterLast(groupedName, NAME_UNIT_TOKEN) : null;
+
+        Builder builder = new Builder(kind);
+        tokenize(builder, metricName, false);
+        if (dimensions != null) {
+            tokenize(builder, dimensions, false);
+        }
+        return withEncodedFields(builder, resolution, timestamp, unit);
+    }
+
+    static MetricKey parseGauge(String name) {
+        if (isPlainSpec(name)) {
+            return parseSpec(Kind.GAUGE, name);
+        }
+
+        String nameAndDimensions = StringUtils.substringBeforeLast(name, NAME_STORAGE_RESOLUTION_TOKEN);
+        String resolutionAndTimestamp = StringUtils.substringAfterLast(name, NAME_STORAGE_RESOLUTION_TOKEN);
+        String unit = null;
+        if (resolutionAndTimestamp.contains(NAME_UNIT_TOKEN)) {
+            unit = StringUtils.substringAfterLast(resolutionAndTimestamp, NAME_UNIT_TOKEN);
+            resolutionAndTimestamp = StringUtils.substringBeforeLast(resolutionAndTimestamp, NAME_UNIT_TOKEN);
+        }
+        String resolution = StringUtils.substringBeforeLast(resolutionAndTimestamp, NAME_TIMESTAMP_TOKEN);
+        String timestamp = StringUtils.substringAfterLast(resolutionAndTimestamp, NAME_TIMESTAMP_TOKEN);
+
+        Builder builder = new Builder(Kind.GAUGE);
+        tokenize(builder, nameAndDimensions, false);
+        return withEncodedFields(builder, resolution, timestamp, unit);
+    }
+
+    /**
+     * @param spec plain name spec, e.g. "Requests group-tag* machine=1.2.3.4*"
+     * @return the key with no resolution, timestamp or unit, or null if there is no name in the spec
+     */
+    static MetricKey parseSpec(Kind kind, String spec) {
+        Builder builder = new Builder(kind);
+        tokenize(builder, spec, false);
+        return builder.nameTokens.isEmpty() ? null : new MetricKey(kind, builder);
+    }
+
+    /**
+     * Global dimensions and the like, which need not contain a name token.
+     *
+     * @return the parsed spec, or null if it is blank
+     */
+    static MetricKey parseDimensions(String spec) {
+        if (StringUtils.isBlank(spec)) {
+            return null;
+        }
+        Builder builder = new Builder(Kind.GAUGE);
+        tokenize(builder, spec, false);
+        return new MetricKey(Kind.GAUGE, builder);
+    }
+
+    private static MetricKey withEncodedFields(Builder builder, String resolution, String timestamp, String unit) {
+        if (builder.nameTokens.isEmpty()) {
+            return null;
+        }
+        try {
+            builder.storageResolution = StringUtils.isEmpty(resolution) ? null : Integer.valueOf(resolution);
+            builder.timestamp = StringUtils.isEmpty(timestamp) ? null : Long.valueOf(timestamp);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        builder.unit = StringUtils.isEmpty(unit) ? null : unit;
+        return new MetricKey(builder.kind, builder);
+    }
+
+    /**
+     * Splits a name spec into name tokens and dimensions. Runs of whitespace count as one delimiter.
+     */
+    private static void tokenize(Builder builder, String spec, boolean validate) {
+        for (String segment : NAME_TOKEN_DELIMITER_PATTERN.split(spec)) {
+            if (segment.isEmpty()) {
+                continue;
+            }
+            boolean permutable = segment.endsWith(NAME_PERMUTE_MARKER);
+            if (permutable) {
+                segment = segment.substring(0, segment.length() - 1);
+            }
+
+            if (segment.contains(NAME_DIMENSION_SEPARATOR)) {
+                String[] dimensionParts = segment.split(NAME_DIMENSION_SEPARATOR, 2);
+                if (validate) {
+                    builder.addDimension(dimensionParts[0], dimensionParts[1], permutable);
+                } else {
+                    builder.dimensionNames.add(dimensionParts[0]);
+                    builder.dimensionValues.add(dimensionParts[1]);
+                    builder.dimensionsPermutable.add(permutable);
+                }
+            } else {
+                if (validate) {
+                    builder.addNameToken(segment, permutable);
+                } else {
+                    builder.nameTokens.add(segment);
+                    builder.nameTokensPermutable.add(permutable);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Builds {@link MetricKey}s. Name tokens and dimensions are validated like in {@link MetricNameBuilder}, and may
+     * not contain {@link Constants#NAME_METRIC_DIMENSION_SEPARATOR} which the encoded names rely on.
+     */
+    public static class Builder {
+
+        private final Kind kind;
+
+        private final List<String> nameTokens = new ArrayList<String>();
+        private final List<Boolean> nameTokensPermutable = new ArrayList<Boolean>();
+
+        private final List<String> dimensionNames = new ArrayList<String>();
+        private final List<String> dimensionValues = new ArrayList<String>();
+        private final List<Boolean> dimensionsPermutable = new ArrayList<Boolean>();
+
+        private Integer storageResolution;
+        private Long timestamp;
+        private String unit;
+
+        private Builder(Kind kind) {
+            this.kind = kind;
+        }
+
+        /**
+         * @param nameSpec a string of encoded name tokens and dimensions, e.g. "MyMetric SomeTag* color=green machine=1.2.3.4*"
+         * @return this for chaining
+         * @throws MetricsNameSyntaxException on validation failure
+         */
+        public Builder add(String nameSpec) throws MetricsNameSyntaxException {
+            tokenize(this, nameSpec, true);
+            return this;
+        }
+
+        /**
+         * @param nameToken a single name token, which may end in the permute marker
+         * @return this for chaining
+         * @throws MetricsNameSyntaxException on validation failure
+         */
+        public Builder addNameToken(String nameToken) throws MetricsNameSyntaxException {
+            boolean permute = nameToken.endsWith(NAME_PERMUTE_MARKER);
+            return addNameToken(permute ? nameToken.substring(0, nameToken.length() - 1) : nameToken, permute);
+        }
+
+        /**
+         * @param nameToken a single name token, without the permute marker
+         * @param permute   whether or not this token should permute
+         * @return this for chaining
+         * @throws MetricsNameSyntaxException on validation failure
+         */
+        public Builder addNameToken(String nameToken, boolean permute) throws MetricsNameSyntaxException {
+            validate(nameToken, "Name token");
+            nameTokens.add(nameToken);
+            nameTokensPermutable.add(permute);
+            return this;
+        }
+
+        /**
+         * {@link #addDimension(String, String, boolean)} without permutation (false)
+         *
+         * @return this for chaining
+         * @throws MetricsNameSyntaxException on validation failure
+         */
+        public Builder addDimension(String name, String value) throws MetricsNameSyntaxException {
+            return addDimension(name, value, false);
+        }
+
+        /**
+         * @param name    of dimension
+         * @param value   of dimension
+         * @param permute permutability of dimension
+         * @return this for chaining
+         * @throws MetricsNameSyntaxException on validation failure
+         */
+        public Builder addDimension(String name, String value, boolean permute) throws MetricsNameSyntaxException {
+            validate(name, "Dimension name");
+            validate(value, "Dimension value");
+            dimensionNames.add(name);
+            dimensionValues.add(value);
+            dimensionsPermutable.add(permute);
+            return this;
+        }
+
+        /**
+         * @param storageResolution CloudWatch storage resolution in seconds, 1 or 60
+         * @return this for chaining
+         */
+        public Builder withStorageResolution(int storageResolution) {
+            this.storageResolution = storageResolution;
+            return this;
+        }
+
+        /**
+         * @param timestamp of the data in epoch millis
+         * @return this for chaining
+         */
+        public Builder withTimestamp(long timestamp) {
+            this.timestamp = timestamp;
+            return this;
+        }
+
+        /**
+         * @param unit of the data
+         * @return this for chaining
+         */
+        public Builder withUnit(StandardUnit unit) {
+            this.unit = unit.toString();
+            return this;
+        }
+
+        /**
+         * @return the interned key
+         * @throws MetricsNameSyntaxException if there is no name token
+         */
+        public MetricKey build() throws MetricsNameSyntaxException {
+            if (nameTokens.isEmpty()) {
+                throw new MetricsNameSyntaxException("At least one name token is required.");
+            }
+            MetricKey key = new MetricKey(kind, this);
+            MetricKey interned = INTERNED.putIfAbsent(key.name, key);
+            return interned != null ? interned : key;
+        }
+
+        private static void validate(String part, String what) {
+            if (!VALID_DIMENSION_PART_PATTERN.matcher(part).matches() || part.contains(NAME_METRIC_DIMENSION_SEPARATOR)) {
+                throw new MetricsNameSyntaxException(what + " must match " + VALID_DIMENSION_PART_RGX +
+                        " and not contain '" + NAME_METRIC_DIMENSION_SEPARATOR + "'");
+            }
+        }
+    }
+}
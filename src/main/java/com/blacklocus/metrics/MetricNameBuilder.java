@@ -26,8 +26,10 @@ import java.util.List;
 import static com.blacklocus.metrics.Constants.NAME_DIMENSION_SEPARATOR;
 import static com.blacklocus.metrics.Constants.NAME_PERMUTE_MARKER;
 import static com.blacklocus.metrics.Constants.NAME_TOKEN_DELIMITER;
-import static com.blacklocus.metrics.Constants.NAME_TOKEN_DELIMITER_RGX;
+import static com.blacklocus.metrics.Constants.NAME_TOKEN_DELIMITER_PATTERN;
+import static com.blacklocus.metrics.Constants.VALID_DIMENSION_PART_PATTERN;
 import static com.blacklocus.metrics.Constants.VALID_DIMENSION_PART_RGX;
+import static com.blacklocus.metrics.Constants.VALID_NAME_TOKEN_PATTERN;
 import static com.blacklocus.metrics.Constants.VALID_NAME_TOKEN_RGX;
 
 /**
@@ -58,7 +60,7 @@ public class MetricNameBuilder {
      */
     public MetricNameBuilder addNameToken(String nameToken) throws MetricsNameSyntaxException {
         nameToken = nameToken.trim();
-        if (!nameToken.matches(VALID_NAME_TOKEN_RGX)) {
+        if (!VALID_NAME_TOKEN_PATTERN.matcher(nameToken).matches()) {
             throw new MetricsNameSyntaxException("Name must match " + VALID_NAME_TOKEN_RGX);
         }
 
@@ -94,7 +96,7 @@ public class MetricNameBuilder {
      * @throws MetricsNameSyntaxException on validation failure
      */
     public MetricNameBuilder add(String nameSpec) throws MetricsNameSyntaxException {
-        for (String token : nameSpec.split(NAME_TOKEN_DELIMITER_RGX)) {
+        for (String token : NAME_TOKEN_DELIMITER_PATTERN.split(nameSpec)) {
             if (token.contains(NAME_DIMENSION_SEPARATOR)) {
                 String[] dimensionTuple = token.split(NAME_DIMENSION_SEPARATOR, 2);
                 addDimension(dimensionTuple[0], dimensionTuple[1]);
@@ -143,10 +145,10 @@ public class MetricNameBuilder {
      * @throws MetricsNameSyntaxException on validation failure
      */
     public MetricNameBuilder addDimension(String name, String value, boolean permute) throws MetricsNameSyntaxException {
-        if (!name.matches(VALID_DIMENSION_PART_RGX)) {
+        if (!VALID_DIMENSION_PART_PATTERN.matcher(name).matches()) {
             throw new MetricsNameSyntaxException("Dimension name must match " + VALID_DIMENSION_PART_RGX);
         }
-        if (!value.matches(VALID_DIMENSION_PART_RGX)) {
+        if (!VALID_DIMENSION_PART_PATTERN.matcher(value).matches()) {
             throw new MetricsNameSyntaxException("Dimension name must match " + VALID_DIMENSION_PART_RGX);
         }
 
@@ -0,0 +1,309 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.blacklocus.metrics.MetricNameBuilder.MetricsNameSyntaxException;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.Timer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.blacklocus.metrics.Constants.NAME_DIMENSION_SEPARATOR;
+import static com.blacklocus.metrics.Constants.NAME_PERMUTE_MARKER;
+import static com.blacklocus.metrics.Constants.NAME_TOKEN_DELIMITER;
+import static com.blacklocus.metrics.Constants.VALID_DIMENSION_PART_PATTERN;
+import static com.blacklocus.metrics.Constants.VALID_DIMENSION_PART_RGX;
+
+/**
+ * A metric name validated once, with dimensions whose values are bound per use, for hot paths which would otherwise
+ * build a name and look it up in the registry on every call, e.g. <pre>
+ *     static final MetricNameTemplate&lt;Counter&gt; REQUESTS =
+ *             MetricNameTemplate.counter(registry, "ServiceX Requests", "machine*", "status");
+ *     ...
+ *     REQUESTS.bind(host, status).inc();
+ * </pre>
+ * is {@code registry.counter("ServiceX Requests machine=" + host + "* status=" + status).inc()}, in the same name
+ * syntax, but the metric of each combination of values is kept in a map of this template. Binding values already
+ * bound does not allocate, up to {@link #DEFAULT_MAX_BINDINGS} combinations. Beyond that, binds are looked up in
+ * the registry each time.
+ * <p>
+ * Metrics removed from the registry, as the {@link CloudWatchReporter} does after each report of a plain
+ * MetricRegistry, are forgotten and re-created on the next bind. The template listens to the registry for that,
+ * so templates are meant to live as long as their registry.
+ */
+public class MetricNameTemplate<T extends Metric> {
+
+    public static final int DEFAULT_MAX_BINDINGS = 1000;
+
+    private final MetricRegistry registry;
+    private final Kind<T> kind;
+    private final String prefix;
+    private final String[] dimensionPrefixes;
+    private final boolean[] dimensionsPermutable;
+    private final int maxBindings;
+
+    /**
+     * Metrics by the first bound value, then by the second, etc.: nested maps one level per dimension, the last
+     * level holding the metrics. Lookups hash the given values without building anything.
+     */
+    private final ConcurrentMap<String, Object> bindings = new ConcurrentHashMap<String, Object>();
+    private final AtomicInteger bindingCount = new AtomicInteger();
+
+    /**
+     * Names bound, to tell which removals from the registry concern this template.
+     */
+    private final ConcurrentMap<String, Boolean> boundNames = new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * Incremented by every removal of a bound metric, so that a bind racing a removal can tell.
+     */
+    private final AtomicInteger removals = new AtomicInteger();
+
+    public static MetricNameTemplate<Counter> counter(MetricRegistry registry, String nameSpec, String... dimensionNames) {
+        return new MetricNameTemplate<Counter>(registry, COUNTER, nameSpec, dimensionNames, DEFAULT_MAX_BINDINGS);
+    }
+
+    public static MetricNameTemplate<Meter> meter(MetricRegistry registry, String nameSpec, String... dimensionNames) {
+        return new MetricNameTemplate<Meter>(registry, METER, nameSpec, dimensionNames, DEFAULT_MAX_BINDINGS);
+    }
+
+    public static MetricNameTemplate<Histogram> histogram(MetricRegistry registry, String nameSpec,
+                                                          String... dimensionNames) {
+        return new MetricNameTemplate<Histogram>(registry, HISTOGRAM, nameSpec, dimensionNames, DEFAULT_MAX_BINDINGS);
+    }
+
+    public static MetricNameTemplate<Timer> timer(MetricRegistry registry, String nameSpec, String... dimensionNames) {
+        return new MetricNameTemplate<Timer>(registry, TIMER, nameSpec, dimensionNames, DEFAULT_MAX_BINDINGS);
+    }
+
+    /**
+     * @param nameSpec       the fixed part of the name, e.g. "ServiceX Requests environment=prod*", as for
+     *                       {@link MetricNameBuilder#add(String)}
+     * @param dimensionNames of the dimensions whose values are bound, in order. Each may end in the permute marker.
+     * @param maxBindings    combinations of values to keep metrics for
+     * @throws MetricsNameSyntaxException on validation failure
+     */
+    MetricNameTemplate(MetricRegistry registry, Kind<T> kind, String nameSpec, String[] dimensionNames,
+                       int maxBindings) throws MetricsNameSyntaxException {
+        this.registry = registry;
+        this.kind = kind;
+        this.prefix = new MetricNameBuilder(nameSpec).build();
+        this.dimensionPrefixes = new String[dimensionNames.length];
+        this.dimensionsPermutable = new boolean[dimensionNames.length];
+        for (int i = 0; i < dimensionNames.length; i++) {
+            String name = dimensionNames[i];
+            dimensionsPermutable[i] = name.endsWith(NAME_PERMUTE_MARKER);
+            if (dimensionsPermutable[i]) {
+                name = name.substring(0, name.length() - 1);
+            }
+            validate(name, "Dimension name");
+            dimensionPrefixes[i] = NAME_TOKEN_DELIMITER + name + NAME_DIMENSION_SEPARATOR;
+        }
+        this.maxBindings = maxBindings;
+
+        registry.addListener(new RemovalListener());
+    }
+
+    public T bind(String value) {
+        checkArity(1);
+        Object bound = bindings.get(value);
+        return bound != null ? kind.cast(bound) : bindNew(value);
+    }
+
+    public T bind(String value1, String value2) {
+        checkArity(2);
+        Object bound = bindings.get(value1);
+        bound = bound != null ? ((ConcurrentMap<?, ?>) bound).get(value2) : null;
+        return bound != null ? kind.cast(bound) : bindNew(value1, value2);
+    }
+
+    public T bind(String value1, String value2, String value3) {
+        checkArity(3);
+        Object bound = bindings.get(value1);
+        bound = bound != null ? ((ConcurrentMap<?, ?>) bound).get(value2) : null;
+        bound = bound != null ? ((ConcurrentMap<?, ?>) bound).get(value3) : null;
+        return bound != null ? kind.cast(bound) : bindNew(value1, value2, value3);
+    }
+
+    /**
+     * @param values of the dimensions, in the order of the dimension names. The varargs array is itself an
+     *               allocation, which the overloads for up to three values avoid.
+     * @return the metric of the name with these values
+     * @throws MetricsNameSyntaxException if a value is not valid in a name
+     */
+    public T bind(String... values) {
+        checkArity(values.length);
+        Object bound = bindings.get(values.length == 0 ? "" : values[0]);
+        for (int i = 1; i < values.length && bound != null; i++) {
+            bound = ((ConcurrentMap<?, ?>) bound).get(values[i]);
+        }
+        return bound != null ? kind.cast(bound) : bindNew(values);
+    }
+
+    /**
+     * @return the registry name with these values, which {@link #bind(String...)} registers the metric under
+     * @throws MetricsNameSyntaxException if a value is not valid in a name
+     */
+    public String name(String... values) {
+        checkArity(values.length);
+        StringBuilder sb = new StringBuilder(prefix);
+        for (int i = 0; i < values.length; i++) {
+            validate(values[i], "Dimension value");
+            sb.append(dimensionPrefixes[i]).append(values[i]);
+            if (dimensionsPermutable[i]) {
+                sb.append(NAME_PERMUTE_MARKER);
+            }
+        }
+        return sb.toString();
+    }
+
+    private T bindNew(String... values) {
+        String name = name(values);
+        int seenRemovals = removals.get();
+        T metric = kind.get(registry, name);
+        if (bindingCount.get() >= maxBindings) {
+            return metric;
+        }
+
+        // A template without bound dimensions keeps its one metric under "".
+        String[] path = values.length == 0 ? new String[]{""} : values;
+        ConcurrentMap<String, Object> level = bindings;
+        for (int i = 0; i < path.length - 1; i++) {
+            Object next = level.get(path[i]);
+            if (next == null) {
+                ConcurrentMap<String, Object> created = new ConcurrentHashMap<String, Object>(4);
+                next = level.putIfAbsent(path[i], created);
+                if (next == null) {
+                    next = created;
+                }
+            }
+            @SuppressWarnings("unchecked")
+            ConcurrentMap<String, Object> nextLevel = (ConcurrentMap<String, Object>) next;
+            level = nextLevel;
+        }
+        boundNames.put(name, Boolean.TRUE);
+        if (level.putIfAbsent(path[path.length - 1], metric) == null) {
+            bindingCount.incrementAndGet();
+        }
+        if (removals.get() != seenRemovals) {
+            // A bound metric was removed meanwhile, possibly this one before it was put. Forget everything again.
+            forget();
+        }
+        return metric;
+    }
+
+    private void forget() {
+        bindings.clear();
+        boundNames.clear();
+        bindingCount.set(0);
+    }
+
+    private void removed(String name) {
+        if (boundNames.containsKey(name)) {
+            removals.incrementAndGet();
+            forget();
+        }
+    }
+
+    private void checkArity(int valueCount) {
+        if (valueCount != dimensionPrefixes.length) {
+            throw new IllegalArgumentException("Expected " + dimensionPrefixes.length + " dimension values but got "
+                    + valueCount);
+        }
+    }
+
+    private static void validate(String part, String what) {
+        if (part == null || !VALID_DIMENSION_PART_PATTERN.matcher(part).matches()) {
+            throw new MetricsNameSyntaxException(what + " must match " + VALID_DIMENSION_PART_RGX);
+        }
+    }
+
+    private class RemovalListener extends MetricRegistryListener.Base {
+
+        @Override
+        public void onCounterRemoved(String name) {
+            removed(name);
+        }
+
+        @Override
+        public void onHistogramRemoved(String name) {
+            removed(name);
+        }
+
+        @Override
+        public void onMeterRemoved(String name) {
+            removed(name);
+        }
+
+        @Override
+        public void onTimerRemoved(String name) {
+            removed(name);
+        }
+    }
+
+    /**
+     * How to get or create a metric of a type in a registry.
+     */
+    abstract static class Kind<T extends Metric> {
+
+        private final Class<T> type;
+
+        Kind(Class<T> type) {
+            this.type = type;
+        }
+
+        abstract T get(MetricRegistry registry, String name);
+
+        T cast(Object metric) {
+            return type.cast(metric);
+        }
+    }
+
+    static final Kind<Counter> COUNTER = new Kind<Counter>(Counter.class) {
+        @Override
+        Counter get(MetricRegistry registry, String name) {
+            return registry.counter(name);
+        }
+    };
+
+    static final Kind<Meter> METER = new Kind<Meter>(Meter.class) {
+        @Override
+        Meter get(MetricRegistry registry, String name) {
+            return registry.meter(name);
+        }
+    };
+
+    static final Kind<Histogram> HISTOGRAM = new Kind<Histogram>(Histogram.class) {
+        @Override
+        Histogram get(MetricRegistry registry, String name) {
+            return registry.histogram(name);
+        }
+    };
+
+    static final Kind<Timer> TIMER = new Kind<Timer>(Timer.class) {
+        @Override
+        Timer get(MetricRegistry registry, String name) {
+            return registry.timer(name);
+        }
+    };
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket over PutMetricData requests, meant to be shared by every {@link CloudWatchSubmitter} sending to the
+ * same account so that reporters firing on the same minute boundary stay under the account's TPS together.
+ * {@link #global()} is the one submitters use by default.
+ * <p>
+ * Implemented as the generic cell rate algorithm on a single {@link AtomicLong}: the bucket is the theoretical
+ * arrival time of the next request, which each reservation pushes out by one emission interval with a CAS. Nobody
+ * ever waits here. {@link #reserve()} always succeeds and says how long the caller must delay its request, which the
+ * submitter does on a scheduler rather than by sleeping.
+ */
+public class PutMetricDataRateLimiter {
+
+    public static final double DEFAULT_REQUESTS_PER_SECOND = 150;
+    public static final int DEFAULT_BURST = 150;
+
+    private static final PutMetricDataRateLimiter GLOBAL =
+            new PutMetricDataRateLimiter(DEFAULT_REQUESTS_PER_SECOND, DEFAULT_BURST);
+
+    private final long intervalNanos;
+    private final long burstToleranceNanos;
+
+    /**
+     * Theoretical arrival time, in {@link System#nanoTime()}, of a request sent at exactly the sustained rate
+     */
+    private final AtomicLong theoreticalArrivalNanos = new AtomicLong(System.nanoTime());
+
+    private final AtomicLong delayedRequests = new AtomicLong();
+    private final Histogram delays = new Histogram(new ExponentiallyDecayingReservoir());
+
+    /**
+     * @param requestsPerSecond sustained rate
+     * @param burst             requests which may go out at once after a quiet period
+     */
+    public PutMetricDataRateLimiter(double requestsPerSecond, int burst) {
+        Preconditions.checkArgument(requestsPerSecond > 0, "requestsPerSecond must be positive");
+        Preconditions.checkArgument(burst > 0, "burst must be positive");
+        this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond);
+        this.burstToleranceNanos = intervalNanos * (burst - 1);
+    }
+
+    /**
+     * @return the JVM-wide limiter, at {@link #DEFAULT_REQUESTS_PER_SECOND} with a burst of {@link #DEFAULT_BURST}
+     */
+    public static PutMetricDataRateLimiter global() {
+        return GLOBAL;
+    }
+
+    /**
+     * Reserves a slot for one request.
+     *
+     * @return nanoseconds the request must wait before it is sent, 0 if it may go right away
+     */
+    public long reserve() {
+        long now = System.nanoTime();
+        while (true) {
+            long tat = theoreticalArrivalNanos.get();
+            long next = Math.max(tat, now) + intervalNanos;
+            if (theoreticalArrivalNanos.compareAndSet(tat, next)) {
+                long delayNanos = Math.max(0, next - intervalNanos - burstToleranceNanos - now);
+                if (delayNanos > 0) {
+                    delayedRequests.incrementAndGet();
+                }
+                delays.update(TimeUnit.NANOSECONDS.toMillis(delayNanos));
+                return delayNanos;
+            }
+        }
+    }
+
+    /**
+     * @return number of requests which had to wait
+     */
+    public long getDelayedRequests() {
+        return delayedRequests.get();
+    }
+
+    /**
+     * @return distribution of the delay of each request, in milliseconds, 0 for those which did not wait
+     */
+    public Histogram getDelays() {
+        return delays;
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caps retries at a fraction of first attempts so that retries cannot multiply the load on CloudWatch while it is
+ * already failing. Every first attempt deposits {@code retryRatio} of a token, up to {@code maxBalance} tokens, and
+ * every retry must withdraw a whole one. The balance starts full so that occasional failures are retried right away.
+ * <p>
+ * Share one budget among everything sending to the same account; {@link #global()} is the one used by default.
+ */
+public class RetryBudget {
+
+    public static final double DEFAULT_RETRY_RATIO = 0.2;
+    public static final int DEFAULT_MAX_BALANCE = 50;
+
+    private static final RetryBudget GLOBAL = new RetryBudget(DEFAULT_RETRY_RATIO, DEFAULT_MAX_BALANCE);
+
+    /**
+     * Tokens are kept in thousandths so that fractional deposits need no floating point arithmetic under CAS.
+     */
+    private static final long SCALE = 1000;
+
+    private final long depositMilliTokens;
+    private final long maxBalanceMilliTokens;
+    private final AtomicLong balanceMilliTokens;
+
+    /**
+     * @param retryRatio retries allowed per first attempt in the long run, e.g. 0.2
+     * @param maxBalance most retries which may be banked, and the initial balance
+     */
+    public RetryBudget(double retryRatio, int maxBalance) {
+        Preconditions.checkArgument(retryRatio >= 0, "retryRatio must not be negative");
+        Preconditions.checkArgument(maxBalance >= 0, "maxBalance must not be negative");
+        this.depositMilliTokens = Math.round(retryRatio * SCALE);
+        this.maxBalanceMilliTokens = maxBalance * SCALE;
+        this.balanceMilliTokens = new AtomicLong(maxBalanceMilliTokens);
+    }
+
+    /**
+     * @return the JVM-wide budget shared by every {@link RetryPolicy} not given one of its own
+     */
+    public static RetryBudget global() {
+        return GLOBAL;
+    }
+
+    /**
+     * Credits a first attempt.
+     */
+    public void deposit() {
+        while (true) {
+            long balance = balanceMilliTokens.get();
+            if (balance >= maxBalanceMilliTokens) {
+                return;
+            }
+            if (balanceMilliTokens.compareAndSet(balance, Math.min(maxBalanceMilliTokens, balance + depositMilliTokens))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return true if a retry may go ahead, in which case it has been paid for
+     */
+    public boolean tryWithdraw() {
+        while (true) {
+            long balance = balanceMilliTokens.get();
+            if (balance < SCALE) {
+                return false;
+            }
+            if (balanceMilliTokens.compareAndSet(balance, balance - SCALE)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return number of retries which could go ahead right now
+     */
+    public int getAvailableRetries() {
+        return (int) (balanceMilliTokens.get() / SCALE);
+    }
+}
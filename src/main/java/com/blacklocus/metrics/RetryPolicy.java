@@ -0,0 +1,143 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.retry.RetryUtils;
+import com.google.common.base.Preconditions;
+
+import java.util.Random;
+
+/**
+ * Decides whether and when a failed PutMetricData request is sent again by the {@link CloudWatchSubmitter}.
+ * <ul>
+ * <li>Throttling, server (5xx) and network errors are retried. Anything else, notably validation errors, would only
+ * fail again and is not.</li>
+ * <li>Delays grow exponentially with decorrelated jitter: each is drawn uniformly between the base delay and three
+ * times the previous one, capped at the max delay. Fleets that failed together do not retry together.</li>
+ * <li>Every retry is paid for from a {@link RetryBudget}.</li>
+ * <li>Data which would be older than the max data age by the time it is retried is given up on.</li>
+ * </ul>
+ */
+public class RetryPolicy {
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 4;
+    public static final long DEFAULT_BASE_DELAY_MILLIS = 100;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 20 * 1000;
+    public static final long DEFAULT_MAX_DATA_AGE_MILLIS = 15 * 60 * 1000;
+
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private long baseDelayMillis = DEFAULT_BASE_DELAY_MILLIS;
+    private long maxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+    private long maxDataAgeMillis = DEFAULT_MAX_DATA_AGE_MILLIS;
+    private RetryBudget budget = RetryBudget.global();
+
+    /**
+     * @return a policy which never retries
+     */
+    public static RetryPolicy none() {
+        return new RetryPolicy().withMaxAttempts(1);
+    }
+
+    /**
+     * @param maxAttempts number of times a request may be sent in all, the first attempt included
+     * @return this (for chaining)
+     */
+    public RetryPolicy withMaxAttempts(int maxAttempts) {
+        Preconditions.checkArgument(maxAttempts > 0, "maxAttempts must be positive");
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    /**
+     * @param baseDelayMillis shortest delay before a retry
+     * @return this (for chaining)
+     */
+    public RetryPolicy withBaseDelayMillis(long baseDelayMillis) {
+        Preconditions.checkArgument(baseDelayMillis > 0, "baseDelayMillis must be positive");
+        this.baseDelayMillis = baseDelayMillis;
+        return this;
+    }
+
+    /**
+     * @param maxDelayMillis longest delay before a retry
+     * @return this (for chaining)
+     */
+    public RetryPolicy withMaxDelayMillis(long maxDelayMillis) {
+        Preconditions.checkArgument(maxDelayMillis > 0, "maxDelayMillis must be positive");
+        this.maxDelayMillis = maxDelayMillis;
+        return this;
+    }
+
+    /**
+     * @param maxDataAgeMillis age beyond which data is no longer retried, measured from the oldest datum timestamp in
+     *                         the request or from its first submission if that is older
+     * @return this (for chaining)
+     */
+    public RetryPolicy withMaxDataAgeMillis(long maxDataAgeMillis) {
+        this.maxDataAgeMillis = maxDataAgeMillis;
+        return this;
+    }
+
+    /**
+     * @param budget to pay for retries from, in place of {@link RetryBudget#global()}
+     * @return this (for chaining)
+     */
+    public RetryPolicy withBudget(RetryBudget budget) {
+        this.budget = Preconditions.checkNotNull(budget);
+        return this;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getMaxDataAgeMillis() {
+        return maxDataAgeMillis;
+    }
+
+    public RetryBudget getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return true for throttling, server and network errors
+     */
+    public boolean isRetryable(Exception e) {
+        if (e instanceof AmazonServiceException) {
+            AmazonServiceException ase = (AmazonServiceException) e;
+            return RetryUtils.isThrottlingException(ase)
+                    || RetryUtils.isRetryableServiceException(ase)
+                    || ase.getStatusCode() >= 500;
+        }
+        if (e instanceof AmazonClientException) {
+            // Failed before CloudWatch could answer, e.g. a connection reset or timeout.
+            return ((AmazonClientException) e).isRetryable();
+        }
+        return false;
+    }
+
+    /**
+     * @param previousDelayMillis delay before the previous retry, or 0 before the first one
+     * @return delay before the next retry
+     */
+    long nextDelayMillis(long previousDelayMillis, Random random) {
+        long upper = Math.max(baseDelayMillis, previousDelayMillis * 3);
+        long delay = baseDelayMillis + (long) (random.nextDouble() * (upper - baseDelayMillis));
+        return Math.min(maxDelayMillis, delay);
+    }
+}
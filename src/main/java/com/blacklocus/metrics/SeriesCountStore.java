@@ -0,0 +1,245 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * The last polled count of each counting metric, so that only the difference is reported. Keyed by registry name
+ * plus the {@link System#identityHashCode(Object)} of the metric object, so a metric re-created under the same name
+ * starts over from 0 without the store holding on to either object. Counts are primitive longs in open addressed
+ * arrays, striped by hash, each stripe under its own lock.
+ * <p>
+ * Every {@link #expire()} starts a new interval and drops entries which have not been touched for
+ * {@code maxIdleIntervals} intervals, shrinking the arrays to fit. The store is thus bounded by the series seen over
+ * the last few intervals, however many come and go over the life of the JVM.
+ */
+class SeriesCountStore {
+
+    static final int DEFAULT_MAX_IDLE_INTERVALS = 3;
+
+    private static final int STRIPE_BITS = 4;
+    private static final int MIN_CAPACITY = 8;
+
+    private final int maxIdleIntervals;
+    private final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+
+    /**
+     * Current interval. Only {@link #expire()} writes it.
+     */
+    private volatile int epoch = 0;
+
+    SeriesCountStore() {
+        this(DEFAULT_MAX_IDLE_INTERVALS);
+    }
+
+    /**
+     * @param maxIdleIntervals intervals an entry survives without being touched
+     */
+    SeriesCountStore(int maxIdleIntervals) {
+        Preconditions.checkArgument(maxIdleIntervals > 0, "maxIdleIntervals must be positive");
+        this.maxIdleIntervals = maxIdleIntervals;
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Records the count and touches the entry.
+     *
+     * @return the count recorded before for this series and metric object, 0 if none
+     */
+    long swap(String series, Object metric, long count) {
+        int identity = System.identityHashCode(metric);
+        int hash = hash(series, identity);
+        return stripes[hash >>> (32 - STRIPE_BITS)].swap(series, identity, hash, count, epoch);
+    }
+
+    /**
+     * @return the count recorded for this series and metric object, 0 if none. Does not touch the entry.
+     */
+    long get(String series, Object metric) {
+        int identity = System.identityHashCode(metric);
+        int hash = hash(series, identity);
+        return stripes[hash >>> (32 - STRIPE_BITS)].get(series, identity, hash);
+    }
+
+    /**
+     * Forgets the count of this series and metric object. Its slot is reclaimed by the next {@link #expire()}.
+     */
+    void remove(String series, Object metric) {
+        int identity = System.identityHashCode(metric);
+        int hash = hash(series, identity);
+        stripes[hash >>> (32 - STRIPE_BITS)].remove(series, identity, hash, epoch - maxIdleIntervals - 1);
+    }
+
+    /**
+     * Starts a new interval, dropping entries untouched for the last {@code maxIdleIntervals} of them.
+     */
+    synchronized void expire() {
+        int current = ++epoch;
+        for (Stripe stripe : stripes) {
+            stripe.expire(current - maxIdleIntervals);
+        }
+    }
+
+    /**
+     * @return number of entries, including any removed or idle ones not yet expired
+     */
+    int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return number of slots across all stripes
+     */
+    int capacity() {
+        int capacity = 0;
+        for (Stripe stripe : stripes) {
+            capacity += stripe.capacity();
+        }
+        return capacity;
+    }
+
+    private static int hash(String series, int identity) {
+        // Murmur3 finalizer, so that both the high (stripe) and low (slot) bits are well mixed.
+        int h = series.hashCode() * 31 + identity;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * Linear probing over parallel arrays. A null key is an empty slot.
+     */
+    private static class Stripe {
+
+        String[] keys = new String[MIN_CAPACITY];
+        int[] identities = new int[MIN_CAPACITY];
+        long[] counts = new long[MIN_CAPACITY];
+        int[] touched = new int[MIN_CAPACITY];
+        int size = 0;
+
+        private int find(String series, int identity, int hash) {
+            int mask = keys.length - 1;
+            int i = hash & mask;
+            while (keys[i] != null) {
+                if (identities[i] == identity && keys[i].equals(series)) {
+                    return i;
+                }
+                i = (i + 1) & mask;
+            }
+            return ~i;
+        }
+
+        synchronized long swap(String series, int identity, int hash, long count, int epoch) {
+            int i = find(series, identity, hash);
+            if (i >= 0) {
+                long previous = counts[i];
+                counts[i] = count;
+                touched[i] = epoch;
+                return previous;
+            }
+            if (2 * (size + 1) > keys.length) {
+                rehash(2 * keys.length, Integer.MIN_VALUE);
+                i = find(series, identity, hash);
+            }
+            i = ~i;
+            keys[i] = series;
+            identities[i] = identity;
+            counts[i] = count;
+            touched[i] = epoch;
+            size++;
+            return 0L;
+        }
+
+        synchronized long get(String series, int identity, int hash) {
+            int i = find(series, identity, hash);
+            return i >= 0 ? counts[i] : 0L;
+        }
+
+        synchronized void remove(String series, int identity, int hash, int expiredEpoch) {
+            int i = find(series, identity, hash);
+            if (i >= 0) {
+                // Reads as absent from now on, and is dropped by the next expire().
+                counts[i] = 0L;
+                touched[i] = expiredEpoch;
+            }
+        }
+
+        synchronized void expire(int oldestLiveEpoch) {
+            int live = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != null && touched[i] - oldestLiveEpoch >= 0) {
+                    live++;
+                }
+            }
+            if (live == size && 2 * live > keys.length / 4) {
+                // Nothing to drop and not worth shrinking.
+                return;
+            }
+            int capacity = MIN_CAPACITY;
+            while (capacity < 2 * live) {
+                capacity <<= 1;
+            }
+            rehash(capacity, oldestLiveEpoch);
+        }
+
+        /**
+         * Moves entries touched in or after oldestLiveEpoch to new arrays of the given capacity.
+         */
+        private void rehash(int capacity, int oldestLiveEpoch) {
+            String[] oldKeys = keys;
+            int[] oldIdentities = identities;
+            long[] oldCounts = counts;
+            int[] oldTouched = touched;
+
+            keys = new String[capacity];
+            identities = new int[capacity];
+            counts = new long[capacity];
+            touched = new int[capacity];
+            size = 0;
+
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] == null
+                        || (oldestLiveEpoch != Integer.MIN_VALUE && oldTouched[j] - oldestLiveEpoch < 0)) {
+                    continue;
+                }
+                int i = ~find(oldKeys[j], oldIdentities[j], hash(oldKeys[j], oldIdentities[j]));
+                keys[i] = oldKeys[j];
+                identities[i] = oldIdentities[j];
+                counts[i] = oldCounts[j];
+                touched[i] = oldTouched[j];
+                size++;
+            }
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized int capacity() {
+            return keys.length;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class AlignedScheduleTest {
+
+    static final String FAST = MetricKey.counter().add("Fast").withStorageResolution(1).build().getName();
+    static final String SLOW = MetricKey.counter().add("Slow").withStorageResolution(60).build().getName();
+
+    @Test
+    public void ticksAlignToThePeriodPlusOffset() {
+        Assert.assertEquals(70300, CloudWatchReporter.nextAlignedTick(61234, 10000, 300));
+        Assert.assertEquals(80300, CloudWatchReporter.nextAlignedTick(70300, 10000, 300));
+        Assert.assertEquals(60000, CloudWatchReporter.nextAlignedTick(0, 60000, 0));
+
+        CloudWatchReporter reporter = new CloudWatchReporterBuilder().withNamespace("test")
+                .withRegistry(new MetricRegistry()).build();
+        long offset = reporter.tickOffsetMillis(999);
+        Assert.assertTrue(offset >= 0 && offset <= 999);
+        Assert.assertEquals(offset, reporter.tickOffsetMillis(999));
+        Assert.assertEquals(0, reporter.tickOffsetMillis(0));
+    }
+
+    @Test
+    public void standardMetricsWaitForTheTopOfTheMinute() {
+        MetricRegistry registry = new MetricRegistry();
+        RecordingCloudWatch cloudWatch = new RecordingCloudWatch();
+        CloudWatchReporter reporter = new CloudWatchReporterBuilder()
+                .withNamespace("test")
+                .withRegistry(registry)
+                .withClient(cloudWatch)
+                .build();
+
+        registry.counter(FAST).inc();
+        registry.counter(SLOW).inc();
+        reporter.alignedTick(TimeUnit.SECONDS.toMillis(65) + 250, 250);
+        Assert.assertEquals(1, cloudWatch.data().size());
+        Assert.assertEquals("Fast", cloudWatch.data().get(0).getMetricName());
+
+        // A plain registry is reset per cadence, and the standard metric is still there to report.
+        registry.counter(FAST).inc();
+        reporter.alignedTick(TimeUnit.SECONDS.toMillis(120) + 250, 250);
+        Assert.assertEquals(3, cloudWatch.data().size());
+        double slow = 0;
+        for (MetricDatum datum : cloudWatch.data()) {
+            if (datum.getMetricName().equals("Slow")) {
+                slow += datum.getValue();
+            }
+        }
+        Assert.assertEquals(1, slow, 0.0);
+        Assert.assertEquals(2, cloudWatch.sum("Fast"), 0.0);
+    }
+
+    @Test
+    public void standardCountersKeepTheirBaselineAcrossHighResolutionTicks() {
+        GenerationalMetricRegistry registry = new GenerationalMetricRegistry();
+        RecordingCloudWatch cloudWatch = new RecordingCloudWatch();
+        CloudWatchReporter reporter = new CloudWatchReporterBuilder()
+                .withNamespace("test")
+                .withRegistry(registry)
+                .withClient(cloudWatch)
+                .build();
+
+        // Drain mode keeps the counter, so each minute is a diff. Five high resolution ticks separate the minutes.
+        for (int minute = 1; minute <= 3; minute++) {
+            registry.counter(SLOW).inc(10);
+            for (int second = 10; second <= 60; second += 10) {
+                reporter.alignedTick(TimeUnit.SECONDS.toMillis(60 * (minute - 1) + second) + 250, 250);
+            }
+            Assert.assertEquals(10.0 * minute, cloudWatch.sum("Slow"), 0.0);
+        }
+    }
+}
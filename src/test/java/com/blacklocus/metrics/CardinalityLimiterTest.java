@@ -0,0 +1,147 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+public class CardinalityLimiterTest {
+
+    @Test
+    public void foldsSeriesBeyondTheBudget() {
+        CardinalityLimiter limiter = new CardinalityLimiter(1000, 10, CardinalityLimiter.Policy.OVERFLOW);
+        List<MetricDatum> data = new ArrayList<MetricDatum>();
+        for (int i = 0; i < 100; i++) {
+            data.add(datum("Requests", "requestId", "r" + i));
+            data.add(datum("Requests", "requestId", "r" + i));
+        }
+        data.add(datum("Errors", "requestId", "r0"));
+
+        List<MetricDatum> limited = limiter.limit(data);
+        Assert.assertEquals(data.size(), limited.size());
+        Set<String> requestIds = new HashSet<String>();
+        for (MetricDatum datum : limited) {
+            if (datum.getMetricName().equals("Requests")) {
+                requestIds.add(datum.getDimensions().get(0).getValue());
+            }
+        }
+        Assert.assertEquals(11, requestIds.size());
+        Assert.assertTrue(requestIds.contains(CardinalityLimiter.OVERFLOW));
+        Assert.assertEquals("r0", limited.get(limited.size() - 1).getDimensions().get(0).getValue());
+        Assert.assertEquals(101, limiter.getLastDistinctSeries(), 2);
+        Assert.assertEquals(90, limiter.getLastLimitedSeries(), 2);
+
+        // Admitted series pass again in later reports.
+        Assert.assertEquals(3, limiter.limit(data.subList(0, 3)).size());
+        Assert.assertEquals(0, limiter.getLastLimitedSeries());
+    }
+
+    @Test
+    public void keepsAdmittedSeriesUntilIdle() {
+        CardinalityLimiter limiter = new CardinalityLimiter(1000, 2, CardinalityLimiter.Policy.DROP, 60000);
+        List<MetricDatum> first = new ArrayList<MetricDatum>();
+        first.add(datum("Requests", "path", "m"));
+        first.add(datum("Requests", "path", "n"));
+        Assert.assertEquals(2, limiter.limit(first, 0).size());
+
+        // A new series which sorts first does not push out those admitted before.
+        List<MetricDatum> second = new ArrayList<MetricDatum>();
+        second.add(datum("Requests", "path", "a"));
+        second.add(datum("Requests", "path", "m"));
+        List<MetricDatum> kept = limiter.limit(second, 30000);
+        Assert.assertEquals(1, kept.size());
+        Assert.assertEquals("m", kept.get(0).getDimensions().get(0).getValue());
+
+        // n has not been sent for over a minute, so its place goes to a.
+        kept = limiter.limit(second, 61000);
+        Assert.assertEquals(2, kept.size());
+        Assert.assertEquals(0, limiter.getLastLimitedSeries());
+    }
+
+    @Test
+    public void findsSurvivorsAfterExpiringMany() {
+        CardinalityLimiter limiter = new CardinalityLimiter(1000, 1000, CardinalityLimiter.Policy.DROP, 60000);
+        List<MetricDatum> all = new ArrayList<MetricDatum>();
+        List<MetricDatum> even = new ArrayList<MetricDatum>();
+        for (int i = 0; i < 1000; i++) {
+            all.add(datum("Requests", "requestId", "r" + i));
+            if (i % 2 == 0) {
+                even.add(all.get(i));
+            }
+        }
+        Assert.assertEquals(1000, limiter.limit(all, 0).size());
+        Assert.assertEquals(500, limiter.limit(even, 30000).size());
+
+        // The odd series expire. The even ones are still admitted, with room for 500 new ones.
+        List<MetricDatum> next = new ArrayList<MetricDatum>(even);
+        for (int i = 0; i < 1000; i++) {
+            next.add(datum("Requests", "requestId", "s" + i));
+        }
+        Assert.assertEquals(1000, limiter.limit(next, 61000).size());
+        Assert.assertEquals(500, limiter.getLastLimitedSeries(), 25);
+        Assert.assertEquals(500, limiter.limit(even, 62000).size());
+    }
+
+    @Test
+    public void dropsSeriesBeyondTheTotalBudget() {
+        CardinalityLimiter limiter = new CardinalityLimiter(50, 1000, CardinalityLimiter.Policy.DROP);
+        List<MetricDatum> data = new ArrayList<MetricDatum>();
+        for (int i = 0; i < 100000; i++) {
+            data.add(datum("Requests" + i % 10, "requestId", "r" + i));
+        }
+
+        Assert.assertEquals(50, limiter.limit(data).size());
+        Assert.assertEquals(100000, limiter.getLastDistinctSeries(), 100000 * 0.05);
+    }
+
+    @Test
+    public void reporterSendsLimitedCount() throws InterruptedException {
+        FakeCloudWatch fake = new FakeCloudWatch();
+        try {
+            MetricRegistry registry = new MetricRegistry();
+            CloudWatchReporter reporter = new CloudWatchReporterBuilder()
+                    .withNamespace("test").withRegistry(registry).withClient(fake)
+                    .withCardinalityLimiter(new CardinalityLimiter(1000, 5, CardinalityLimiter.Policy.OVERFLOW))
+                    .withRateLimiter(new PutMetricDataRateLimiter(100000, 100000))
+                    .build();
+            for (int i = 0; i < 20; i++) {
+                registry.counter("Requests requestId=r" + i).inc();
+            }
+            reporter.report();
+            Assert.assertTrue(reporter.getSubmitter().awaitIdle(30, TimeUnit.SECONDS));
+
+            Assert.assertEquals(20, fake.sum("Requests"), 0.0);
+            Assert.assertEquals(15, fake.sum(CloudWatchReporter.CARDINALITY_LIMITED), 0.0);
+            Assert.assertEquals(15, reporter.getMetrics().getRegistry().meter("LimitedSeries").getCount());
+        } finally {
+            fake.close();
+        }
+    }
+
+    private static MetricDatum datum(String name, String dimension, String value) {
+        return new MetricDatum().withMetricName(name).withValue(1.0)
+                .withDimensions(new Dimension().withName(dimension).withValue(value));
+    }
+}
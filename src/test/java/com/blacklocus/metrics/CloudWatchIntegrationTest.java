@@ -0,0 +1,225 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatchAsync;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatchAsyncClientBuilder;
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reporters end to end against a {@link FakeCloudWatch}, in process and over HTTP through the real SDK client.
+ */
+public class CloudWatchIntegrationTest {
+
+    private final FakeCloudWatch fake = new FakeCloudWatch();
+    private AmazonCloudWatchAsync client;
+
+    @After
+    public void close() {
+        if (client != null) {
+            client.shutdown();
+        }
+        fake.close();
+    }
+
+    @Test
+    public void reportsSurviveThrottlingAndServerErrors() throws InterruptedException {
+        fake.withLatencyMillis(1, 5).withSlowCalls(0.05, 50).withThrottleRate(0.3).withServerErrorRate(0.1);
+        MetricRegistry registry = new MetricRegistry();
+        CloudWatchReporter reporter = new CloudWatchReporterBuilder()
+                .withNamespace("test").withRegistry(registry).withClient(fake)
+                .withMaxDatumsPerRequest(20)
+                .withRetryPolicy(new RetryPolicy().withMaxAttempts(20).withBaseDelayMillis(1).withMaxDelayMillis(10)
+                        .withBudget(new RetryBudget(1.0, 10000)))
+                .withRateLimiter(new PutMetricDataRateLimiter(100000, 100000))
+                .build();
+
+        for (int report = 0; report < 20; report++) {
+            for (int i = 0; i < 50; i++) {
+                registry.counter("Requests path=p" + i).inc(i);
+            }
+            reporter.report();
+        }
+
+        Assert.assertTrue(reporter.getSubmitter().awaitIdle(30, TimeUnit.SECONDS));
+        Assert.assertEquals(20 * 50 * 49 / 2.0, fake.sum("Requests"), 0.0);
+        Assert.assertTrue(fake.getThrottled() > 0);
+        Assert.assertTrue(fake.getServerErrors() > 0);
+        Assert.assertEquals(0, reporter.getSubmitter().getFailedRequests());
+    }
+
+    @Test
+    public void stopFlushesTheLastReportPastTheConcurrencyCap() {
+        fake.withLatencyMillis(20, 20);
+        MetricRegistry registry = new MetricRegistry();
+        CloudWatchReporter reporter = new CloudWatchReporterBuilder()
+                .withNamespace("test").withRegistry(registry).withClient(fake)
+                .withMaxDatumsPerRequest(10)
+                .withMaxConcurrentRequests(1)
+                .withRateLimiter(new PutMetricDataRateLimiter(100000, 100000))
+                .build();
+
+        for (int i = 0; i < 100; i++) {
+            registry.counter("Requests path=p" + i).inc();
+        }
+        CloudWatchReporter.FlushResult result = reporter.stop(10, TimeUnit.SECONDS);
+
+        Assert.assertTrue(result.isComplete());
+        Assert.assertEquals(100, result.getFlushedDatums());
+        Assert.assertEquals(0, result.getAbandonedDatums());
+        Assert.assertEquals(100.0, fake.sum("Requests"), 0.0);
+
+        // Only the first stop flushes.
+        registry.counter("Requests path=late").inc();
+        Assert.assertEquals(0, reporter.stop(10, TimeUnit.SECONDS).getFlushedDatums());
+    }
+
+    @Test
+    public void stopAbandonsWhatMissesTheDeadline() {
+        fake.withLatencyMillis(2000, 2000);
+        MetricRegistry registry = new MetricRegistry();
+        CloudWatchReporter reporter = new CloudWatchReporterBuilder()
+                .withNamespace("test").withRegistry(registry).withClient(fake)
+                .withMaxDatumsPerRequest(10)
+                .withRateLimiter(new PutMetricDataRateLimiter(100000, 100000))
+                .build();
+
+        for (int i = 0; i < 30; i++) {
+            registry.counter("Requests path=p" + i).inc();
+        }
+        CloudWatchReporter.FlushResult result = reporter.stop(50, TimeUnit.MILLISECONDS);
+
+        Assert.assertFalse(result.isComplete());
+        Assert.assertEquals(0, result.getFlushedDatums());
+        Assert.assertEquals(30, result.getAbandonedDatums());
+    }
+
+    @Test
+    public void stoppingRemovesTheShutdownHook() {
+        MetricRegistry registry = new MetricRegistry();
+        CloudWatchReporterBuilder builder = new CloudWatchReporterBuilder()
+                .withNamespace("test").withRegistry(registry).withClient(fake)
+                .withShutdownHook(true);
+
+        CloudWatchReporter flushed = builder.build();
+        Thread hook = flushed.getShutdownHook();
+        Assert.assertNotNull(hook);
+        flushed.stop(10, TimeUnit.SECONDS);
+        Assert.assertNull(flushed.getShutdownHook());
+        Assert.assertFalse(Runtime.getRuntime().removeShutdownHook(hook));
+
+        // A plain stop also removes the hook, and no flush follows.
+        CloudWatchReporter stopped = builder.build();
+        hook = stopped.getShutdownHook();
+        stopped.stop();
+        Assert.assertFalse(Runtime.getRuntime().removeShutdownHook(hook));
+        registry.counter("Requests").inc();
+        Assert.assertEquals(0, stopped.stop(10, TimeUnit.SECONDS).getFlushedDatums());
+        Assert.assertEquals(0, fake.getRequests());
+    }
+
+    @Test
+    public void payloadLimitsRejectWithoutRetry() throws InterruptedException {
+        fake.withMaxDatumsPerRequest(5);
+        CloudWatchSubmitter submitter = new CloudWatchSubmitter(fake).withRateLimiter(null);
+        List<MetricDatum> data = new ArrayList<MetricDatum>();
+        for (int i = 0; i < 6; i++) {
+            data.add(new MetricDatum().withMetricName("Requests").withValue(1.0));
+        }
+        submitter.submit(new PutMetricDataRequest().withNamespace("test").withMetricData(data));
+
+        Assert.assertTrue(submitter.awaitIdle(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, fake.getRequests());
+        Assert.assertEquals(1, fake.getRejected());
+        Assert.assertEquals(1, submitter.getFailedRequests());
+    }
+
+    @Test
+    public void httpEndpointSpeaksPutMetricData() throws Exception {
+        client = client(fake.start());
+        GenerationalMetricRegistry registry = new GenerationalMetricRegistry();
+        CloudWatchReporter reporter = new CloudWatchReporterBuilder()
+                .withNamespace("test").withRegistry(registry).withClient(client)
+                .build();
+
+        registry.counter("Requests machine=m1*").inc(3);
+        Histogram latency = registry.register("Latency", new Histogram(new LogBucketReservoir()));
+        latency.update(10);
+        latency.update(10);
+        latency.update(1000);
+        registry.histogram("Sizes").update(7);
+        reporter.report();
+        Assert.assertTrue(reporter.getSubmitter().awaitIdle(30, TimeUnit.SECONDS));
+
+        Assert.assertEquals(1, fake.acceptedRequests().size());
+        Assert.assertEquals("test", fake.acceptedRequests().get(0).getNamespace());
+        Assert.assertEquals(6.0, fake.sum("Requests"), 0.0);
+        boolean sawMachine = false;
+        for (MetricDatum datum : fake.data()) {
+            if ("Requests".equals(datum.getMetricName()) && datum.getDimensions().contains(
+                    new Dimension().withName("machine").withValue("m1"))) {
+                sawMachine = true;
+            } else if ("Latency".equals(datum.getMetricName())) {
+                Assert.assertEquals(2, datum.getValues().size());
+                Assert.assertEquals(3.0, datum.getCounts().get(0) + datum.getCounts().get(1), 0.0);
+            } else if ("Sizes".equals(datum.getMetricName())) {
+                Assert.assertEquals(7.0, datum.getStatisticValues().getSum(), 0.0);
+            }
+        }
+        Assert.assertTrue(sawMachine);
+    }
+
+    @Test
+    public void httpEndpointThrottles() throws Exception {
+        client = client(fake.withThrottleRate(1.0).start());
+        try {
+            client.putMetricData(new PutMetricDataRequest().withNamespace("test").withMetricData(
+                    Collections.singletonList(new MetricDatum().withMetricName("Requests").withValue(1.0))));
+            Assert.fail("Expected throttling");
+        } catch (AmazonServiceException e) {
+            Assert.assertEquals("Throttling", e.getErrorCode());
+            Assert.assertEquals(400, e.getStatusCode());
+            Assert.assertTrue(new RetryPolicy().isRetryable(e));
+        }
+    }
+
+    private static AmazonCloudWatchAsync client(URI endpoint) {
+        return AmazonCloudWatchAsyncClientBuilder.standard()
+                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint.toString(), "us-east-1"))
+                .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("fake", "fake")))
+                // Leave retries to the submitter.
+                .withClientConfiguration(new ClientConfiguration().withMaxErrorRetry(0))
+                .build();
+    }
+}
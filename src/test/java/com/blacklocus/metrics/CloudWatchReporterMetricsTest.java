@@ -0,0 +1,107 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+public class CloudWatchReporterMetricsTest {
+
+    private final FakeCloudWatch fake = new FakeCloudWatch();
+
+    @After
+    public void close() {
+        fake.close();
+    }
+
+    @Test
+    public void countsWhatTheReporterDoes() throws InterruptedException {
+        fake.withThrottleRate(0.5);
+        MetricRegistry registry = new MetricRegistry();
+        CloudWatchReporter reporter = new CloudWatchReporterBuilder()
+                .withNamespace("test").withRegistry(registry).withClient(fake)
+                .withMaxDatumsPerRequest(10)
+                .withRetryPolicy(new RetryPolicy().withMaxAttempts(20).withBaseDelayMillis(1).withMaxDelayMillis(10)
+                        .withBudget(new RetryBudget(1.0, 10000)))
+                .withRateLimiter(new PutMetricDataRateLimiter(100000, 100000))
+                .build();
+
+        for (int report = 0; report < 5; report++) {
+            for (int i = 0; i < 20; i++) {
+                registry.counter("Requests path=p" + i).inc();
+            }
+            reporter.report();
+        }
+        Assert.assertTrue(reporter.getSubmitter().awaitIdle(30, TimeUnit.SECONDS));
+
+        CloudWatchReporterMetrics metrics = reporter.getMetrics();
+        metrics.observe(reporter.getSubmitter());
+        MetricRegistry self = metrics.getRegistry();
+        Assert.assertEquals(5, self.timer("TranslateTime").getCount());
+        Assert.assertEquals(5, self.timer("SubmitTime").getCount());
+        Assert.assertEquals(5 * 20, self.meter("Datums").getCount());
+        Assert.assertEquals(0, self.meter("FilteredDatums").getCount());
+        Assert.assertEquals(5 * 2, self.meter("Batches").getCount());
+        Assert.assertEquals(fake.acceptedRequests().size(), self.counter("SentRequests").getCount());
+        Assert.assertEquals(fake.getThrottled(), self.counter("RequestErrors type=Throttling").getCount());
+        Assert.assertTrue(fake.getThrottled() > 0);
+        Assert.assertEquals(0, self.meter("Errors stage=submit").getCount());
+    }
+
+    @Test
+    public void reportsToItsOwnNamespace() throws InterruptedException {
+        MetricRegistry registry = new MetricRegistry();
+        CloudWatchReporter reporter = new CloudWatchReporterBuilder()
+                .withNamespace("test").withRegistry(registry).withClient(fake)
+                .withReporterMetricsNamespace("test/reporter")
+                .withRateLimiter(new PutMetricDataRateLimiter(100000, 100000))
+                .build();
+
+        registry.counter("Requests").inc();
+        // The second report sends the requests which the first one sent.
+        for (int report = 0; report < 4; report++) {
+            reporter.report();
+            Assert.assertTrue(reporter.getSubmitter().awaitIdle(30, TimeUnit.SECONDS));
+        }
+
+        Set<String> selfNames = new HashSet<String>();
+        double translations = 0;
+        for (PutMetricDataRequest request : fake.acceptedRequests()) {
+            if ("test/reporter".equals(request.getNamespace())) {
+                for (MetricDatum datum : request.getMetricData()) {
+                    selfNames.add(datum.getMetricName());
+                    if (datum.getMetricName().equals("TranslateTime")) {
+                        translations += datum.getStatisticValues().getSampleCount();
+                    }
+                }
+            }
+        }
+        // Each translation is sent once.
+        Assert.assertEquals(4.0, translations, 0.0);
+        Assert.assertTrue(selfNames.toString(), selfNames.contains("TranslateTime"));
+        Assert.assertTrue(selfNames.toString(), selfNames.contains("Datums"));
+        Assert.assertTrue(selfNames.toString(), selfNames.contains("SentRequests"));
+        Assert.assertEquals(1.0, fake.sum("Requests"), 0.0);
+    }
+}
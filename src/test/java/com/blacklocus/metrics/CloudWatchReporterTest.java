@@ -16,12 +16,18 @@
 package com.blacklocus.metrics;
 
 import com.amazonaws.services.cloudwatch.AmazonCloudWatchAsyncClient;
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
+import org.junit.Assert;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -130,4 +136,124 @@ public class CloudWatchReporterTest {
         executors.awaitTermination(5, TimeUnit.SECONDS);
 
     }
+
+    @Test
+    public void globalDimensionsAreMergedIntoCachedTemplates() {
+        MetricRegistry metricRegistry = new MetricRegistry();
+        RecordingCloudWatch cloudWatch = new RecordingCloudWatch();
+        CloudWatchReporter reporter = new CloudWatchReporterBuilder()
+                .withNamespace("test")
+                .withRegistry(metricRegistry)
+                .withClient(cloudWatch)
+                .withDimensions("unit=test")
+                .build();
+
+        metricRegistry.counter("Requests machine=a*").inc();
+        reporter.report();
+        metricRegistry.counter("Requests machine=a*").inc();
+        reporter.withDimensions("unit=other");
+        reporter.report();
+
+        List<MetricDatum> data = cloudWatch.data();
+        Assert.assertEquals(4, data.size());
+        Assert.assertEquals(new Dimension().withName("unit").withValue("test"), data.get(0).getDimensions().get(0));
+        Assert.assertEquals(2, data.get(1).getDimensions().size());
+        Assert.assertEquals(new Dimension().withName("unit").withValue("other"), data.get(2).getDimensions().get(0));
+    }
+
+    @Test
+    public void gaugesAreReadAsNumbers() {
+        MetricRegistry metricRegistry = new MetricRegistry();
+        RecordingCloudWatch cloudWatch = new RecordingCloudWatch();
+        CloudWatchReporter reporter = new CloudWatchReporterBuilder()
+                .withNamespace("test")
+                .withRegistry(metricRegistry)
+                .withClient(cloudWatch)
+                .build();
+
+        DoubleGauge ratio = metricRegistry.register("Ratio", new DoubleGauge());
+        ratio.setValue(0.25);
+        metricRegistry.register("Depth", new LongGauge(7));
+        metricRegistry.register("Big", new NumberGauge(new BigDecimal("12.5")));
+        metricRegistry.register("Text", new Gauge<String>() {
+            @Override
+            public String getValue() {
+                return "3";
+            }
+        });
+        metricRegistry.register("Word", new Gauge<String>() {
+            @Override
+            public String getValue() {
+                return "three";
+            }
+        });
+        metricRegistry.register("NaN", new DoubleGauge(Double.NaN));
+        metricRegistry.register("Infinite", new NumberGauge(Double.POSITIVE_INFINITY));
+        reporter.report();
+
+        Assert.assertEquals(0.25, cloudWatch.sum("Ratio"), 0.0);
+        Assert.assertEquals(7.0, cloudWatch.sum("Depth"), 0.0);
+        Assert.assertEquals(12.5, cloudWatch.sum("Big"), 0.0);
+        Assert.assertEquals(3.0, cloudWatch.sum("Text"), 0.0);
+        Assert.assertEquals(4, cloudWatch.data().size());
+    }
+
+    @Test
+    public void permutationsAreBudgeted() {
+        MetricRegistry metricRegistry = new MetricRegistry();
+        RecordingCloudWatch cloudWatch = new RecordingCloudWatch();
+        CloudWatchReporter reporter = new CloudWatchReporterBuilder()
+                .withNamespace("test")
+                .withRegistry(metricRegistry)
+                .withClient(cloudWatch)
+                .build();
+
+        // 1024 permutations, over the default budget, truncated to the most aggregated and the full set.
+        metricRegistry.counter("Wide a* b* c* d* e* f* g* h=1* i=1* j=1*").inc();
+        metricRegistry.counter("Narrow x* y=1*").inc();
+        reporter.report();
+
+        List<MetricDatum> data = cloudWatch.data();
+        Assert.assertEquals(6, data.size());
+        Assert.assertEquals("Wide", data.get(4).getMetricName());
+        Assert.assertTrue(data.get(4).getDimensions().isEmpty());
+        Assert.assertEquals("Wide a b c d e f g", data.get(5).getMetricName());
+        Assert.assertEquals(3, data.get(5).getDimensions().size());
+        Assert.assertEquals(1, reporter.getMetrics().getRegistry().meter("PermutationsLimited budget=metric").getCount());
+
+        cloudWatch.requests.clear();
+        reporter.withMaxPermutedDatumsPerReport(5).withPermutationPolicy(CloudWatchReporter.PermutationPolicy.REJECT);
+        metricRegistry.counter("A x* y=1*").inc();
+        metricRegistry.counter("B x* y=1*").inc();
+        metricRegistry.counter("C").inc();
+        reporter.report();
+
+        Assert.assertEquals(4, cloudWatch.sum("A") + cloudWatch.sum("A x"), 0.0);
+        Assert.assertEquals(0, cloudWatch.sum("B") + cloudWatch.sum("B x"), 0.0);
+        Assert.assertEquals(1, cloudWatch.sum("C"), 0.0);
+        Assert.assertEquals(1, reporter.getMetrics().getRegistry().meter("PermutationsLimited budget=report").getCount());
+    }
+
+    @Test
+    public void timestampedSeriesShareCachedTemplates() {
+        MetricRegistry metricRegistry = new MetricRegistry();
+        RecordingCloudWatch cloudWatch = new RecordingCloudWatch();
+        CloudWatchReporter reporter = new CloudWatchReporterBuilder()
+                .withNamespace("test")
+                .withRegistry(metricRegistry)
+                .withClient(cloudWatch)
+                .build();
+
+        MetricKey.Builder requests = MetricKey.counter().add("Requests machine=a").withStorageResolution(60);
+        metricRegistry.counter(requests.withTimestamp(60000).build().getName()).inc();
+        reporter.report();
+        metricRegistry.counter(requests.withTimestamp(120000).build().getName()).inc();
+        reporter.report();
+
+        Assert.assertEquals(1, reporter.templateCache.size());
+        List<MetricDatum> data = cloudWatch.data();
+        Assert.assertEquals(2, data.size());
+        Assert.assertEquals(new Date(60000), data.get(0).getTimestamp());
+        Assert.assertEquals(new Date(120000), data.get(1).getTimestamp());
+    }
 }
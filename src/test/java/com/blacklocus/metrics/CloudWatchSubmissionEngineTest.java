@@ -0,0 +1,71 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class CloudWatchSubmissionEngineTest {
+
+    @Test
+    public void mergesReportersPerNamespace() throws InterruptedException {
+        RecordingCloudWatch cloudWatch = new RecordingCloudWatch();
+        CloudWatchSubmissionEngine engine = new CloudWatchSubmissionEngine(new CloudWatchSubmitter(cloudWatch));
+
+        MetricRegistry first = new MetricRegistry();
+        MetricRegistry second = new MetricRegistry();
+        MetricRegistry third = new MetricRegistry();
+        CloudWatchReporterBuilder builder = new CloudWatchReporterBuilder().withEngine(engine);
+        builder.withNamespace("shared").withRegistry(first).build();
+        builder.withNamespace("shared").withRegistry(second).build();
+        builder.withNamespace("other").withRegistry(third).build();
+
+        for (int i = 0; i < 3; i++) {
+            first.counter("First" + i).inc();
+            second.counter("Second" + i).inc();
+            third.counter("Third" + i).inc();
+        }
+        engine.flush();
+        Assert.assertTrue(engine.getSubmitter().awaitIdle(5, TimeUnit.SECONDS));
+
+        Assert.assertEquals(2, cloudWatch.requests.size());
+        Assert.assertEquals("shared", cloudWatch.requests.get(0).getNamespace());
+        Assert.assertEquals(6, cloudWatch.requests.get(0).getMetricData().size());
+        Assert.assertEquals("other", cloudWatch.requests.get(1).getNamespace());
+        Assert.assertEquals(3, cloudWatch.requests.get(1).getMetricData().size());
+        Assert.assertEquals(3.0, cloudWatch.sum("First0") + cloudWatch.sum("Second1") + cloudWatch.sum("Third2"), 0.0);
+    }
+
+    @Test
+    public void drainModeReportersAreDrained() {
+        RecordingCloudWatch cloudWatch = new RecordingCloudWatch();
+        CloudWatchSubmissionEngine engine = new CloudWatchSubmissionEngine(new CloudWatchSubmitter(cloudWatch));
+        GenerationalMetricRegistry registry = new GenerationalMetricRegistry();
+        new CloudWatchReporterBuilder().withEngine(engine).withNamespace("ns").withRegistry(registry).build();
+
+        String name = "CounterName=Hits StorageResolution=60,Timestamp=60000Unit=Count";
+        registry.counter(name).inc(5);
+        engine.flush();
+        registry.counter(name).inc(2);
+        engine.flush();
+        engine.flush();
+
+        Assert.assertEquals(7.0, cloudWatch.sum("Hits"), 0.0);
+    }
+}
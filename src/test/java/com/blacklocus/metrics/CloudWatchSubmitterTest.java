@@ -0,0 +1,307 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.cloudwatch.AbstractAmazonCloudWatchAsync;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataResult;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class CloudWatchSubmitterTest {
+
+    /**
+     * Holds every request in flight until the test completes it.
+     */
+    static class HeldCloudWatch extends AbstractAmazonCloudWatchAsync {
+
+        final List<PutMetricDataRequest> requests = new ArrayList<PutMetricDataRequest>();
+        final List<AsyncHandler<PutMetricDataRequest, PutMetricDataResult>> handlers =
+                new ArrayList<AsyncHandler<PutMetricDataRequest, PutMetricDataResult>>();
+
+        @Override
+        public synchronized Future<PutMetricDataResult> putMetricDataAsync(PutMetricDataRequest request,
+                                                                           AsyncHandler<PutMetricDataRequest, PutMetricDataResult> handler) {
+            requests.add(request);
+            handlers.add(handler);
+            return SettableFuture.create();
+        }
+
+        void succeed(int i) {
+            AsyncHandler<PutMetricDataRequest, PutMetricDataResult> handler;
+            PutMetricDataRequest request;
+            synchronized (this) {
+                handler = handlers.get(i);
+                request = requests.get(i);
+            }
+            handler.onSuccess(request, new PutMetricDataResult());
+        }
+
+        void fail(int i) {
+            AsyncHandler<PutMetricDataRequest, PutMetricDataResult> handler;
+            synchronized (this) {
+                handler = handlers.get(i);
+            }
+            handler.onError(new RuntimeException("expected"));
+        }
+
+        synchronized List<String> names() {
+            List<String> names = new ArrayList<String>();
+            for (PutMetricDataRequest request : requests) {
+                names.add(request.getMetricData().get(0).getMetricName());
+            }
+            return names;
+        }
+    }
+
+    static PutMetricDataRequest request(String name) {
+        return new PutMetricDataRequest().withNamespace("ns").withMetricData(new MetricDatum().withMetricName(name));
+    }
+
+    @Test
+    public void concurrencyLimit() throws InterruptedException {
+        HeldCloudWatch cloudWatch = new HeldCloudWatch();
+        CloudWatchSubmitter submitter = new CloudWatchSubmitter(cloudWatch, 2, 10,
+                CloudWatchSubmitter.OverflowPolicy.DROP_NEWEST, 0);
+
+        for (String name : new String[]{"a", "b", "c", "d"}) {
+            Assert.assertTrue(submitter.submit(request(name)));
+        }
+        Assert.assertEquals(2, cloudWatch.names().size());
+        Assert.assertEquals(2, submitter.getInFlightRequests());
+        Assert.assertEquals(2, submitter.getQueuedRequests());
+
+        cloudWatch.succeed(0);
+        cloudWatch.fail(1);
+        Assert.assertEquals(4, cloudWatch.names().size());
+        Assert.assertFalse(submitter.awaitIdle(10, TimeUnit.MILLISECONDS));
+
+        cloudWatch.succeed(2);
+        cloudWatch.succeed(3);
+        Assert.assertTrue(submitter.awaitIdle(1, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList("a", "b", "c", "d"), cloudWatch.names());
+        Assert.assertEquals(3, submitter.getSentRequests());
+        Assert.assertEquals(1, submitter.getFailedRequests());
+    }
+
+    @Test
+    public void dropOldest() {
+        HeldCloudWatch cloudWatch = new HeldCloudWatch();
+        CloudWatchSubmitter submitter = new CloudWatchSubmitter(cloudWatch, 1, 2,
+                CloudWatchSubmitter.OverflowPolicy.DROP_OLDEST, 0);
+
+        for (String name : new String[]{"a", "b", "c", "d"}) {
+            Assert.assertTrue(submitter.submit(request(name)));
+        }
+        Assert.assertEquals(1, submitter.getDroppedRequests());
+
+        cloudWatch.succeed(0);
+        cloudWatch.succeed(1);
+        Assert.assertEquals(Arrays.asList("a", "c", "d"), cloudWatch.names());
+    }
+
+    @Test
+    public void dropNewest() {
+        HeldCloudWatch cloudWatch = new HeldCloudWatch();
+        CloudWatchSubmitter submitter = new CloudWatchSubmitter(cloudWatch, 1, 2,
+                CloudWatchSubmitter.OverflowPolicy.DROP_NEWEST, 0);
+
+        Assert.assertTrue(submitter.submit(request("a")));
+        Assert.assertTrue(submitter.submit(request("b")));
+        Assert.assertTrue(submitter.submit(request("c")));
+        Assert.assertFalse(submitter.submit(request("d")));
+
+        cloudWatch.succeed(0);
+        cloudWatch.succeed(1);
+        Assert.assertEquals(Arrays.asList("a", "b", "c"), cloudWatch.names());
+    }
+
+    @Test
+    public void blockUntilRoomOrTimeout() throws InterruptedException {
+        final HeldCloudWatch cloudWatch = new HeldCloudWatch();
+        CloudWatchSubmitter submitter = new CloudWatchSubmitter(cloudWatch, 1, 1,
+                CloudWatchSubmitter.OverflowPolicy.BLOCK, 50);
+
+        Assert.assertTrue(submitter.submit(request("a")));
+        Assert.assertTrue(submitter.submit(request("b")));
+        long start = System.nanoTime();
+        Assert.assertFalse(submitter.submit(request("c")));
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(40));
+
+        Thread completer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                cloudWatch.succeed(0);
+            }
+        };
+        submitter = new CloudWatchSubmitter(cloudWatch, 1, 1, CloudWatchSubmitter.OverflowPolicy.BLOCK, 5000);
+        cloudWatch.requests.clear();
+        cloudWatch.handlers.clear();
+        Assert.assertTrue(submitter.submit(request("a")));
+        Assert.assertTrue(submitter.submit(request("b")));
+        completer.start();
+        Assert.assertTrue(submitter.submit(request("c")));
+        completer.join();
+        Assert.assertEquals(Arrays.asList("a", "b"), cloudWatch.names());
+        Assert.assertEquals(1, submitter.getQueuedRequests());
+    }
+
+    /**
+     * Fails with each of the given exceptions in turn, then succeeds.
+     */
+    static class FailingCloudWatch extends AbstractAmazonCloudWatchAsync {
+
+        final ConcurrentLinkedQueue<Exception> failures = new ConcurrentLinkedQueue<Exception>();
+        final List<PutMetricDataRequest> requests = new CopyOnWriteArrayList<PutMetricDataRequest>();
+
+        FailingCloudWatch(Exception... failures) {
+            this.failures.addAll(Arrays.asList(failures));
+        }
+
+        @Override
+        public Future<PutMetricDataResult> putMetricDataAsync(PutMetricDataRequest request,
+                                                              AsyncHandler<PutMetricDataRequest, PutMetricDataResult> handler) {
+            requests.add(request);
+            Exception failure = failures.poll();
+            if (failure != null) {
+                handler.onError(failure);
+            } else {
+                handler.onSuccess(request, new PutMetricDataResult());
+            }
+            return SettableFuture.create();
+        }
+    }
+
+    static AmazonServiceException serviceException(String errorCode, int statusCode) {
+        AmazonServiceException e = new AmazonServiceException(errorCode);
+        e.setErrorCode(errorCode);
+        e.setStatusCode(statusCode);
+        return e;
+    }
+
+    static RetryPolicy fastRetries(RetryBudget budget) {
+        return new RetryPolicy().withBaseDelayMillis(1).withMaxDelayMillis(5).withBudget(budget);
+    }
+
+    static CloudWatchSubmitter submitter(FailingCloudWatch cloudWatch, RetryPolicy retryPolicy) {
+        return new CloudWatchSubmitter(cloudWatch, 4, 100, CloudWatchSubmitter.OverflowPolicy.DROP_NEWEST, 0,
+                retryPolicy, null);
+    }
+
+    @Test
+    public void retriesThrottlingServerAndNetworkErrors() throws InterruptedException {
+        FailingCloudWatch cloudWatch = new FailingCloudWatch(
+                serviceException("Throttling", 400),
+                serviceException("InternalServiceError", 500),
+                new AmazonClientException("Unable to execute HTTP request: Connection reset"));
+        CloudWatchSubmitter submitter = submitter(cloudWatch, fastRetries(new RetryBudget(0.2, 10)));
+
+        submitter.submit(request("a"));
+        Assert.assertTrue(submitter.awaitIdle(5, TimeUnit.SECONDS));
+        Assert.assertEquals(4, cloudWatch.requests.size());
+        Assert.assertEquals(3, submitter.getRetriedRequests());
+        Assert.assertEquals(1, submitter.getSentRequests());
+        Assert.assertEquals(0, submitter.getFailedRequests());
+    }
+
+    @Test
+    public void doesNotRetryValidationErrors() throws InterruptedException {
+        FailingCloudWatch cloudWatch = new FailingCloudWatch(serviceException("InvalidParameterValue", 400));
+        CloudWatchSubmitter submitter = submitter(cloudWatch, fastRetries(new RetryBudget(0.2, 10)));
+
+        submitter.submit(request("a"));
+        Assert.assertTrue(submitter.awaitIdle(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, cloudWatch.requests.size());
+        Assert.assertEquals(1, submitter.getFailedRequests());
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() throws InterruptedException {
+        Exception[] failures = new Exception[10];
+        Arrays.fill(failures, serviceException("Throttling", 400));
+        FailingCloudWatch cloudWatch = new FailingCloudWatch(failures);
+        CloudWatchSubmitter submitter = submitter(cloudWatch, fastRetries(new RetryBudget(0.2, 10)).withMaxAttempts(3));
+
+        submitter.submit(request("a"));
+        Assert.assertTrue(submitter.awaitIdle(5, TimeUnit.SECONDS));
+        Assert.assertEquals(3, cloudWatch.requests.size());
+        Assert.assertEquals(1, submitter.getFailedRequests());
+    }
+
+    @Test
+    public void budgetCapsRetries() throws InterruptedException {
+        Exception[] failures = new Exception[20];
+        Arrays.fill(failures, serviceException("Throttling", 400));
+        FailingCloudWatch cloudWatch = new FailingCloudWatch(failures);
+        RetryBudget budget = new RetryBudget(0.5, 2);
+        CloudWatchSubmitter submitter = submitter(cloudWatch, fastRetries(budget).withMaxAttempts(100));
+
+        for (int i = 0; i < 4; i++) {
+            submitter.submit(request("r" + i));
+        }
+        Assert.assertTrue(submitter.awaitIdle(5, TimeUnit.SECONDS));
+        // 2 banked, and 4 first attempts deposit 2 more, capped at 2 each time
+        Assert.assertTrue(submitter.getRetriedRequests() <= 4);
+        Assert.assertEquals(4, submitter.getFailedRequests());
+        Assert.assertEquals(0, budget.getAvailableRetries());
+    }
+
+    @Test
+    public void givesUpOnOldData() throws InterruptedException {
+        FailingCloudWatch cloudWatch = new FailingCloudWatch(serviceException("Throttling", 400));
+        CloudWatchSubmitter submitter = submitter(cloudWatch,
+                fastRetries(new RetryBudget(0.2, 10)).withMaxDataAgeMillis(60 * 1000));
+
+        submitter.submit(new PutMetricDataRequest().withNamespace("ns").withMetricData(new MetricDatum()
+                .withMetricName("old").withTimestamp(new Date(System.currentTimeMillis() - 2 * 60 * 1000))));
+        Assert.assertTrue(submitter.awaitIdle(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, cloudWatch.requests.size());
+        Assert.assertEquals(1, submitter.getFailedRequests());
+    }
+
+    @Test
+    public void decorrelatedJitterStaysInBounds() {
+        RetryPolicy policy = new RetryPolicy().withBaseDelayMillis(100).withMaxDelayMillis(10000);
+        Random random = new Random(0);
+        long delay = 0;
+        for (int i = 0; i < 100; i++) {
+            long next = policy.nextDelayMillis(delay, random);
+            Assert.assertTrue(next >= 100);
+            Assert.assertTrue(next <= Math.min(10000, Math.max(100, delay * 3)));
+            delay = next;
+        }
+    }
+}
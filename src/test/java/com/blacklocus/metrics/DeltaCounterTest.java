@@ -0,0 +1,117 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.Sets;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+public class DeltaCounterTest {
+
+    @Test
+    public void sumThenResetTakesEveryIncrementOnce() throws InterruptedException {
+        final DeltaCounter counter = new DeltaCounter();
+        final CountDownLatch done = new CountDownLatch(8);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        counter.inc();
+                    }
+                    done.countDown();
+                }
+            };
+            writer.start();
+            threads.add(writer);
+        }
+
+        long taken = 0;
+        while (done.getCount() > 0) {
+            taken += counter.sumThenReset();
+        }
+        for (Thread writer : threads) {
+            writer.join();
+        }
+        taken += counter.sumThenReset();
+
+        Assert.assertEquals(800000, taken);
+        Assert.assertEquals(800000, counter.getCount());
+        Assert.assertEquals(0, counter.getPendingCount());
+    }
+
+    @Test
+    public void meterKeepsRates() {
+        DeltaMeter meter = new DeltaMeter();
+        meter.mark();
+        meter.mark(4);
+        Assert.assertEquals(5, meter.getPendingCount());
+        Assert.assertEquals(5, meter.sumThenReset());
+        Assert.assertEquals(0, meter.sumThenReset());
+        Assert.assertEquals(5, meter.getCount());
+        Assert.assertTrue(meter.getMeanRate() > 0);
+    }
+
+    @Test
+    public void reporterTakesIntervalCounts() {
+        MetricRegistry registry = new MetricRegistry();
+        RecordingCloudWatch cloudWatch = new RecordingCloudWatch();
+        CloudWatchReporter reporter = new CloudWatchReporterBuilder()
+                .withNamespace("test").withRegistry(registry).withClient(cloudWatch).build();
+
+        DeltaCounter counter = registry.register("Requests", new DeltaCounter());
+        DeltaMeter meter = registry.register("Marks", new DeltaMeter());
+        counter.inc(3);
+        meter.mark(2);
+        registry.counter("Plain").inc();
+        reporter.report();
+        // Registered once. The reporter clears the rest of the registry each report, but keeps these.
+        counter.inc(4);
+        meter.mark();
+        reporter.report();
+
+        Assert.assertEquals(7.0, cloudWatch.sum("Requests"), 0.0);
+        Assert.assertEquals(3.0, cloudWatch.sum("Marks"), 0.0);
+        Assert.assertEquals(Sets.newHashSet("Requests", "Marks"), registry.getNames());
+    }
+
+    @Test
+    public void drainModeRetiresIdleDeltaCounters() {
+        GenerationalMetricRegistry registry = new GenerationalMetricRegistry();
+        RecordingCloudWatch cloudWatch = new RecordingCloudWatch();
+        CloudWatchReporter reporter = new CloudWatchReporterBuilder()
+                .withNamespace("test").withRegistry(registry).withClient(cloudWatch).build();
+
+        String name = "CounterName=Hits StorageResolution=60,Timestamp=60000Unit=Count";
+        DeltaCounter counter = registry.register(name, new DeltaCounter());
+        counter.inc(5);
+        reporter.report();
+        counter.inc(2);
+        // Two cycles to report the late increment from its generation, two more to find it idle.
+        for (int i = 0; i < 4; i++) {
+            reporter.report();
+        }
+
+        Assert.assertEquals(7.0, cloudWatch.sum("Hits"), 0.0);
+        Assert.assertFalse(registry.getNames().contains(name));
+    }
+}
@@ -0,0 +1,217 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+public class DemuxedKeyTest {
+
+    @Test
+    public void readmeExample() {
+        List<String> names = new ArrayList<String>();
+        for (DemuxedKey.Template template : new DemuxedKey(
+                "ServiceX Requests group-tag* machine=1.2.3.4* strategy=dolphin* environment=development").templates()) {
+            names.add(template.metricName + " " + template.getDimensions().size());
+        }
+        Assert.assertEquals(ImmutableList.of(
+                "ServiceX Requests 1", "ServiceX Requests 2", "ServiceX Requests 2", "ServiceX Requests 3",
+                "ServiceX Requests group-tag 1", "ServiceX Requests group-tag 2",
+                "ServiceX Requests group-tag 2", "ServiceX Requests group-tag 3"
+        ), names);
+    }
+
+    @Test
+    public void noDimensions() {
+        List<DemuxedKey.Template> templates = new DemuxedKey("Requests tag*").templates();
+        Assert.assertEquals(2, templates.size());
+        Assert.assertEquals("Requests", templates.get(0).metricName);
+        Assert.assertTrue(templates.get(0).getDimensions().isEmpty());
+        Assert.assertEquals("Requests tag", templates.get(1).metricName);
+    }
+
+    @Test
+    public void allPermutableNames() {
+        List<DemuxedKey.Template> templates = new DemuxedKey("a* b* c=d").templates();
+        Assert.assertEquals(3, templates.size());
+        Assert.assertEquals("b", templates.get(0).metricName);
+    }
+
+    /**
+     * The bitmask enumeration must agree with the original chain of iterators in both content and order.
+     */
+    @Test
+    public void matchesLegacyEnumeration() {
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            StringBuilder spec = new StringBuilder();
+            int nameCount = 1 + random.nextInt(4);
+            for (int n = 0; n < nameCount; n++) {
+                spec.append("name").append(n).append(random.nextBoolean() ? "* " : " ");
+            }
+            int dimensionCount = 1 + random.nextInt(4);
+            for (int d = 0; d < dimensionCount; d++) {
+                spec.append("dim").append(d).append("=v").append(d).append(random.nextBoolean() ? "* " : " ");
+            }
+
+            List<String> expected = new LegacyDemuxedKey(spec.toString().trim()).permutations();
+            List<String> actual = new ArrayList<String>();
+            for (DemuxedKey.Template template : new DemuxedKey(spec.toString()).templates()) {
+                actual.add(template.metricName + " " + template.getDimensions());
+            }
+            Assert.assertEquals(spec.toString(), expected, actual);
+
+            // Counted up front, and truncated to the first and last of them.
+            DemuxedKey key = new DemuxedKey(spec.toString());
+            Assert.assertEquals(spec.toString(), actual.size(), key.permutationCount());
+            List<DemuxedKey.Template> truncated = key.truncatedTemplates();
+            Assert.assertEquals(spec.toString(), actual.get(0),
+                    truncated.get(0).metricName + " " + truncated.get(0).getDimensions());
+            Assert.assertEquals(spec.toString(), actual.get(actual.size() - 1),
+                    truncated.get(truncated.size() - 1).metricName + " "
+                            + truncated.get(truncated.size() - 1).getDimensions());
+            Assert.assertEquals(spec.toString(), Math.min(2, actual.size()), truncated.size());
+        }
+    }
+
+    /**
+     * The enumeration DemuxedKey used before it switched to bitmasks.
+     */
+    static class LegacyDemuxedKey {
+
+        final PermutableChain<String> nameChain;
+        final PermutableChain<Dimension> dimensionChain;
+
+        LegacyDemuxedKey(String s) {
+            String[] segments = s.split(Constants.NAME_TOKEN_DELIMITER_RGX);
+
+            PermutableChain<String> names = null;
+            PermutableChain<Dimension> dimensions = null;
+
+            for (int i = segments.length - 1; i >= 0; i--) {
+                String segment = segments[i];
+
+                boolean permutable = segment.endsWith(Constants.NAME_PERMUTE_MARKER);
+                if (permutable) {
+                    segment = segment.substring(0, segment.length() - 1);
+                }
+
+                if (segment.contains(Constants.NAME_DIMENSION_SEPARATOR)) {
+                    String[] dimensionParts = segment.split(Constants.NAME_DIMENSION_SEPARATOR, 2);
+                    Dimension dimension = new Dimension().withName(dimensionParts[0]).withValue(dimensionParts[1]);
+                    dimensions = new PermutableChain<Dimension>(dimension, permutable, dimensions);
+                } else {
+                    names = new PermutableChain<String>(segment, permutable, names);
+                }
+            }
+
+            this.nameChain = names;
+            this.dimensionChain = dimensions;
+        }
+
+        List<String> permutations() {
+            List<String> permutations = new ArrayList<String>();
+            for (Iterable<String> nameSet : nameChain) {
+                String name = StringUtils.join(nameSet, " ");
+                if (StringUtils.isBlank(name)) {
+                    continue;
+                }
+                for (Iterable<Dimension> dimensionSet : dimensionChain) {
+                    permutations.add(name + " " + Lists.newArrayList(dimensionSet));
+                }
+            }
+            return permutations;
+        }
+    }
+
+    static class PermutableChain<T> implements Iterable<Iterable<T>> {
+
+        final T token;
+        final boolean permutable;
+        final PermutableChain<T> nextSegment;
+
+        PermutableChain(T token, boolean permutable, PermutableChain<T> nextSegment) {
+            this.token = token;
+            this.permutable = permutable;
+            this.nextSegment = nextSegment;
+        }
+
+        @Override
+        public Iterator<Iterable<T>> iterator() {
+            return new Iterator<Iterable<T>>() {
+
+                int permutation = permutable ? 2 : 1;
+                Iterator<Iterable<T>> nextSegmentIt = nextSegment == null ? null : nextSegment.iterator();
+
+                @Override
+                public boolean hasNext() {
+                    boolean isTail = nextSegmentIt == null;
+                    if (isTail) {
+                        return permutation > 0;
+                    } else {
+                        return permutation > 0 && nextSegmentIt != null && nextSegmentIt.hasNext();
+                    }
+                }
+
+                @Override
+                public Iterable<T> next() {
+                    boolean isTail = nextSegmentIt == null;
+                    if (isTail) {
+                        if (permutation == 2) {
+                            permutation = 1;
+                            return Collections.emptyList();
+                        } else {
+                            permutation = 0;
+                            return ImmutableList.of(token);
+                        }
+                    } else {
+                        if (permutation == 2) {
+                            Iterable<T> next = nextSegmentIt.next();
+                            if (!nextSegmentIt.hasNext()) {
+                                permutation = 1;
+                                nextSegmentIt = nextSegment.iterator();
+                            }
+                            return next;
+                        } else {
+                            Iterable<T> next = Iterables.concat(ImmutableList.of(token), nextSegmentIt.next());
+                            if (!nextSegmentIt.hasNext()) {
+                                permutation = 0;
+                                nextSegmentIt = null;
+                            }
+                            return next;
+                        }
+                    }
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException("Nope.");
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,460 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.cloudwatch.AbstractAmazonCloudWatchAsync;
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataResult;
+import com.amazonaws.services.cloudwatch.model.StatisticSet;
+import com.amazonaws.services.cloudwatch.model.transform.PutMetricDataRequestMarshaller;
+import com.amazonaws.util.DateUtils;
+import com.amazonaws.util.SdkHttpUtils;
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.SettableFuture;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A stand-in for CloudWatch PutMetricData, with injected latency, throttling, server errors and payload limits, which
+ * records every datum it accepts. Use it in process as an {@link com.amazonaws.services.cloudwatch.AmazonCloudWatchAsync},
+ * or {@link #start()} it as a local HTTP endpoint speaking the query protocol to put a real SDK client in front of it.
+ * <p>
+ * Each request draws its fate in this order: rejected if over a payload limit (400 InvalidParameterValue, or 413
+ * for too many bytes), throttled (400 Throttling), failed (500 InternalFailure), or accepted. Randomness is seeded,
+ * though the order of concurrent requests is not.
+ */
+class FakeCloudWatch extends AbstractAmazonCloudWatchAsync implements Closeable {
+
+    private static final String XMLNS = "http://monitoring.amazonaws.com/doc/2010-08-01/";
+
+    private final Random random = new Random(42);
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+
+    private long minLatencyMillis = 0;
+    private long maxLatencyMillis = 0;
+    private double slowRate = 0.0;
+    private long slowLatencyMillis = 0;
+    private double throttleRate = 0.0;
+    private double serverErrorRate = 0.0;
+    private int maxRequestBytes = MetricDatumBatcher.DEFAULT_MAX_REQUEST_BYTES;
+    private int maxDatumsPerRequest = MetricDatumBatcher.DEFAULT_MAX_DATUMS_PER_REQUEST;
+
+    private final List<PutMetricDataRequest> accepted = new CopyOnWriteArrayList<PutMetricDataRequest>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger throttled = new AtomicInteger();
+    private final AtomicInteger serverErrors = new AtomicInteger();
+    private final AtomicInteger rejected = new AtomicInteger();
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+
+    /**
+     * @return this, answering each request after a latency drawn uniformly from [min, max]
+     */
+    FakeCloudWatch withLatencyMillis(long minLatencyMillis, long maxLatencyMillis) {
+        this.minLatencyMillis = minLatencyMillis;
+        this.maxLatencyMillis = maxLatencyMillis;
+        return this;
+    }
+
+    /**
+     * @return this, answering the given fraction of requests after slowLatencyMillis instead, for a latency tail
+     */
+    FakeCloudWatch withSlowCalls(double slowRate, long slowLatencyMillis) {
+        this.slowRate = slowRate;
+        this.slowLatencyMillis = slowLatencyMillis;
+        return this;
+    }
+
+    FakeCloudWatch withThrottleRate(double throttleRate) {
+        this.throttleRate = throttleRate;
+        return this;
+    }
+
+    FakeCloudWatch withServerErrorRate(double serverErrorRate) {
+        this.serverErrorRate = serverErrorRate;
+        return this;
+    }
+
+    FakeCloudWatch withMaxRequestBytes(int maxRequestBytes) {
+        this.maxRequestBytes = maxRequestBytes;
+        return this;
+    }
+
+    FakeCloudWatch withMaxDatumsPerRequest(int maxDatumsPerRequest) {
+        this.maxDatumsPerRequest = maxDatumsPerRequest;
+        return this;
+    }
+
+    @Override
+    public Future<PutMetricDataResult> putMetricDataAsync(PutMetricDataRequest request) {
+        return putMetricDataAsync(request, null);
+    }
+
+    @Override
+    public Future<PutMetricDataResult> putMetricDataAsync(final PutMetricDataRequest request,
+                                                          final AsyncHandler<PutMetricDataRequest, PutMetricDataResult> handler) {
+        final SettableFuture<PutMetricDataResult> future = SettableFuture.create();
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                AmazonServiceException error = accept(request, encodedBytes(request));
+                if (error == null) {
+                    PutMetricDataResult result = new PutMetricDataResult();
+                    future.set(result);
+                    if (handler != null) {
+                        handler.onSuccess(request, result);
+                    }
+                } else {
+                    future.setException(error);
+                    if (handler != null) {
+                        handler.onError(error);
+                    }
+                }
+            }
+        }, nextLatencyMillis(), TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+    /**
+     * Decides the fate of a request, recording its data if accepted.
+     *
+     * @return null if accepted, else the error to answer with
+     */
+    private AmazonServiceException accept(PutMetricDataRequest request, int requestBytes) {
+        requests.incrementAndGet();
+        String rejection = null;
+        if (request.getMetricData().size() > maxDatumsPerRequest) {
+            rejection = "The collection MetricData must not have a size greater than " + maxDatumsPerRequest + ".";
+        }
+        for (MetricDatum datum : request.getMetricData()) {
+            if (datum.getValues() != null && datum.getValues().size() > MetricDatumPacker.MAX_VALUES_PER_DATUM) {
+                rejection = "The collection Values must not have a size greater than "
+                        + MetricDatumPacker.MAX_VALUES_PER_DATUM + ".";
+            }
+        }
+        if (rejection != null) {
+            rejected.incrementAndGet();
+            return error("InvalidParameterValue", 400, rejection);
+        }
+        if (requestBytes > maxRequestBytes) {
+            rejected.incrementAndGet();
+            return error("RequestEntityTooLarge", 413, "Request size " + requestBytes + " exceeded "
+                    + maxRequestBytes + " bytes");
+        }
+
+        double fate;
+        synchronized (random) {
+            fate = random.nextDouble();
+        }
+        if (fate < throttleRate) {
+            throttled.incrementAndGet();
+            return error("Throttling", 400, "Rate exceeded");
+        }
+        if (fate < throttleRate + serverErrorRate) {
+            serverErrors.incrementAndGet();
+            return error("InternalFailure", 500, "Injected failure");
+        }
+        accepted.add(request);
+        return null;
+    }
+
+    private long nextLatencyMillis() {
+        synchronized (random) {
+            if (random.nextDouble() < slowRate) {
+                return slowLatencyMillis;
+            }
+            return minLatencyMillis + (long) (random.nextDouble() * (maxLatencyMillis - minLatencyMillis));
+        }
+    }
+
+    private static AmazonServiceException error(String code, int status, String message) {
+        AmazonServiceException e = new AmazonServiceException(message);
+        e.setErrorCode(code);
+        e.setStatusCode(status);
+        e.setErrorType(status >= 500 ? AmazonServiceException.ErrorType.Service : AmazonServiceException.ErrorType.Client);
+        e.setServiceName("AmazonCloudWatch");
+        return e;
+    }
+
+    private static int encodedBytes(PutMetricDataRequest request) {
+        return SdkHttpUtils.encodeParameters(new PutMetricDataRequestMarshaller().marshall(request))
+                .getBytes(Charsets.UTF_8).length;
+    }
+
+    /**
+     * Serves PutMetricData over HTTP on an ephemeral local port, until {@link #close()}.
+     *
+     * @return the endpoint, for an SDK client's endpoint configuration
+     */
+    synchronized URI start() throws IOException {
+        if (server == null) {
+            server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+            server.createContext("/", new QueryProtocolHandler());
+            serverExecutor = Executors.newCachedThreadPool();
+            server.setExecutor(serverExecutor);
+            server.start();
+        }
+        return URI.create("http://localhost:" + server.getAddress().getPort());
+    }
+
+    @Override
+    public synchronized void close() {
+        if (server != null) {
+            server.stop(0);
+            serverExecutor.shutdownNow();
+            server = null;
+        }
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * @return every request accepted so far
+     */
+    List<PutMetricDataRequest> acceptedRequests() {
+        return accepted;
+    }
+
+    /**
+     * @return every datum accepted so far, in order of acceptance
+     */
+    List<MetricDatum> data() {
+        List<MetricDatum> data = new ArrayList<MetricDatum>();
+        for (PutMetricDataRequest request : accepted) {
+            data.addAll(request.getMetricData());
+        }
+        return data;
+    }
+
+    /**
+     * @return sum of the single values of the datums of that name accepted so far
+     */
+    double sum(String metricName) {
+        double sum = 0;
+        for (MetricDatum datum : data()) {
+            if (metricName.equals(datum.getMetricName()) && datum.getValue() != null) {
+                sum += datum.getValue();
+            }
+        }
+        return sum;
+    }
+
+    int getRequests() {
+        return requests.get();
+    }
+
+    int getThrottled() {
+        return throttled.get();
+    }
+
+    int getServerErrors() {
+        return serverErrors.get();
+    }
+
+    int getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Parses form encoded PutMetricData, sleeps the latency, and answers as {@link #accept} decides, in XML.
+     */
+    private class QueryProtocolHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                byte[] body = ByteStreams.toByteArray(exchange.getRequestBody());
+                Map<String, String> params = decodeForm(new String(body, Charsets.UTF_8));
+                if (!"PutMetricData".equals(params.get("Action"))) {
+                    respond(exchange, 400, errorXml(error("InvalidAction", 400,
+                            "Unsupported action " + params.get("Action"))));
+                    return;
+                }
+
+                Thread.sleep(nextLatencyMillis());
+                AmazonServiceException error = accept(parse(params), body.length);
+                if (error == null) {
+                    respond(exchange, 200, "<PutMetricDataResponse xmlns=\"" + XMLNS + "\"><ResponseMetadata>"
+                            + "<RequestId>" + UUID.randomUUID() + "</RequestId>"
+                            + "</ResponseMetadata></PutMetricDataResponse>");
+                } else {
+                    respond(exchange, error.getStatusCode(), errorXml(error));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                respond(exchange, 503, errorXml(error("ServiceUnavailable", 503, "Shutting down")));
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private void respond(HttpExchange exchange, int status, String xml) throws IOException {
+            byte[] bytes = xml.getBytes(Charsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/xml");
+            exchange.sendResponseHeaders(status, bytes.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.close();
+        }
+
+        private String errorXml(AmazonServiceException error) {
+            return "<ErrorResponse xmlns=\"" + XMLNS + "\"><Error>"
+                    + "<Type>" + (error.getStatusCode() >= 500 ? "Receiver" : "Sender") + "</Type>"
+                    + "<Code>" + error.getErrorCode() + "</Code>"
+                    + "<Message>" + error.getErrorMessage() + "</Message>"
+                    + "</Error><RequestId>" + UUID.randomUUID() + "</RequestId></ErrorResponse>";
+        }
+    }
+
+    private static Map<String, String> decodeForm(String form) throws UnsupportedEncodingException {
+        Map<String, String> params = new LinkedHashMap<String, String>();
+        for (String pair : form.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int eq = pair.indexOf('=');
+            String name = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            params.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+        }
+        return params;
+    }
+
+    /**
+     * @return the request the parameters encode, e.g. MetricData.member.2.Dimensions.member.1.Name=machine
+     */
+    static PutMetricDataRequest parse(Map<String, String> params) {
+        Map<Integer, ParsedDatum> datums = new TreeMap<Integer, ParsedDatum>();
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            String[] path = param.getKey().split("\\.");
+            if (path.length < 4 || !"MetricData".equals(path[0])) {
+                continue;
+            }
+            Integer index = Integer.valueOf(path[2]);
+            ParsedDatum datum = datums.get(index);
+            if (datum == null) {
+                datum = new ParsedDatum();
+                datums.put(index, datum);
+            }
+            datum.set(path, param.getValue());
+        }
+
+        List<MetricDatum> data = new ArrayList<MetricDatum>(datums.size());
+        for (ParsedDatum datum : datums.values()) {
+            data.add(datum.build());
+        }
+        return new PutMetricDataRequest().withNamespace(params.get("Namespace")).withMetricData(data);
+    }
+
+    private static class ParsedDatum {
+
+        final MetricDatum datum = new MetricDatum();
+        final Map<Integer, Dimension> dimensions = new TreeMap<Integer, Dimension>();
+        final Map<Integer, Double> values = new TreeMap<Integer, Double>();
+        final Map<Integer, Double> counts = new TreeMap<Integer, Double>();
+        StatisticSet statistics;
+
+        /**
+         * @param path of the parameter name, MetricData.member.N.Field[.member.M[.Part]]
+         */
+        void set(String[] path, String value) {
+            String field = path[3];
+            if ("MetricName".equals(field)) {
+                datum.setMetricName(value);
+            } else if ("Value".equals(field)) {
+                datum.setValue(Double.valueOf(value));
+            } else if ("Unit".equals(field)) {
+                datum.setUnit(value);
+            } else if ("Timestamp".equals(field)) {
+                datum.setTimestamp(DateUtils.parseISO8601Date(value));
+            } else if ("StorageResolution".equals(field)) {
+                datum.setStorageResolution(Integer.valueOf(value));
+            } else if ("Dimensions".equals(field)) {
+                Integer index = Integer.valueOf(path[5]);
+                Dimension dimension = dimensions.get(index);
+                if (dimension == null) {
+                    dimension = new Dimension();
+                    dimensions.put(index, dimension);
+                }
+                if ("Name".equals(path[6])) {
+                    dimension.setName(value);
+                } else {
+                    dimension.setValue(value);
+                }
+            } else if ("Values".equals(field)) {
+                values.put(Integer.valueOf(path[5]), Double.valueOf(value));
+            } else if ("Counts".equals(field)) {
+                counts.put(Integer.valueOf(path[5]), Double.valueOf(value));
+            } else if ("StatisticValues".equals(field)) {
+                if (statistics == null) {
+                    statistics = new StatisticSet();
+                }
+                Double number = Double.valueOf(value);
+                if ("Sum".equals(path[4])) {
+                    statistics.setSum(number);
+                } else if ("SampleCount".equals(path[4])) {
+                    statistics.setSampleCount(number);
+                } else if ("Minimum".equals(path[4])) {
+                    statistics.setMinimum(number);
+                } else {
+                    statistics.setMaximum(number);
+                }
+            }
+        }
+
+        MetricDatum build() {
+            if (!dimensions.isEmpty()) {
+                datum.setDimensions(new ArrayList<Dimension>(dimensions.values()));
+            }
+            if (!values.isEmpty()) {
+                datum.setValues(new ArrayList<Double>(values.values()));
+            }
+            if (!counts.isEmpty()) {
+                datum.setCounts(new ArrayList<Double>(counts.values()));
+            }
+            datum.setStatisticValues(statistics);
+            return datum;
+        }
+    }
+}
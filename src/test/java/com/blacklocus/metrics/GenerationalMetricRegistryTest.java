@@ -0,0 +1,104 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.UniformReservoir;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class GenerationalMetricRegistryTest {
+
+    static final String TIMESTAMPED = "CounterName=Requests,machine=a StorageResolution=60,Timestamp=1000Unit=Count";
+
+    @Test
+    public void routesAndRecycles() {
+        GenerationalMetricRegistry registry = new GenerationalMetricRegistry();
+        Counter timestamped = registry.counter(TIMESTAMPED);
+        Counter stable = registry.counter("Uptime machine=a");
+
+        Assert.assertSame(stable, registry.stable().getCounters().get("Uptime machine=a"));
+        Assert.assertSame(timestamped, registry.swap().getCounters().get(TIMESTAMPED));
+
+        // The retired generation is not reallocated. Writers go to the other one until it retires in turn.
+        Assert.assertNotSame(timestamped, registry.counter(TIMESTAMPED));
+        registry.swap();
+        Assert.assertSame(timestamped, registry.counter(TIMESTAMPED));
+    }
+
+    @Test
+    public void drainLosesNothing() {
+        GenerationalMetricRegistry registry = new GenerationalMetricRegistry();
+        RecordingCloudWatch cloudWatch = new RecordingCloudWatch();
+        CloudWatchReporter reporter = new CloudWatchReporter(registry, "test", cloudWatch);
+
+        // A writer which keeps its reference across ticks, as if it raced the swap.
+        Counter straggler = registry.counter(TIMESTAMPED);
+        straggler.inc(3);
+        reporter.report();
+        straggler.inc(2);
+        registry.counter(TIMESTAMPED).inc(5);
+        reporter.report();
+        reporter.report();
+        Assert.assertEquals(10.0, cloudWatch.sum("Requests"), 0.0);
+
+        // Nothing happened for a whole cycle, so both generations are now clean.
+        reporter.report();
+        reporter.report();
+        Assert.assertTrue(registry.getNames().isEmpty());
+        Assert.assertEquals(10.0, cloudWatch.sum("Requests"), 0.0);
+    }
+
+    @Test
+    public void samplingsReportEachIntervalOnce() {
+        GenerationalMetricRegistry registry = new GenerationalMetricRegistry();
+        RecordingCloudWatch cloudWatch = new RecordingCloudWatch();
+        CloudWatchReporter reporter = new CloudWatchReporter(registry, "test", cloudWatch);
+        String timestamped = MetricKey.sampling().add("Sizes").withTimestamp(60000).build().getName();
+
+        registry.histogram("Latency").update(5);
+        registry.timer("Duration").update(3, TimeUnit.MILLISECONDS);
+        Histogram straggler = registry.histogram(timestamped);
+        straggler.update(7);
+        // Cumulative samples, which drain mode cannot report once each
+        registry.register("Cumulative", new Histogram(new UniformReservoir())).update(1);
+        for (int report = 0; report < 4; report++) {
+            reporter.report();
+            if (report == 0) {
+                straggler.update(7);
+            }
+        }
+
+        Assert.assertEquals(1.0, sampleCount(cloudWatch, "Latency"), 0.0);
+        Assert.assertEquals(1.0, sampleCount(cloudWatch, "Duration"), 0.0);
+        Assert.assertEquals(2.0, sampleCount(cloudWatch, "Sizes"), 0.0);
+        Assert.assertEquals(0.0, sampleCount(cloudWatch, "Cumulative"), 0.0);
+    }
+
+    private static double sampleCount(RecordingCloudWatch cloudWatch, String metricName) {
+        double sampleCount = 0;
+        for (MetricDatum datum : cloudWatch.data()) {
+            if (datum.getMetricName().equals(metricName)) {
+                sampleCount += datum.getStatisticValues().getSampleCount();
+            }
+        }
+        return sampleCount;
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.StatisticSet;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+public class IntervalStatsReservoirTest {
+
+    @Test
+    public void snapshotTakesTheInterval() {
+        IntervalStatsReservoir reservoir = new IntervalStatsReservoir();
+        reservoir.update(5);
+        reservoir.update(-2);
+        reservoir.update(9);
+        Assert.assertEquals(3, reservoir.size());
+
+        IntervalStatsReservoir.IntervalSnapshot snapshot = reservoir.getSnapshot();
+        Assert.assertEquals(3, snapshot.getCount());
+        Assert.assertEquals(12, snapshot.getSum());
+        Assert.assertEquals(-2, snapshot.getMin());
+        Assert.assertEquals(9, snapshot.getMax());
+        Assert.assertEquals(4.0, snapshot.getMean(), 0.0);
+
+        IntervalStatsReservoir.IntervalSnapshot empty = reservoir.getSnapshot();
+        Assert.assertEquals(0, empty.getCount());
+        Assert.assertEquals(0, empty.getMin());
+        Assert.assertEquals(0, empty.getMax());
+    }
+
+    @Test
+    public void everyUpdateLandsInOneSnapshot() throws InterruptedException {
+        final IntervalStatsReservoir reservoir = new IntervalStatsReservoir();
+        final CountDownLatch done = new CountDownLatch(8);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 1; i <= 50000; i++) {
+                        reservoir.update(i);
+                    }
+                    done.countDown();
+                }
+            };
+            writer.start();
+            threads.add(writer);
+        }
+
+        long count = 0;
+        long sum = 0;
+        long max = 0;
+        while (done.getCount() > 0) {
+            IntervalStatsReservoir.IntervalSnapshot snapshot = reservoir.getSnapshot();
+            count += snapshot.getCount();
+            sum += snapshot.getSum();
+            max = Math.max(max, snapshot.getMax());
+        }
+        for (Thread writer : threads) {
+            writer.join();
+        }
+        IntervalStatsReservoir.IntervalSnapshot last = reservoir.getSnapshot();
+        count += last.getCount();
+        sum += last.getSum();
+        max = Math.max(max, last.getMax());
+
+        Assert.assertEquals(8 * 50000, count);
+        Assert.assertEquals(8 * 50000L * 50001 / 2, sum);
+        Assert.assertEquals(50000, max);
+    }
+
+    @Test
+    public void reporterSendsIntervalStatistics() {
+        MetricRegistry registry = new MetricRegistry();
+        RecordingCloudWatch cloudWatch = new RecordingCloudWatch();
+        CloudWatchReporter reporter = new CloudWatchReporterBuilder()
+                .withNamespace("test").withRegistry(registry).withClient(cloudWatch).build();
+
+        Histogram histogram = registry.register("Sizes", new Histogram(new IntervalStatsReservoir()));
+        histogram.update(10);
+        histogram.update(30);
+        reporter.report();
+        registry.register("Sizes", histogram);
+        histogram.update(7);
+        reporter.report();
+
+        List<StatisticSet> sets = new ArrayList<StatisticSet>();
+        for (MetricDatum datum : cloudWatch.data()) {
+            if (datum.getStatisticValues() != null) {
+                sets.add(datum.getStatisticValues());
+            }
+        }
+        Assert.assertEquals(new StatisticSet().withSampleCount(2.0).withSum(40.0).withMinimum(10.0).withMaximum(30.0),
+                sets.get(0));
+        Assert.assertEquals(new StatisticSet().withSampleCount(1.0).withSum(7.0).withMinimum(7.0).withMaximum(7.0),
+                sets.get(sets.size() - 1));
+    }
+}
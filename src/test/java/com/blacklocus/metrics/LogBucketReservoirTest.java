@@ -0,0 +1,134 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+public class LogBucketReservoirTest {
+
+    @Test
+    public void quantilesWithinRelativeAccuracy() {
+        LogBucketReservoir reservoir = new LogBucketReservoir();
+        Random random = new Random(42);
+        long[] values = new long[100000];
+        for (int i = 0; i < values.length; i++) {
+            // Log-normal-ish latencies in nanos, a microsecond to a few seconds.
+            values[i] = (long) Math.exp(7 + 5 * random.nextDouble() + 3 * random.nextGaussian() / 4);
+            reservoir.update(values[i]);
+        }
+        Arrays.sort(values);
+
+        LogBucketReservoir.BucketSnapshot snapshot = reservoir.getSnapshot();
+        Assert.assertEquals(values.length, snapshot.getCount());
+        for (double quantile : new double[]{0.0, 0.5, 0.9, 0.99, 0.999, 1.0}) {
+            double exact = values[(int) (quantile * (values.length - 1))];
+            Assert.assertEquals("p" + quantile, exact, snapshot.getValue(quantile),
+                    exact * LogBucketReservoir.DEFAULT_RELATIVE_ACCURACY);
+        }
+        Assert.assertEquals(0, reservoir.getSnapshot().getCount());
+    }
+
+    @Test
+    public void nonPositiveValuesShareTheZeroBucket() {
+        LogBucketReservoir reservoir = new LogBucketReservoir();
+        reservoir.update(0);
+        reservoir.update(-5);
+        reservoir.update(1);
+        reservoir.update(Long.MAX_VALUE);
+
+        LogBucketReservoir.BucketSnapshot snapshot = reservoir.getSnapshot();
+        Assert.assertEquals(0.0, snapshot.getBucketValues()[0], 0.0);
+        Assert.assertEquals(2, snapshot.getBucketCounts()[0]);
+        Assert.assertEquals(1.0, snapshot.getBucketValues()[1], 0.01);
+        Assert.assertEquals(Long.MAX_VALUE, snapshot.getBucketValues()[2], Long.MAX_VALUE * 0.01);
+    }
+
+    @Test
+    public void rangesMoveBetweenIntervals() {
+        LogBucketReservoir reservoir = new LogBucketReservoir();
+        reservoir.update(1000);
+        reservoir.update(1000);
+        Assert.assertEquals(2, reservoir.size());
+        Assert.assertArrayEquals(new long[]{2}, reservoir.getSnapshot().getBucketCounts());
+
+        // The page of 1000 is empty for an interval, and let go.
+        reservoir.update(1000000000L);
+        LogBucketReservoir.BucketSnapshot far = reservoir.getSnapshot();
+        Assert.assertEquals(1, far.getCount());
+        Assert.assertEquals(1e9, far.getBucketValues()[0], 1e9 * LogBucketReservoir.DEFAULT_RELATIVE_ACCURACY);
+        Assert.assertEquals(0, reservoir.getSnapshot().getCount());
+
+        reservoir.update(1000);
+        reservoir.update(999);
+        LogBucketReservoir.BucketSnapshot back = reservoir.getSnapshot();
+        Assert.assertEquals(2, back.getCount());
+        Assert.assertEquals(1000.0, back.getMean(), 1000 * LogBucketReservoir.DEFAULT_RELATIVE_ACCURACY);
+    }
+
+    @Test
+    public void aggregateSeriesIsTheExactMerge() {
+        MetricRegistry registry = new MetricRegistry();
+        RecordingCloudWatch cloudWatch = new RecordingCloudWatch();
+        CloudWatchReporter reporter = new CloudWatchReporterBuilder()
+                .withNamespace("test").withRegistry(registry).withClient(cloudWatch).build();
+
+        Histogram a = registry.register("Latency machine=a*", new Histogram(new LogBucketReservoir()));
+        Histogram b = registry.register("Latency machine=b*", new Histogram(new LogBucketReservoir()));
+        LogBucketReservoir both = new LogBucketReservoir();
+        Random random = new Random(7);
+        for (int i = 0; i < 5000; i++) {
+            long value = 1 + random.nextInt(1000000);
+            (i % 3 == 0 ? a : b).update(value);
+            both.update(value);
+        }
+        reporter.report();
+
+        Map<Double, Double> merged = new TreeMap<Double, Double>();
+        for (MetricDatum datum : cloudWatch.data()) {
+            boolean aggregate = true;
+            for (Dimension dimension : datum.getDimensions()) {
+                aggregate &= !"machine".equals(dimension.getName());
+            }
+            if (!aggregate) {
+                continue;
+            }
+            Assert.assertTrue(datum.getValues().size() <= MetricDatumPacker.MAX_VALUES_PER_DATUM);
+            for (int i = 0; i < datum.getValues().size(); i++) {
+                Double sofar = merged.get(datum.getValues().get(i));
+                merged.put(datum.getValues().get(i), (sofar == null ? 0 : sofar) + datum.getCounts().get(i));
+            }
+        }
+
+        LogBucketReservoir.BucketSnapshot expected = both.getSnapshot();
+        Assert.assertEquals(expected.getBucketValues().length, merged.size());
+        int i = 0;
+        for (Map.Entry<Double, Double> bucket : merged.entrySet()) {
+            Assert.assertEquals(expected.getBucketValues()[i], bucket.getKey(), 0.0);
+            Assert.assertEquals(expected.getBucketCounts()[i], bucket.getValue(), 0.0);
+            i++;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
+import com.amazonaws.services.cloudwatch.model.StatisticSet;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+public class MetricDataSpoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    static PutMetricDataRequest request(String name, long timestamp) {
+        return new PutMetricDataRequest().withNamespace("ns").withMetricData(
+                new MetricDatum().withMetricName(name)
+                        .withDimensions(new Dimension().withName("machine").withValue("1.2.3.4"))
+                        .withValue(1.5).withUnit("Count").withTimestamp(new Date(timestamp)),
+                new MetricDatum().withMetricName(name + " Latency")
+                        .withStatisticValues(new StatisticSet().withSum(3.0).withSampleCount(2.0).withMinimum(1.0).withMaximum(2.0))
+                        .withStorageResolution(1).withTimestamp(new Date(timestamp)),
+                new MetricDatum().withMetricName(name + " Sizes")
+                        .withValues(1.0, 2.0).withCounts(3.0, 4.0).withTimestamp(new Date(timestamp)));
+    }
+
+    @Test
+    public void roundTripAcrossRestarts() throws IOException {
+        File dir = folder.newFolder();
+        long now = System.currentTimeMillis();
+
+        MetricDataSpool spool = new MetricDataSpool(dir, 1024 * 1024, 64 * 1024);
+        PutMetricDataRequest first = request("first", now);
+        Assert.assertTrue(spool.append(first));
+        Assert.assertTrue(spool.append(request("second", now)));
+        Assert.assertTrue(spool.append(request("third", now)));
+        MetricDataSpool.Spooled spooled = spool.peek();
+        Assert.assertEquals(first, spooled.request);
+        spool.ack(spooled);
+        spool.close();
+
+        spool = new MetricDataSpool(dir, 1024 * 1024, 64 * 1024);
+        spooled = spool.peek();
+        Assert.assertEquals(request("second", now), spooled.request);
+        spool.ack(spooled);
+        spooled = spool.peek();
+        Assert.assertEquals(request("third", now), spooled.request);
+        spool.ack(spooled);
+        Assert.assertNull(spool.peek());
+        Assert.assertTrue(spool.isEmpty());
+    }
+
+    @Test
+    public void boundedOnDisk() throws IOException {
+        File dir = folder.newFolder();
+        int segmentBytes = 2048;
+        MetricDataSpool spool = new MetricDataSpool(dir, 4 * segmentBytes, segmentBytes);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertTrue(spool.append(request("r" + i, now)));
+        }
+        Assert.assertEquals(4, spool.getSegmentCount());
+        Assert.assertEquals(4, dir.listFiles().length);
+        Assert.assertTrue(spool.getEvictedRequests() > 0);
+
+        // What is left is the newest, in order.
+        int previous = -1;
+        MetricDataSpool.Spooled spooled;
+        while ((spooled = spool.peek()) != null) {
+            int i = Integer.parseInt(spooled.request.getMetricData().get(0).getMetricName().substring(1));
+            Assert.assertEquals(previous == -1 ? i : previous + 1, i);
+            previous = i;
+            spool.ack(spooled);
+        }
+        Assert.assertEquals(999, previous);
+        Assert.assertTrue(spool.getSegmentCount() <= 1);
+        // Emptied for reuse rather than deleted.
+        Assert.assertEquals(4, dir.listFiles().length);
+    }
+
+    @Test
+    public void reusedSegmentsKeepTheirOrderAcrossRestarts() throws IOException {
+        File dir = folder.newFolder();
+        int segmentBytes = 2048;
+        MetricDataSpool spool = new MetricDataSpool(dir, 4 * segmentBytes, segmentBytes);
+        long now = System.currentTimeMillis();
+        int appended = 0;
+        // Fill, drain and fill again, so that the newest data is in the files created first.
+        for (; appended < 20; appended++) {
+            spool.append(request("r" + appended, now));
+        }
+        MetricDataSpool.Spooled spooled;
+        while ((spooled = spool.peek()) != null) {
+            spool.ack(spooled);
+        }
+        int files = dir.listFiles().length;
+        Assert.assertTrue(files > 1);
+        for (; appended < 40; appended++) {
+            spool.append(request("r" + appended, now));
+        }
+        Assert.assertEquals(files, dir.listFiles().length);
+        spool.close();
+
+        spool = new MetricDataSpool(dir, 4 * segmentBytes, segmentBytes);
+        int expected = 20;
+        while ((spooled = spool.peek()) != null) {
+            Assert.assertEquals("r" + expected, spooled.request.getMetricData().get(0).getMetricName());
+            expected++;
+            spool.ack(spooled);
+        }
+        Assert.assertEquals(40, expected);
+        Assert.assertEquals(files, dir.listFiles().length);
+    }
+
+    @Test
+    public void dropsDataBeyondAcceptedWindow() throws IOException {
+        MetricDataSpool spool = new MetricDataSpool(folder.newFolder(), 1024 * 1024, 64 * 1024);
+        long now = System.currentTimeMillis();
+        spool.append(request("ancient", now - TimeUnit.DAYS.toMillis(15)));
+        spool.append(new PutMetricDataRequest().withNamespace("ns").withMetricData(
+                new MetricDatum().withMetricName("old").withValue(1.0)
+                        .withTimestamp(new Date(now - TimeUnit.DAYS.toMillis(15))),
+                new MetricDatum().withMetricName("unstamped").withValue(2.0)));
+
+        MetricDataSpool.Spooled spooled = spool.peek();
+        Assert.assertEquals(1, spooled.request.getMetricData().size());
+        MetricDatum unstamped = spooled.request.getMetricData().get(0);
+        Assert.assertEquals("unstamped", unstamped.getMetricName());
+        Assert.assertTrue(unstamped.getTimestamp().getTime() >= now);
+    }
+
+    @Test
+    public void submitterSpoolsAndReplays() throws IOException, InterruptedException {
+        AmazonServiceException throttled = CloudWatchSubmitterTest.serviceException("Throttling", 400);
+        CloudWatchSubmitterTest.FailingCloudWatch cloudWatch =
+                new CloudWatchSubmitterTest.FailingCloudWatch(throttled, throttled);
+        MetricDataSpool spool = new MetricDataSpool(folder.newFolder(), 1024 * 1024, 64 * 1024);
+        CloudWatchSubmitter submitter = new CloudWatchSubmitter(cloudWatch, 1, 10,
+                CloudWatchSubmitter.OverflowPolicy.DROP_NEWEST, 0, RetryPolicy.none(), null).withSpool(spool);
+
+        long now = System.currentTimeMillis();
+        submitter.submit(request("a", now));
+        submitter.submit(request("b", now));
+        Assert.assertTrue(submitter.awaitIdle(5, TimeUnit.SECONDS));
+        Assert.assertEquals(2, spool.getSpooledRequests());
+        Assert.assertEquals(0, submitter.getFailedRequests());
+
+        submitter.submit(request("c", now));
+        Assert.assertTrue(submitter.awaitIdle(5, TimeUnit.SECONDS));
+        Assert.assertTrue(spool.isEmpty());
+        Assert.assertEquals(5, cloudWatch.requests.size());
+        Assert.assertEquals("c", cloudWatch.requests.get(2).getMetricData().get(0).getMetricName());
+        Assert.assertEquals(request("a", now), cloudWatch.requests.get(3));
+        Assert.assertEquals(request("b", now), cloudWatch.requests.get(4));
+    }
+}
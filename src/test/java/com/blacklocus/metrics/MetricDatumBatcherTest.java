@@ -0,0 +1,92 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.Request;
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
+import com.amazonaws.services.cloudwatch.model.StatisticSet;
+import com.amazonaws.services.cloudwatch.model.transform.PutMetricDataRequestMarshaller;
+import com.amazonaws.util.SdkHttpUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+public class MetricDatumBatcherTest {
+
+    static MetricDatum datum(int i) {
+        return new MetricDatum()
+                .withMetricName("Requests Per Host " + i)
+                .withDimensions(new Dimension().withName("machine").withValue("10.0.0." + i),
+                        new Dimension().withName("status").withValue("200"))
+                .withValue(Math.PI * i)
+                .withUnit("Count")
+                .withStorageResolution(60)
+                .withTimestamp(new Date());
+    }
+
+    @Test
+    public void datumLimit() {
+        List<MetricDatum> data = new ArrayList<MetricDatum>();
+        for (int i = 0; i < 45; i++) {
+            data.add(datum(i));
+        }
+        List<List<MetricDatum>> batches = new MetricDatumBatcher(20, Integer.MAX_VALUE).batch("ns", data);
+        Assert.assertEquals(3, batches.size());
+        Assert.assertEquals(20, batches.get(0).size());
+        Assert.assertEquals(5, batches.get(2).size());
+        Assert.assertSame(data.get(20), batches.get(1).get(0));
+    }
+
+    @Test
+    public void byteLimit() {
+        List<MetricDatum> data = new ArrayList<MetricDatum>();
+        for (int i = 0; i < 1000; i++) {
+            data.add(datum(i));
+        }
+        int maxBytes = 40 * 1000;
+        for (List<MetricDatum> batch : new MetricDatumBatcher(1000, maxBytes).batch("ns", data)) {
+            Assert.assertTrue(batch.size() > 1);
+            Assert.assertTrue(marshalledBytes("ns", batch) <= maxBytes);
+        }
+    }
+
+    @Test
+    public void estimateIsNotLow() {
+        List<MetricDatum> data = new ArrayList<MetricDatum>();
+        data.add(datum(1));
+        data.add(new MetricDatum().withMetricName("Latency \u00fcn\u00efcode")
+                .withStatisticValues(new StatisticSet().withSum(1.0 / 3).withSampleCount(3.0).withMinimum(0.1).withMaximum(0.2)));
+        data.add(new MetricDatum().withMetricName("Latency").withValues(0.125, 1e-17, 12345.6789).withCounts(1.0, 2.0, 3.0));
+        int estimate = MetricDatumBatcher.estimateRequestBytes("ns");
+        for (MetricDatum datum : data) {
+            estimate += MetricDatumBatcher.estimateBytes(datum);
+        }
+        Assert.assertTrue(estimate >= marshalledBytes("ns", data));
+    }
+
+    static int marshalledBytes(String namespace, List<MetricDatum> data) {
+        Request<PutMetricDataRequest> request = new PutMetricDataRequestMarshaller().marshall(
+                new PutMetricDataRequest().withNamespace(namespace).withMetricData(data));
+        String body = SdkHttpUtils.encodeParameters(request);
+        return body.length();
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.StatisticSet;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+public class MetricDatumPackerTest {
+
+    static MetricDatum datum(String name, long timestamp) {
+        return new MetricDatum()
+                .withMetricName(name)
+                .withDimensions(new Dimension().withName("machine").withValue("a"))
+                .withStorageResolution(60)
+                .withTimestamp(new Date(timestamp));
+    }
+
+    @Test
+    public void valuesOfOneBucket() {
+        List<MetricDatum> data = Arrays.asList(
+                datum("Latency", 60000).withValue(5.0),
+                datum("Latency", 61000).withValue(7.0),
+                datum("Latency", 62000).withValue(5.0),
+                datum("Latency", 120000).withValue(9.0),
+                datum("Other", 60000).withValue(1.0)
+        );
+        List<MetricDatum> packed = MetricDatumPacker.pack(data);
+        Assert.assertEquals(3, packed.size());
+
+        MetricDatum first = packed.get(0);
+        Assert.assertNull(first.getValue());
+        Assert.assertEquals(Arrays.asList(5.0, 7.0), first.getValues());
+        Assert.assertEquals(Arrays.asList(2.0, 1.0), first.getCounts());
+        Assert.assertEquals(new Date(60000), first.getTimestamp());
+        Assert.assertEquals(1, first.getDimensions().size());
+
+        Assert.assertSame(data.get(3), packed.get(1));
+        Assert.assertSame(data.get(4), packed.get(2));
+    }
+
+    @Test
+    public void splitsAtValueLimit() {
+        List<MetricDatum> data = new ArrayList<MetricDatum>();
+        for (int i = 0; i < 400; i++) {
+            data.add(datum("Latency", 60000).withValue((double) i));
+        }
+        List<MetricDatum> packed = MetricDatumPacker.pack(data);
+        Assert.assertEquals(3, packed.size());
+        Assert.assertEquals(150, packed.get(0).getValues().size());
+        Assert.assertEquals(150, packed.get(1).getValues().size());
+        Assert.assertEquals(100, packed.get(2).getValues().size());
+    }
+
+    @Test
+    public void mergesStatisticSets() {
+        List<MetricDatum> packed = MetricDatumPacker.pack(Arrays.asList(
+                datum("Latency", 60000).withStatisticValues(
+                        new StatisticSet().withSum(10.0).withSampleCount(2.0).withMinimum(4.0).withMaximum(6.0)),
+                datum("Latency", 60000).withStatisticValues(
+                        new StatisticSet().withSum(3.0).withSampleCount(1.0).withMinimum(3.0).withMaximum(3.0))
+        ));
+        Assert.assertEquals(1, packed.size());
+        Assert.assertEquals(new StatisticSet().withSum(13.0).withSampleCount(3.0).withMinimum(3.0).withMaximum(6.0),
+                packed.get(0).getStatisticValues());
+    }
+}
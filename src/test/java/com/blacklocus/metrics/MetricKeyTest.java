@@ -0,0 +1,136 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.amazonaws.services.cloudwatch.model.StandardUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MetricKeyTest {
+
+    @Test
+    public void interned() {
+        MetricKey key = MetricKey.counter()
+                .add("ServiceX Requests machine=1.2.3.4*")
+                .withStorageResolution(60)
+                .withTimestamp(1500000000000L)
+                .withUnit(StandardUnit.Count)
+                .build();
+        Assert.assertEquals("CounterName=ServiceX Requests,machine=1.2.3.4* StorageResolution=60,Timestamp=1500000000000Unit=Count",
+                key.getName());
+        Assert.assertSame(key, MetricKey.forCounter(key.getName()));
+        Assert.assertSame(key, MetricKey.counter().addNameToken("ServiceX").addNameToken("Requests")
+                .addDimension("machine", "1.2.3.4", true).withStorageResolution(60).withTimestamp(1500000000000L)
+                .withUnit(StandardUnit.Count).build());
+    }
+
+    @Test
+    public void legacyEncodings() {
+        MetricKey counter = MetricKey.parseCounter("CounterName=Requests tag*,machine=a* StorageResolution=1,Timestamp=42Unit=Count");
+        Assert.assertEquals(2, counter.getNameTokenCount());
+        Assert.assertEquals("tag", counter.getNameToken(1));
+        Assert.assertTrue(counter.isNameTokenPermutable(1));
+        Assert.assertEquals("machine", counter.getDimensionName(0));
+        Assert.assertEquals("a", counter.getDimensionValue(0));
+        Assert.assertTrue(counter.isDimensionPermutable(0));
+        Assert.assertEquals(Integer.valueOf(1), counter.getStorageResolution());
+        Assert.assertEquals(Long.valueOf(42L), counter.getTimestamp());
+        Assert.assertEquals("Count", counter.getUnit());
+
+        MetricKey sampling = MetricKey.parseSampling("SamplingName=Latency,op=get StorageResolution=60,Timestamp=42Unit=Milliseconds");
+        Assert.assertEquals("Latency", sampling.getNameToken(0));
+        Assert.assertEquals("get", sampling.getDimensionValue(0));
+        Assert.assertEquals("Milliseconds", sampling.getUnit());
+
+        MetricKey gauge = MetricKey.parseGauge("Queue Depth queue=jobs StorageResolution=60Timestamp=42");
+        Assert.assertEquals(2, gauge.getNameTokenCount());
+        Assert.assertEquals("jobs", gauge.getDimensionValue(0));
+        Assert.assertEquals(Integer.valueOf(60), gauge.getStorageResolution());
+        Assert.assertEquals(Long.valueOf(42L), gauge.getTimestamp());
+
+        Assert.assertNull(MetricKey.parseCounter("CounterName=null,StorageResolution=60,Timestamp=42Unit=Count"));
+        Assert.assertNull(MetricKey.parseGauge("Broken StorageResolution=sixty"));
+    }
+
+    @Test
+    public void roundTrip() {
+        MetricKey[] keys = {
+                MetricKey.counter().add("A b* c=d").build(),
+                MetricKey.sampling().add("A c=d* e=f").withStorageResolution(1).withUnit(StandardUnit.Milliseconds).build(),
+                MetricKey.gauge().add("A c=d").withStorageResolution(60).withTimestamp(7L).build(),
+                MetricKey.gauge().add("A").withUnit(StandardUnit.Bytes).build(),
+        };
+        for (MetricKey key : keys) {
+            MetricKey parsed;
+            switch (key.getKind()) {
+                case COUNTER:
+                    parsed = MetricKey.parseCounter(key.getName());
+                    break;
+                case SAMPLING:
+                    parsed = MetricKey.parseSampling(key.getName());
+                    break;
+                default:
+                    parsed = MetricKey.parseGauge(key.getName());
+            }
+            Assert.assertNotSame(key, parsed);
+            Assert.assertEquals(key, parsed);
+            Assert.assertEquals(key.getStorageResolution(), parsed.getStorageResolution());
+            Assert.assertEquals(key.getTimestamp(), parsed.getTimestamp());
+            Assert.assertEquals(key.getUnit(), parsed.getUnit());
+        }
+    }
+
+    @Test
+    public void plainSpec() {
+        MetricKey key = MetricKey.forCounter("ServiceX  Requests machine=1.2.3.4*");
+        Assert.assertEquals(2, key.getNameTokenCount());
+        Assert.assertEquals(1, key.getDimensionCount());
+        Assert.assertNull(key.getStorageResolution());
+        Assert.assertNull(key.getTimestamp());
+    }
+
+    @Test(expected = MetricNameBuilder.MetricsNameSyntaxException.class)
+    public void rejectsSeparator() {
+        MetricKey.counter().addDimension("a", "b,c");
+    }
+
+    @Test
+    public void highResolution() {
+        Assert.assertTrue(MetricKey.isHighResolution(MetricKey.counter().add("Requests")
+                .withStorageResolution(1).build().getName()));
+        Assert.assertTrue(MetricKey.isHighResolution("Latency StorageResolution=10Timestamp=42"));
+        Assert.assertFalse(MetricKey.isHighResolution(MetricKey.counter().add("Requests")
+                .withStorageResolution(60).build().getName()));
+        Assert.assertFalse(MetricKey.isHighResolution("Requests machine=a*"));
+        Assert.assertFalse(MetricKey.isHighResolution("Requests StorageResolution=,Unit=Count"));
+        Assert.assertFalse(MetricKey.isHighResolution("Requests StorageResolution=600"));
+    }
+
+    @Test
+    public void timestampIsReadAndStripped() {
+        MetricKey.Builder builder = MetricKey.counter().add("Requests machine=a*").withStorageResolution(60);
+        String untimed = builder.build().getName();
+        String timed = builder.withTimestamp(1500000000000L).build().getName();
+        Assert.assertEquals(untimed, MetricKey.withoutTimestamp(timed));
+        Assert.assertEquals(Long.valueOf(1500000000000L), MetricKey.timestampOf(timed));
+        Assert.assertNull(MetricKey.timestampOf(untimed));
+
+        Assert.assertEquals("Latency StorageResolution=10", MetricKey.withoutTimestamp("Latency StorageResolution=10Timestamp=42"));
+        Assert.assertEquals(Long.valueOf(42L), MetricKey.timestampOf("Latency StorageResolution=10Timestamp=42"));
+        Assert.assertEquals("Requests Timestamp=42", MetricKey.withoutTimestamp("Requests Timestamp=42"));
+        Assert.assertNull(MetricKey.timestampOf("Requests Timestamp=42"));
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.blacklocus.metrics.MetricNameBuilder.MetricsNameSyntaxException;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MetricNameTemplateTest {
+
+    @Test
+    public void bindsTheNameSyntax() {
+        MetricRegistry registry = new MetricRegistry();
+        MetricNameTemplate<Counter> requests =
+                MetricNameTemplate.counter(registry, "ServiceX Requests env=prod", "machine*", "status");
+
+        Counter counter = requests.bind("1.2.3.4", "200");
+        Assert.assertEquals("ServiceX Requests env=prod machine=1.2.3.4* status=200", requests.name("1.2.3.4", "200"));
+        Assert.assertSame(registry.counter("ServiceX Requests env=prod machine=1.2.3.4* status=200"), counter);
+        Assert.assertSame(counter, requests.bind("1.2.3.4", "200"));
+        Assert.assertSame(counter, requests.bind(new String[]{"1.2.3.4", "200"}));
+        Assert.assertNotSame(counter, requests.bind("1.2.3.4", "500"));
+        Assert.assertEquals(2, new DemuxedKey(requests.name("1.2.3.4", "200")).templates().size());
+
+        MetricNameTemplate<Timer> latency = MetricNameTemplate.timer(registry, "Latency");
+        Assert.assertSame(registry.timer("Latency"), latency.bind());
+        Assert.assertSame(latency.bind(), latency.bind());
+    }
+
+    @Test
+    public void validates() {
+        MetricRegistry registry = new MetricRegistry();
+        MetricNameTemplate<Counter> requests = MetricNameTemplate.counter(registry, "Requests", "path");
+        try {
+            requests.bind("/a b");
+            Assert.fail();
+        } catch (MetricsNameSyntaxException expected) {
+        }
+        try {
+            requests.bind("a", "b");
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            MetricNameTemplate.counter(registry, "Requests", "pa=th");
+            Assert.fail();
+        } catch (MetricsNameSyntaxException expected) {
+        }
+        Assert.assertTrue(registry.getNames().isEmpty());
+    }
+
+    @Test
+    public void forgetsRemovedMetrics() {
+        MetricRegistry registry = new MetricRegistry();
+        MetricNameTemplate<Counter> requests = MetricNameTemplate.counter(registry, "Requests", "path");
+        Counter before = requests.bind("/a");
+        requests.bind("/b");
+
+        // As a CloudWatchReporter does after each report of a plain MetricRegistry.
+        registry.removeMatching(MetricFilter.ALL);
+        Counter after = requests.bind("/a");
+        Assert.assertNotSame(before, after);
+        Assert.assertSame(registry.counter("Requests path=/a"), after);
+    }
+
+    @Test
+    public void bindsBeyondTheCacheThroughTheRegistry() {
+        MetricRegistry registry = new MetricRegistry();
+        MetricNameTemplate<Counter> requests = new MetricNameTemplate<Counter>(
+                registry, MetricNameTemplate.COUNTER, "Requests", new String[]{"path"}, 2);
+        for (int i = 0; i < 10; i++) {
+            requests.bind("/p" + i).inc();
+            requests.bind("/p" + i).inc();
+        }
+        Assert.assertEquals(10, registry.getCounters().size());
+        Assert.assertEquals(2, registry.counter("Requests path=/p9").getCount());
+    }
+}
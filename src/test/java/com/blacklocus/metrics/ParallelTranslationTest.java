@@ -0,0 +1,160 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class ParallelTranslationTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void shutdown() throws InterruptedException {
+        executor.shutdownNow();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void matchesSequentialTranslation() {
+        MetricRegistry sequentialRegistry = new MetricRegistry();
+        RecordingCloudWatch sequential = new RecordingCloudWatch();
+        CloudWatchReporter sequentialReporter = new CloudWatchReporterBuilder()
+                .withNamespace("test").withRegistry(sequentialRegistry).withClient(sequential).build();
+
+        MetricRegistry parallelRegistry = new MetricRegistry();
+        RecordingCloudWatch parallel = new RecordingCloudWatch();
+        CloudWatchReporter parallelReporter = new CloudWatchReporterBuilder()
+                .withNamespace("test").withRegistry(parallelRegistry).withClient(parallel)
+                .withTranslationExecutor(executor).withTranslationChunkSize(7).build();
+
+        // Several reports, so that counter diffs against the last polled counts are exercised too.
+        for (int report = 1; report <= 3; report++) {
+            populate(sequentialRegistry, report);
+            populate(parallelRegistry, report);
+            sequentialReporter.report();
+            parallelReporter.report();
+        }
+
+        Assert.assertFalse(sequential.data().isEmpty());
+        Assert.assertEquals(sequential.data(), parallel.data());
+    }
+
+    @Test
+    public void cutsTheSamePermutationsOverTheReportBudget() {
+        // One thread taking the latest chunk first, once all are queued, so that chunks translate out of order.
+        ExecutorService lifo = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingDeque<Runnable>() {
+                    @Override
+                    public boolean offer(Runnable runnable) {
+                        return offerFirst(runnable);
+                    }
+                }) {
+            @Override
+            protected void beforeExecute(Thread thread, Runnable runnable) {
+                Uninterruptibles.sleepUninterruptibly(getQueue().isEmpty() ? 20 : 0, TimeUnit.MILLISECONDS);
+            }
+        };
+        MetricRegistry sequentialRegistry = new MetricRegistry();
+        RecordingCloudWatch sequential = new RecordingCloudWatch();
+        CloudWatchReporter sequentialReporter = new CloudWatchReporterBuilder()
+                .withNamespace("test").withRegistry(sequentialRegistry).withClient(sequential)
+                .withMaxPermutedDatumsPerReport(260).build();
+
+        MetricRegistry parallelRegistry = new MetricRegistry();
+        RecordingCloudWatch parallel = new RecordingCloudWatch();
+        CloudWatchReporter parallelReporter = new CloudWatchReporterBuilder()
+                .withNamespace("test").withRegistry(parallelRegistry).withClient(parallel)
+                .withMaxPermutedDatumsPerReport(260)
+                .withTranslationExecutor(lifo).withTranslationChunkSize(7).build();
+
+        for (int report = 1; report <= 3; report++) {
+            populate(sequentialRegistry, report);
+            populate(parallelRegistry, report);
+            for (int i = 0; i < 20; i++) {
+                // Eight permutations each, truncated to two over the budget. Within it only if translated before
+                // the meters and timers.
+                sequentialRegistry.counter("Wide a=a" + i + "* b=b* c=c*").inc(report);
+                parallelRegistry.counter("Wide a=a" + i + "* b=b* c=c*").inc(report);
+            }
+            sequentialReporter.report();
+            parallelReporter.report();
+        }
+        lifo.shutdown();
+
+        Assert.assertTrue(sequentialReporter.getMetrics().getRegistry()
+                .meter("PermutationsLimited budget=report").getCount() > 0);
+        Assert.assertEquals(sequential.data(), parallel.data());
+    }
+
+    @Test
+    public void keepsTheChunksWhichTranslatedWhenOneFails() {
+        MetricRegistry registry = new MetricRegistry();
+        RecordingCloudWatch cloudWatch = new RecordingCloudWatch();
+        CloudWatchReporter reporter = new CloudWatchReporterBuilder()
+                .withNamespace("test").withRegistry(registry).withClient(cloudWatch)
+                .withTranslationExecutor(executor).withTranslationChunkSize(5).build();
+
+        registry.register("Broken", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                throw new IllegalStateException("broken");
+            }
+        });
+        populate(registry, 1);
+        reporter.report();
+
+        // The counters' deltas were consumed, so they must have been reported.
+        Assert.assertEquals(2.0 * 50 * 49 / 2, cloudWatch.sum("Requests"), 0.0);
+        Assert.assertEquals(1, reporter.getMetrics().getRegistry().meter("Errors stage=translate").getCount());
+    }
+
+    @Test
+    public void translatesOnTheReporterWhenRejected() {
+        executor.shutdown();
+        MetricRegistry registry = new MetricRegistry();
+        RecordingCloudWatch cloudWatch = new RecordingCloudWatch();
+        CloudWatchReporter reporter = new CloudWatchReporterBuilder()
+                .withNamespace("test").withRegistry(registry).withClient(cloudWatch)
+                .withTranslationExecutor(executor).withTranslationChunkSize(2).build();
+
+        populate(registry, 1);
+        reporter.report();
+
+        // Once with the machine dimension and once without.
+        Assert.assertEquals(2.0 * 50 * 49 / 2, cloudWatch.sum("Requests"), 0.0);
+    }
+
+    private static void populate(MetricRegistry registry, int report) {
+        for (int i = 0; i < 50; i++) {
+            registry.counter("Requests machine=m" + (i % 5) + "* path=p" + i).inc(i * report);
+            registry.register("Depth queue=q" + i, new LongGauge(i + report));
+            registry.meter("Marks group=g" + i + "*").mark(i);
+            registry.timer("Latency path=p" + i + "*").update(i + report, TimeUnit.MILLISECONDS);
+            registry.histogram("Sizes path=p" + i).update(i * report);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class PutMetricDataRateLimiterTest {
+
+    @Test
+    public void burstThenSustainedRate() {
+        PutMetricDataRateLimiter limiter = new PutMetricDataRateLimiter(10, 3);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(0, limiter.reserve());
+        }
+        long fourth = limiter.reserve();
+        long fifth = limiter.reserve();
+        Assert.assertTrue(fourth > TimeUnit.MILLISECONDS.toNanos(50) && fourth <= TimeUnit.MILLISECONDS.toNanos(100));
+        Assert.assertTrue(fifth - fourth > TimeUnit.MILLISECONDS.toNanos(90));
+        Assert.assertEquals(2, limiter.getDelayedRequests());
+        Assert.assertEquals(5, limiter.getDelays().getCount());
+    }
+
+    @Test
+    public void sharedAcrossThreads() throws InterruptedException {
+        final PutMetricDataRateLimiter limiter = new PutMetricDataRateLimiter(1000, 1);
+        final List<Long> delays = Collections.synchronizedList(new ArrayList<Long>());
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < 250; i++) {
+                        delays.add(limiter.reserve());
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+
+        // 1000 reservations at 1000/s span about a second, however fast they were made.
+        long latest = elapsed + Collections.max(delays);
+        Assert.assertTrue(latest >= TimeUnit.MILLISECONDS.toNanos(990));
+    }
+
+    @Test
+    public void submitterWaitsAsynchronously() throws InterruptedException {
+        CloudWatchSubmitterTest.FailingCloudWatch cloudWatch = new CloudWatchSubmitterTest.FailingCloudWatch();
+        CloudWatchSubmitter submitter = new CloudWatchSubmitter(cloudWatch, 10, 10,
+                CloudWatchSubmitter.OverflowPolicy.DROP_NEWEST, 0, RetryPolicy.none(), null)
+                .withRateLimiter(new PutMetricDataRateLimiter(20, 1));
+
+        long begin = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            submitter.submit(new PutMetricDataRequest().withNamespace("ns")
+                    .withMetricData(new MetricDatum().withMetricName("m" + i)));
+        }
+        // Handing over did not wait out the limit...
+        Assert.assertTrue(System.nanoTime() - begin < TimeUnit.MILLISECONDS.toNanos(50));
+        Assert.assertEquals(1, cloudWatch.requests.size());
+
+        // ...but sending did.
+        Assert.assertTrue(submitter.awaitIdle(5, TimeUnit.SECONDS));
+        Assert.assertTrue(System.nanoTime() - begin >= TimeUnit.MILLISECONDS.toNanos(90));
+        Assert.assertEquals(3, cloudWatch.requests.size());
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.cloudwatch.AbstractAmazonCloudWatchAsync;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataResult;
+import com.google.common.util.concurrent.Futures;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+
+/**
+ * Accepts and records every PutMetricData request, completing immediately.
+ */
+class RecordingCloudWatch extends AbstractAmazonCloudWatchAsync {
+
+    final List<PutMetricDataRequest> requests = new CopyOnWriteArrayList<PutMetricDataRequest>();
+
+    @Override
+    public Future<PutMetricDataResult> putMetricDataAsync(PutMetricDataRequest request) {
+        return putMetricDataAsync(request, null);
+    }
+
+    @Override
+    public Future<PutMetricDataResult> putMetricDataAsync(PutMetricDataRequest request,
+                                                          AsyncHandler<PutMetricDataRequest, PutMetricDataResult> handler) {
+        requests.add(request);
+        PutMetricDataResult result = new PutMetricDataResult();
+        if (handler != null) {
+            handler.onSuccess(request, result);
+        }
+        return Futures.immediateFuture(result);
+    }
+
+    List<MetricDatum> data() {
+        List<MetricDatum> data = new ArrayList<MetricDatum>();
+        for (PutMetricDataRequest request : requests) {
+            data.addAll(request.getMetricData());
+        }
+        return data;
+    }
+
+    double sum(String metricName) {
+        double sum = 0;
+        for (MetricDatum datum : data()) {
+            if (metricName.equals(datum.getMetricName())) {
+                sum += datum.getValue();
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright 2013-2016 BlackLocus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blacklocus.metrics;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SeriesCountStoreTest {
+
+    @Test
+    public void swapGetRemove() {
+        SeriesCountStore store = new SeriesCountStore();
+        Counter counter = new Counter();
+        Counter recreated = new Counter();
+
+        Assert.assertEquals(0, store.swap("Requests", counter, 5));
+        Assert.assertEquals(5, store.swap("Requests", counter, 8));
+        Assert.assertEquals(8, store.get("Requests", counter));
+        // Same name, different object: starts over.
+        Assert.assertEquals(0, store.get("Requests", recreated));
+
+        store.remove("Requests", counter);
+        Assert.assertEquals(0, store.get("Requests", counter));
+        store.expire();
+        Assert.assertEquals(0, store.size());
+    }
+
+    @Test
+    public void idleEntriesExpire() {
+        SeriesCountStore store = new SeriesCountStore(2);
+        Counter busy = new Counter();
+        Counter idle = new Counter();
+        store.swap("busy", busy, 1);
+        store.swap("idle", idle, 1);
+
+        store.expire();
+        store.swap("busy", busy, 2);
+        store.expire();
+        Assert.assertEquals(1, store.get("idle", idle));
+        store.swap("busy", busy, 3);
+        store.expire();
+        Assert.assertEquals(0, store.get("idle", idle));
+        Assert.assertEquals(3, store.get("busy", busy));
+        Assert.assertEquals(1, store.size());
+    }
+
+    @Test
+    public void staysBoundedUnderChurn() {
+        SeriesCountStore store = new SeriesCountStore();
+        int seriesPerInterval = 1000;
+        int maxSize = 0;
+        int maxCapacity = 0;
+        // Two million series, each reported once and never again.
+        for (int interval = 0; interval < 2000; interval++) {
+            for (int i = 0; i < seriesPerInterval; i++) {
+                store.swap("Series " + (interval * seriesPerInterval + i), store, i);
+            }
+            store.expire();
+            maxSize = Math.max(maxSize, store.size());
+            maxCapacity = Math.max(maxCapacity, store.capacity());
+        }
+        Assert.assertTrue(maxSize <= SeriesCountStore.DEFAULT_MAX_IDLE_INTERVALS * seriesPerInterval);
+        Assert.assertTrue(maxCapacity <= 8 * SeriesCountStore.DEFAULT_MAX_IDLE_INTERVALS * seriesPerInterval);
+
+        for (int interval = 0; interval <= SeriesCountStore.DEFAULT_MAX_IDLE_INTERVALS; interval++) {
+            store.expire();
+        }
+        Assert.assertEquals(0, store.size());
+    }
+
+    @Test
+    public void concurrentSwaps() throws InterruptedException {
+        final SeriesCountStore store = new SeriesCountStore();
+        final Counter counter = new Counter();
+        final AtomicLong reported = new AtomicLong();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final int thread = t;
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    // Each thread grows the store with series of its own while sharing stripes with the others.
+                    for (int i = 1; i <= 20000; i++) {
+                        String series = "Series " + thread + " " + (i % 5000);
+                        reported.addAndGet(i - store.swap(series, counter, i));
+                    }
+                }
+            };
+            writer.start();
+            threads.add(writer);
+        }
+        for (Thread writer : threads) {
+            writer.join();
+        }
+        // Each series ends at the last i it saw, 15001 to 20000, and reports exactly that in total.
+        Assert.assertEquals(4 * (15001L + 20000) * 5000 / 2, reported.get());
+        Assert.assertEquals(4 * 5000, store.size());
+        Assert.assertEquals(20000, store.get("Series 3 0", counter));
+    }
+
+    @Test
+    public void reporterDoesNotLeakRemovedMetrics() {
+        MetricRegistry registry = new MetricRegistry();
+        RecordingCloudWatch cloudWatch = new RecordingCloudWatch();
+        CloudWatchReporter reporter = new CloudWatchReporterBuilder()
+                .withNamespace("test").withRegistry(registry).withClient(cloudWatch).build();
+
+        // The reporter removes and re-creates every metric each report.
+        for (int i = 0; i < 100; i++) {
+            registry.counter("Requests").inc(2);
+            reporter.report();
+        }
+        Assert.assertEquals(200.0, cloudWatch.sum("Requests"), 0.0);
+    }
+}